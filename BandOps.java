@@ -0,0 +1,149 @@
+import org.openimaj.image.FImage;
+import org.openimaj.image.MBFImage;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+//Whole-band operations on MBFImages, to use instead of per-pixel loops such as clone.getBand(1).pixels[y][x] = 0.
+//Each band's pixel array is looked up once, and every operation runs as a simple loop (or Arrays.fill /
+//System.arraycopy) over one row at a time, which the JIT can unroll and vectorise.
+//BandOps.SEQUENTIAL does the work on the calling thread, BandOps.PARALLEL spreads tiles of rows across threads
+public class BandOps {
+
+    public static final BandOps SEQUENTIAL = new BandOps(false);
+    public static final BandOps PARALLEL = new BandOps(true);
+
+    private final boolean parallel;
+
+    private BandOps(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    //Sets every pixel of the band to value
+    public void fill(MBFImage image, int band, final float value) {
+        final float[][] pixels = image.getBand(band).pixels;
+        run(pixels.length, new RowTiles.Task() {
+            @Override
+            public void process(int y0, int y1) {
+                for (int y = y0; y < y1; y++) {
+                    Arrays.fill(pixels[y], value);
+                }
+            }
+        });
+    }
+
+    //Multiplies every pixel of the band by factor
+    public void scale(MBFImage image, int band, float factor) {
+        affine(image, band, factor, 0);
+    }
+
+    //Replaces every pixel v of the band with gain * v + offset
+    public void affine(MBFImage image, int band, final float gain, final float offset) {
+        final float[][] pixels = image.getBand(band).pixels;
+        run(pixels.length, new RowTiles.Task() {
+            @Override
+            public void process(int y0, int y1) {
+                for (int y = y0; y < y1; y++) {
+                    float[] row = pixels[y];
+                    for (int x = 0; x < row.length; x++) {
+                        row[x] = gain * row[x] + offset;
+                    }
+                }
+            }
+        });
+    }
+
+    //Applies a different gain and offset to each band, in one pass over the rows
+    public void affine(MBFImage image, final float[] gains, final float[] offsets) {
+        if (gains.length != image.numBands() || offsets.length != image.numBands()) {
+            throw new IllegalArgumentException("One gain and one offset are needed per band");
+        }
+        final float[][][] bands = PixelKernels.bandPixels(image);
+        run(image.getHeight(), new RowTiles.Task() {
+            @Override
+            public void process(int y0, int y1) {
+                for (int y = y0; y < y1; y++) {
+                    for (int b = 0; b < bands.length; b++) {
+                        float[] row = bands[b][y];
+                        float gain = gains[b];
+                        float offset = offsets[b];
+                        for (int x = 0; x < row.length; x++) {
+                            row[x] = gain * row[x] + offset;
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    //Limits every pixel of every band to the range [min, max]
+    public void clamp(MBFImage image, final float min, final float max) {
+        final float[][][] bands = PixelKernels.bandPixels(image);
+        run(image.getHeight(), new RowTiles.Task() {
+            @Override
+            public void process(int y0, int y1) {
+                for (int y = y0; y < y1; y++) {
+                    for (float[][] band : bands) {
+                        float[] row = band[y];
+                        for (int x = 0; x < row.length; x++) {
+                            row[x] = Math.min(max, Math.max(min, row[x]));
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    //Copies band srcBand of src over band dstBand of dst (the images must be the same size)
+    public void copy(MBFImage src, int srcBand, MBFImage dst, int dstBand) {
+        final float[][] from = src.getBand(srcBand).pixels;
+        final float[][] to = dst.getBand(dstBand).pixels;
+        if (from.length != to.length || from[0].length != to[0].length) {
+            throw new IllegalArgumentException("Images must be the same size");
+        }
+        run(from.length, new RowTiles.Task() {
+            @Override
+            public void process(int y0, int y1) {
+                for (int y = y0; y < y1; y++) {
+                    System.arraycopy(from[y], 0, to[y], 0, from[y].length);
+                }
+            }
+        });
+    }
+
+    //Multiplies every band by the mask (0 removes the pixel, 1 keeps it, values in between blend it towards 0)
+    public void mask(MBFImage image, FImage mask) {
+        if (mask.getWidth() != image.getWidth() || mask.getHeight() != image.getHeight()) {
+            throw new IllegalArgumentException("Mask must be the same size as the image");
+        }
+        final float[][][] bands = PixelKernels.bandPixels(image);
+        final float[][] weights = mask.pixels;
+        run(image.getHeight(), new RowTiles.Task() {
+            @Override
+            public void process(int y0, int y1) {
+                for (int y = y0; y < y1; y++) {
+                    float[] weightRow = weights[y];
+                    for (float[][] band : bands) {
+                        float[] row = band[y];
+                        for (int x = 0; x < row.length; x++) {
+                            row[x] *= weightRow[x];
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    //Swaps two bands (e.g. red and blue); only the band references move, no pixels are copied
+    public void swap(MBFImage image, int a, int b) {
+        Collections.swap(image.bands, a, b);
+    }
+
+    private void run(int height, RowTiles.Task task) {
+        if (parallel) {
+            RowTiles.runParallel(height, task);
+        } else {
+            RowTiles.run(height, task);
+        }
+    }
+}
@@ -0,0 +1,224 @@
+import org.openimaj.image.ImageUtilities;
+import org.openimaj.image.MBFImage;
+import org.openimaj.math.statistics.distribution.MultidimensionalHistogram;
+import org.openimaj.util.function.Operation;
+import org.openimaj.util.parallel.Parallel;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+//Colour histograms of many images, the same as HistogramModel(nbins).estimateModel(image) gives for each one, but
+//computed for several images at once with nothing shared between them:
+//  - images are decoded and binned in parallel, each by one thread, into that thread's own int[] of bin counts
+//    (reused from image to image), which is only turned into a MultidimensionalHistogram at the end
+//  - pixels are binned straight from the decoded BufferedImage, one row at a time, through a table giving the bin of
+//    every 8-bit value, so no MBFImage (4 floats per pixel per band, plus the conversion) is ever made. Images ImageIO
+//    cannot read (e.g. CMYK JPEGs) fall back to ImageUtilities.readMBF
+//extractCombined bins all the images into one histogram (the same as estimateModel(all images)): each thread adds
+//its images into its own long[] totals, and the totals of the threads are added up at the end
+public class BatchHistogramExtractor {
+
+    private final int[] nbins;
+    private final int length;
+
+    //binOffsets[band][value]: the bin an 8-bit value falls in along the band's dimension, times the dimension's stride
+    //(the first band varies fastest, as in MultidimensionalHistogram)
+    private final int[][] binOffsets;
+
+    //Each thread's bin counts and row buffer
+    private final ThreadLocal<int[]> threadBins = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[length];
+        }
+    };
+    private final ThreadLocal<int[][]> threadRows = new ThreadLocal<int[][]>() {
+        @Override
+        protected int[][] initialValue() {
+            return new int[1][0];
+        }
+    };
+
+    //The number of bins for red, green and blue, as for HistogramModel
+    public BatchHistogramExtractor(int... nbins) {
+        if (nbins.length != 3) {
+            throw new IllegalArgumentException("One number of bins is needed for each of red, green and blue");
+        }
+        this.nbins = nbins.clone();
+
+        binOffsets = new int[3][256];
+        int stride = 1;
+        for (int band = 0; band < 3; band++) {
+            for (int value = 0; value < 256; value++) {
+                //the same arithmetic as HistogramModel applies to the float pixel value / 255
+                int bin = (int) (value / 255f * nbins[band]);
+                binOffsets[band][value] = Math.min(bin, nbins[band] - 1) * stride;
+            }
+            stride *= nbins[band];
+        }
+        length = stride;
+    }
+
+    //The normalised histogram of each image, in the order of the URLs
+    public List<MultidimensionalHistogram> extract(final List<URL> urls) throws IOException {
+        final MultidimensionalHistogram[] histograms = new MultidimensionalHistogram[urls.size()];
+        final IOException[] failure = new IOException[1];
+
+        Parallel.forIndex(0, urls.size(), 1, new Operation<Integer>() {
+            @Override
+            public void perform(Integer i) {
+                int[] bins = threadBins.get();
+                Arrays.fill(bins, 0);
+                try {
+                    long pixels = count(urls.get(i), bins);
+                    histograms[i] = normalise(bins, pixels);
+                } catch (IOException e) {
+                    synchronized (failure) {
+                        if (failure[0] == null) {
+                            failure[0] = e;
+                        }
+                    }
+                }
+            }
+        });
+
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        return Arrays.asList(histograms);
+    }
+
+    public MultidimensionalHistogram extract(URL url) throws IOException {
+        return extract(Collections.singletonList(url)).get(0);
+    }
+
+    //One normalised histogram of the pixels of all the images together
+    public MultidimensionalHistogram extractCombined(final List<URL> urls) throws IOException {
+        //each thread's totals, made the first time the thread gets an image
+        final List<long[]> allTotals = Collections.synchronizedList(new ArrayList<long[]>());
+        final ThreadLocal<long[]> threadTotals = new ThreadLocal<long[]>() {
+            @Override
+            protected long[] initialValue() {
+                long[] totals = new long[length + 1];
+                allTotals.add(totals);
+                return totals;
+            }
+        };
+        final IOException[] failure = new IOException[1];
+
+        Parallel.forIndex(0, urls.size(), 1, new Operation<Integer>() {
+            @Override
+            public void perform(Integer i) {
+                int[] bins = threadBins.get();
+                Arrays.fill(bins, 0);
+                try {
+                    long pixels = count(urls.get(i), bins);
+                    long[] totals = threadTotals.get();
+                    for (int b = 0; b < length; b++) {
+                        totals[b] += bins[b];
+                    }
+                    //the last entry counts the pixels
+                    totals[length] += pixels;
+                } catch (IOException e) {
+                    synchronized (failure) {
+                        if (failure[0] == null) {
+                            failure[0] = e;
+                        }
+                    }
+                }
+            }
+        });
+
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        long[] sum = new long[length + 1];
+        for (long[] totals : allTotals) {
+            for (int b = 0; b <= length; b++) {
+                sum[b] += totals[b];
+            }
+        }
+        MultidimensionalHistogram histogram = new MultidimensionalHistogram(nbins);
+        for (int b = 0; b < length; b++) {
+            histogram.values[b] = sum[length] == 0 ? 0 : (double) sum[b] / sum[length];
+        }
+        return histogram;
+    }
+
+    //Adds the pixels of the image to bins and returns how many there were
+    private long count(URL url, int[] bins) throws IOException {
+        BufferedImage image = ImageIO.read(url);
+        if (image == null) {
+            return count(ImageUtilities.readMBF(url), bins);
+        }
+
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] red = binOffsets[0];
+        int[] green = binOffsets[1];
+        int[] blue = binOffsets[2];
+        int type = image.getType();
+
+        if (type == BufferedImage.TYPE_3BYTE_BGR || type == BufferedImage.TYPE_INT_RGB) {
+            //the raster's bands are red, green and blue samples, as they are
+            int[] row = rowBuffer(3 * width);
+            for (int y = 0; y < height; y++) {
+                image.getRaster().getPixels(0, y, width, 1, row);
+                for (int i = 0; i < 3 * width; i += 3) {
+                    bins[red[row[i]] + green[row[i + 1]] + blue[row[i + 2]]]++;
+                }
+            }
+        } else {
+            //anything else (grey, palette, alpha...) is converted to sRGB by the colour model, as readMBF does
+            int[] row = rowBuffer(width);
+            for (int y = 0; y < height; y++) {
+                image.getRGB(0, y, width, 1, row, 0, width);
+                for (int x = 0; x < width; x++) {
+                    int rgb = row[x];
+                    bins[red[(rgb >> 16) & 0xff] + green[(rgb >> 8) & 0xff] + blue[rgb & 0xff]]++;
+                }
+            }
+        }
+        return (long) width * height;
+    }
+
+    private long count(MBFImage image, int[] bins) {
+        float[][][] bands = PixelKernels.bandPixels(image);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                int index = 0;
+                int stride = 1;
+                for (int band = 0; band < 3; band++) {
+                    int bin = Math.min((int) (bands[band][y][x] * nbins[band]), nbins[band] - 1);
+                    index += bin * stride;
+                    stride *= nbins[band];
+                }
+                bins[index]++;
+            }
+        }
+        return (long) image.getWidth() * image.getHeight();
+    }
+
+    //The calling thread's row buffer, grown when a wider image comes along
+    private int[] rowBuffer(int length) {
+        int[][] holder = threadRows.get();
+        if (holder[0].length < length) {
+            holder[0] = new int[length];
+        }
+        return holder[0];
+    }
+
+    private MultidimensionalHistogram normalise(int[] bins, long pixels) {
+        MultidimensionalHistogram histogram = new MultidimensionalHistogram(nbins);
+        for (int b = 0; b < length; b++) {
+            histogram.values[b] = pixels == 0 ? 0 : (double) bins[b] / pixels;
+        }
+        return histogram;
+    }
+}
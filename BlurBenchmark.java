@@ -0,0 +1,83 @@
+import org.openimaj.image.FImage;
+import org.openimaj.image.MBFImage;
+import org.openimaj.image.processing.convolution.FGaussianConvolve;
+import org.openimaj.time.Timer;
+
+import java.util.Random;
+
+//Times the GaussianBlur implementations against FGaussianConvolve for a range of sigmas on a synthetic RGB image
+//(1920x1080 unless a width and height are given as arguments).
+//The error columns are the largest and mean absolute differences from the exact SEPARABLE result, so they show
+//how closely BOX and RECURSIVE approximate the Gaussian; "auto" is the implementation GaussianBlur picks itself.
+//Each time is the best of a few runs, after a warm-up run
+public class BlurBenchmark {
+
+    private static final float[] SIGMAS = {0.5f, 1, 2, 3, 5, 8, 12, 20};
+    private static final int RUNS = 3;
+
+    public static void main(String[] args) {
+        int width = args.length > 1 ? Integer.parseInt(args[0]) : 1920;
+        int height = args.length > 1 ? Integer.parseInt(args[1]) : 1080;
+        MBFImage image = FHSegmentationBenchmark.syntheticImage(width, height, new Random(42));
+
+        System.out.println("sigma\tbackend\ttime (ms)\tmax error\tmean error");
+        for (float sigma : SIGMAS) {
+            MBFImage exact = image.process(new GaussianBlur(sigma, GaussianBlur.Backend.SEPARABLE));
+
+            System.out.println(sigma + "\tFGaussianConvolve\t" + time(image, new FGaussianConvolve(sigma))
+                    + "\t" + errors(exact, image.process(new FGaussianConvolve(sigma))));
+            for (GaussianBlur.Backend backend : GaussianBlur.Backend.values()) {
+                GaussianBlur blur = new GaussianBlur(sigma, backend);
+                System.out.println(sigma + "\t" + backend + "\t" + time(image, blur)
+                        + "\t" + errors(exact, image.process(blur)));
+            }
+            GaussianBlur auto = new GaussianBlur(sigma);
+            System.out.println(sigma + "\tauto (" + auto.getBackend() + ")\t" + time(image, auto)
+                    + "\t" + errors(exact, image.process(auto)));
+        }
+    }
+
+    private static long time(MBFImage image, FGaussianConvolve blur) {
+        image.process(blur);
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            MBFImage copy = image.clone();
+            Timer t = Timer.timer();
+            copy.processInplace(blur);
+            best = Math.min(best, t.duration());
+        }
+        return best;
+    }
+
+    private static long time(MBFImage image, GaussianBlur blur) {
+        image.process(blur);
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            MBFImage copy = image.clone();
+            Timer t = Timer.timer();
+            copy.processInplace(blur);
+            best = Math.min(best, t.duration());
+        }
+        return best;
+    }
+
+    //Largest and mean absolute difference over all pixels of all bands, tab separated
+    private static String errors(MBFImage expected, MBFImage actual) {
+        double max = 0;
+        double total = 0;
+        long count = 0;
+        for (int b = 0; b < expected.numBands(); b++) {
+            FImage e = expected.getBand(b);
+            FImage a = actual.getBand(b);
+            for (int y = 0; y < e.getHeight(); y++) {
+                for (int x = 0; x < e.getWidth(); x++) {
+                    double d = Math.abs(e.pixels[y][x] - a.pixels[y][x]);
+                    max = Math.max(max, d);
+                    total += d;
+                    count++;
+                }
+            }
+        }
+        return String.format("%.5f\t%.6f", max, total / count);
+    }
+}
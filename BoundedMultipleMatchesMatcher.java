@@ -0,0 +1,147 @@
+import org.openimaj.feature.local.matcher.LocalFeatureMatcher;
+import org.openimaj.image.feature.local.keypoints.Keypoint;
+import org.openimaj.util.function.Operation;
+import org.openimaj.util.pair.Pair;
+import org.openimaj.util.parallel.Parallel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+//Like MultipleMatchesMatcher, matches each keypoint to up to k model keypoints, but with a fixed amount of memory:
+//  - the k + 1 nearest model keypoints of a keypoint are found with a ByteKDForest into a TopK (a primitive heap of
+//    k + 1 entries per thread), and each of the k nearest is a candidate if it is clearly nearer than the (k + 1)th:
+//    distance < ratio * distance to the (k + 1)th, the ratio test with the (k + 1)th nearest as the "second"
+//  - the keypoints are read once, in parallel chunks, and the candidates go straight into one TopK of at most
+//    maxBytes / (CANDIDATE_BYTES + MATCH_BYTES) entries, scored by their distance ratio, so if there are more
+//    candidates than fit, the least distinctive ones are dropped (and counted by getPrunedCount) instead of running
+//    out of heap. The TopK is sorted in place and the pairs are made straight from it, so the candidates and the
+//    returned pairs together stay within maxBytes.
+//Nothing else grows with the number of keypoints
+public class BoundedMultipleMatchesMatcher<T extends Keypoint> implements LocalFeatureMatcher<T> {
+
+    //A candidate in the TopK: a double score and a long id
+    public static final int CANDIDATE_BYTES = 16;
+    //A returned match: a Pair (object header and two references) and its reference in the list, rounded up
+    public static final int MATCH_BYTES = 32;
+    public static final long DEFAULT_MAX_BYTES = 16L << 20;
+
+    private static final int CHUNK = 64;
+
+    private final int k;
+    private final float ratio;
+    private final long maxBytes;
+    private final int maxChecks;
+
+    private List<T> modelKeypoints;
+    private ByteKDForest forest;
+    private List<Pair<T>> matches = new ArrayList<Pair<T>>();
+    private long prunedCount;
+
+    private final ThreadLocal<TopK> nearest = new ThreadLocal<TopK>() {
+        @Override
+        protected TopK initialValue() {
+            return new TopK(k + 1);
+        }
+    };
+
+    public BoundedMultipleMatchesMatcher(int k) {
+        this(k, ForestKeypointMatcher.DEFAULT_RATIO, DEFAULT_MAX_BYTES);
+    }
+
+    public BoundedMultipleMatchesMatcher(int k, float ratio, long maxBytes) {
+        this(k, ratio, maxBytes, ForestKeypointMatcher.DEFAULT_CHECKS);
+    }
+
+    //maxBytes: the most memory the candidates and the matches made from them may take (so at most
+    //maxBytes / (CANDIDATE_BYTES + MATCH_BYTES) matches are kept)
+    public BoundedMultipleMatchesMatcher(int k, float ratio, long maxBytes, int maxChecks) {
+        if (k <= 0) {
+            throw new IllegalArgumentException("k must be positive");
+        }
+        if (maxBytes < CANDIDATE_BYTES + MATCH_BYTES) {
+            throw new IllegalArgumentException("maxBytes must allow at least one candidate");
+        }
+        this.k = k;
+        this.ratio = ratio;
+        this.maxBytes = maxBytes;
+        this.maxChecks = maxChecks;
+    }
+
+    @Override
+    public void setModelFeatures(List<T> modelkeys) {
+        byte[][] descriptors = new byte[modelkeys.size()][];
+        for (int i = 0; i < descriptors.length; i++) {
+            descriptors[i] = modelkeys.get(i).ivec;
+        }
+        forest = new ByteKDForest(descriptors, ByteKDForest.DEFAULT_TREES, ByteKDForest.DEFAULT_LEAF_SIZE, 42);
+        modelKeypoints = new ArrayList<T>(modelkeys);
+    }
+
+    @Override
+    public boolean findMatches(final List<T> keys) {
+        if (forest == null) {
+            throw new IllegalStateException("setModelFeatures must be called first");
+        }
+        final long modelSize = modelKeypoints.size();
+        final float ratioSquared = ratio * ratio;
+        long capacity = Math.min(maxBytes / (CANDIDATE_BYTES + MATCH_BYTES), (long) keys.size() * k);
+        final TopK candidates = new TopK((int) Math.max(1, Math.min(capacity, Integer.MAX_VALUE - 8)));
+        final long[] offered = new long[1];
+        int nChunks = (keys.size() + CHUNK - 1) / CHUNK;
+
+        Parallel.forIndex(0, nChunks, 1, new Operation<Integer>() {
+            @Override
+            public void perform(Integer chunk) {
+                TopK best = nearest.get();
+                double[] distances = new double[k + 1];
+                long[] ids = new long[k + 1];
+                //the chunk's candidates, handed to the shared TopK together
+                double[] chunkScores = new double[CHUNK * k];
+                long[] chunkIds = new long[CHUNK * k];
+                int count = 0;
+                for (int i = chunk * CHUNK; i < Math.min(keys.size(), (chunk + 1) * CHUNK); i++) {
+                    forest.search(keys.get(i).ivec, best, maxChecks);
+                    int found = best.sorted(distances, ids);
+                    //with k or fewer model keypoints, each is compared with the farthest of them instead
+                    double reference = distances[Math.min(found, k + 1) - 1];
+                    for (int j = 0; j < Math.min(found, k); j++) {
+                        if (found == 1 || distances[j] < ratioSquared * reference) {
+                            chunkScores[count] = reference == 0 ? 0 : distances[j] / reference;
+                            chunkIds[count] = i * modelSize + ids[j];
+                            count++;
+                        }
+                    }
+                }
+                synchronized (candidates) {
+                    for (int c = 0; c < count; c++) {
+                        candidates.offer(chunkScores[c], chunkIds[c]);
+                    }
+                    offered[0] += count;
+                }
+            }
+        });
+
+        candidates.sortWorstFirst();
+        int kept = candidates.size();
+        prunedCount = offered[0] - kept;
+        //the previous call's matches can go before this call's are made
+        matches = null;
+        matches = new ArrayList<Pair<T>>(kept);
+        for (int c = kept - 1; c >= 0; c--) {
+            long id = candidates.id(c);
+            matches.add(new Pair<T>(keys.get((int) (id / modelSize)), modelKeypoints.get((int) (id % modelSize))));
+        }
+        return true;
+    }
+
+    //The matches as pairs of (keypoint, model keypoint), most distinctive first
+    @Override
+    public List<Pair<T>> getMatches() {
+        return matches;
+    }
+
+    //The number of candidates the last findMatches dropped because they did not fit in maxBytes
+    public long getPrunedCount() {
+        return prunedCount;
+    }
+}
@@ -0,0 +1,333 @@
+import org.openimaj.util.function.Operation;
+import org.openimaj.util.parallel.Parallel;
+
+import java.util.Arrays;
+import java.util.Random;
+
+//A randomised KD-forest over byte[] descriptors (e.g. the 128 bytes of a SIFT Keypoint) for approximate nearest
+//neighbour search by squared Euclidean distance, as in FLANN (Muja & Lowe):
+//  - each tree splits its points at the mean of one dimension, picked at random among the RANDOM_DIMS dimensions
+//    of largest variance, until there are at most leafSize points left; the random choice makes the trees differ
+//  - a search goes down every tree to a leaf, then keeps visiting the unexplored branch closest to the query
+//    (over all the trees) until maxChecks descriptors have been compared; more checks, better answers
+//The forest is built once (the trees in parallel) and never changes afterwards, so any number of threads can
+//search it at the same time; each thread keeps its own search state
+public class ByteKDForest {
+
+    public static final int DEFAULT_TREES = 4;
+    public static final int DEFAULT_LEAF_SIZE = 8;
+
+    private static final int RANDOM_DIMS = 5;
+    private static final int VARIANCE_SAMPLE = 128;
+
+    private final byte[] data;
+    private final int n;
+    private final int dims;
+    private final Tree[] trees;
+
+    private final ThreadLocal<Search> searches = new ThreadLocal<Search>() {
+        @Override
+        protected Search initialValue() {
+            return new Search();
+        }
+    };
+
+    //One tree. Node i splits on splitDims[i] at splitValues[i] into children[2i] and children[2i+1]; a negative
+    //child -(l + 1) is leaf l, holding points[leafStarts[l]] to points[leafStarts[l + 1] - 1]
+    private static final class Tree {
+        int root;
+        int[] points;
+        int[] splitDims = new int[16];
+        float[] splitValues = new float[16];
+        int[] children = new int[32];
+        int nodes;
+        int[] leafStarts = new int[16];
+        int leaves;
+    }
+
+    public ByteKDForest(byte[][] descriptors) {
+        this(descriptors, DEFAULT_TREES, DEFAULT_LEAF_SIZE, 42);
+    }
+
+    public ByteKDForest(byte[][] descriptors, int nTrees, final int leafSize, final long seed) {
+        n = descriptors.length;
+        dims = n == 0 ? 0 : descriptors[0].length;
+        data = new byte[n * dims];
+        for (int i = 0; i < n; i++) {
+            if (descriptors[i].length != dims) {
+                throw new IllegalArgumentException("All descriptors must be the same length");
+            }
+            System.arraycopy(descriptors[i], 0, data, i * dims, dims);
+        }
+
+        trees = new Tree[nTrees];
+        Parallel.forIndex(0, nTrees, 1, new Operation<Integer>() {
+            @Override
+            public void perform(Integer t) {
+                trees[t] = buildTree(Math.max(1, leafSize), new Random(seed + t));
+            }
+        });
+    }
+
+    public int size() {
+        return n;
+    }
+
+    public int getDims() {
+        return dims;
+    }
+
+    //The descriptor of point i
+    public byte[] get(int i) {
+        return Arrays.copyOfRange(data, i * dims, (i + 1) * dims);
+    }
+
+    //Finds (approximately) the nearest points to the query: the result holds up to its capacity of them, with their
+    //squared distances as scores. Returns the number of points compared
+    public int search(byte[] query, TopK result, int maxChecks) {
+        result.clear();
+        if (n == 0) {
+            return 0;
+        }
+        Search search = searches.get();
+        search.start(n);
+        for (int t = 0; t < trees.length; t++) {
+            descend(t, trees[t].root, 0, query, result, search);
+        }
+        while (search.branches > 0 && search.checks < maxChecks) {
+            float bound = search.branchBounds[0];
+            if (bound >= result.worstScore()) {
+                break;
+            }
+            int tree = search.branchTrees[0];
+            int node = search.pop();
+            descend(tree, node, bound, query, result, search);
+        }
+        return search.checks;
+    }
+
+    //Goes down from the node to a leaf, queueing the branches not taken, and compares the leaf's points
+    private void descend(int t, int node, float bound, byte[] query, TopK result, Search search) {
+        Tree tree = trees[t];
+        while (node >= 0) {
+            float difference = query[tree.splitDims[node]] - tree.splitValues[node];
+            int near = tree.children[2 * node + (difference < 0 ? 0 : 1)];
+            int far = tree.children[2 * node + (difference < 0 ? 1 : 0)];
+            float farBound = bound + difference * difference;
+            if (farBound < result.worstScore()) {
+                search.push(farBound, t, far);
+            }
+            node = near;
+        }
+        int leaf = -node - 1;
+        for (int p = tree.leafStarts[leaf]; p < tree.leafStarts[leaf + 1]; p++) {
+            int point = tree.points[p];
+            if (search.visit(point)) {
+                search.checks++;
+                result.offer(distance(query, point), point);
+            }
+        }
+    }
+
+    //Squared Euclidean distance between the query and point i
+    public int distance(byte[] query, int i) {
+        int offset = i * dims;
+        int sum = 0;
+        for (int d = 0; d < dims; d++) {
+            int difference = query[d] - data[offset + d];
+            sum += difference * difference;
+        }
+        return sum;
+    }
+
+    private Tree buildTree(int leafSize, Random random) {
+        Tree tree = new Tree();
+        tree.points = new int[n];
+        for (int i = 0; i < n; i++) {
+            tree.points[i] = i;
+        }
+        tree.root = build(tree, 0, n, leafSize, random);
+        tree.leafStarts = Arrays.copyOf(tree.leafStarts, Math.max(tree.leafStarts.length, tree.leaves + 1));
+        tree.leafStarts[tree.leaves] = n;
+        return tree;
+    }
+
+    //Builds the subtree of points[start] to points[end - 1] and returns its node (or leaf) number
+    private int build(Tree tree, int start, int end, int leafSize, Random random) {
+        if (end - start <= leafSize) {
+            return leaf(tree, start);
+        }
+
+        //mean and variance of each dimension over a sample of the points
+        int step = Math.max(1, (end - start) / VARIANCE_SAMPLE);
+        double[] sum = new double[dims];
+        double[] sumSquares = new double[dims];
+        int count = 0;
+        for (int p = start; p < end; p += step) {
+            int offset = tree.points[p] * dims;
+            for (int d = 0; d < dims; d++) {
+                double value = data[offset + d];
+                sum[d] += value;
+                sumSquares[d] += value * value;
+            }
+            count++;
+        }
+        int[] top = topVarianceDims(sum, sumSquares, count);
+        int dim = top[random.nextInt(top.length)];
+        int middle = partition(tree, start, end, dim, (float) (sum[dim] / count));
+        if ((middle == start || middle == end) && dim != top[0]) {
+            //the random dimension did not divide the points: try the one of largest variance
+            dim = top[0];
+            middle = partition(tree, start, end, dim, (float) (sum[dim] / count));
+        }
+        if (middle == start || middle == end) {
+            //the points are (as good as) all the same
+            return leaf(tree, start);
+        }
+        float split = (float) (sum[dim] / count);
+
+        int node = tree.nodes++;
+        if (node == tree.splitDims.length) {
+            tree.splitDims = Arrays.copyOf(tree.splitDims, node * 2);
+            tree.splitValues = Arrays.copyOf(tree.splitValues, node * 2);
+            tree.children = Arrays.copyOf(tree.children, node * 4);
+        }
+        tree.splitDims[node] = dim;
+        tree.splitValues[node] = split;
+        int left = build(tree, start, middle, leafSize, random);
+        int right = build(tree, middle, end, leafSize, random);
+        tree.children[2 * node] = left;
+        tree.children[2 * node + 1] = right;
+        return node;
+    }
+
+    //Moves the points below the split to the front of the range and returns where the rest start
+    private int partition(Tree tree, int start, int end, int dim, float split) {
+        int middle = start;
+        for (int p = start; p < end; p++) {
+            int point = tree.points[p];
+            if (data[point * dims + dim] < split) {
+                tree.points[p] = tree.points[middle];
+                tree.points[middle++] = point;
+            }
+        }
+        return middle;
+    }
+
+    private static int leaf(Tree tree, int start) {
+        int leaf = tree.leaves++;
+        if (leaf == tree.leafStarts.length) {
+            tree.leafStarts = Arrays.copyOf(tree.leafStarts, leaf * 2);
+        }
+        tree.leafStarts[leaf] = start;
+        return -leaf - 1;
+    }
+
+    //The RANDOM_DIMS dimensions with the largest variance (fewer if there are fewer dimensions)
+    private int[] topVarianceDims(double[] sum, double[] sumSquares, int count) {
+        int k = Math.min(RANDOM_DIMS, dims);
+        int[] top = new int[k];
+        double[] topVariance = new double[k];
+        Arrays.fill(topVariance, -1);
+        for (int d = 0; d < dims; d++) {
+            double mean = sum[d] / count;
+            double variance = sumSquares[d] / count - mean * mean;
+            if (variance > topVariance[k - 1]) {
+                int i = k - 1;
+                while (i > 0 && variance > topVariance[i - 1]) {
+                    topVariance[i] = topVariance[i - 1];
+                    top[i] = top[i - 1];
+                    i--;
+                }
+                topVariance[i] = variance;
+                top[i] = d;
+            }
+        }
+        return top;
+    }
+
+    //A thread's search state: visited points (marked with the number of the search), the number of points
+    //compared, and a min-heap of the branches not yet explored
+    private static final class Search {
+        int[] visited = new int[0];
+        int mark;
+        int checks;
+        float[] branchBounds = new float[64];
+        int[] branchTrees = new int[64];
+        int[] branchNodes = new int[64];
+        int branches;
+
+        void start(int size) {
+            if (visited.length < size) {
+                visited = new int[size];
+                mark = 0;
+            }
+            if (++mark == 0) {
+                Arrays.fill(visited, 0);
+                mark = 1;
+            }
+            checks = 0;
+            branches = 0;
+        }
+
+        boolean visit(int point) {
+            if (visited[point] == mark) {
+                return false;
+            }
+            visited[point] = mark;
+            return true;
+        }
+
+        void push(float bound, int tree, int node) {
+            if (branches == branchBounds.length) {
+                branchBounds = Arrays.copyOf(branchBounds, branches * 2);
+                branchTrees = Arrays.copyOf(branchTrees, branches * 2);
+                branchNodes = Arrays.copyOf(branchNodes, branches * 2);
+            }
+            int i = branches++;
+            while (i > 0) {
+                int parent = (i - 1) >> 1;
+                if (branchBounds[parent] <= bound) {
+                    break;
+                }
+                branchBounds[i] = branchBounds[parent];
+                branchTrees[i] = branchTrees[parent];
+                branchNodes[i] = branchNodes[parent];
+                i = parent;
+            }
+            branchBounds[i] = bound;
+            branchTrees[i] = tree;
+            branchNodes[i] = node;
+        }
+
+        //Removes the closest branch and returns its node
+        int pop() {
+            int top = branchNodes[0];
+            branches--;
+            float bound = branchBounds[branches];
+            int tree = branchTrees[branches];
+            int node = branchNodes[branches];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= branches) {
+                    break;
+                }
+                if (child + 1 < branches && branchBounds[child + 1] < branchBounds[child]) {
+                    child++;
+                }
+                if (branchBounds[child] >= bound) {
+                    break;
+                }
+                branchBounds[i] = branchBounds[child];
+                branchTrees[i] = branchTrees[child];
+                branchNodes[i] = branchNodes[child];
+                i = child;
+            }
+            branchBounds[i] = bound;
+            branchTrees[i] = tree;
+            branchNodes[i] = node;
+            return top;
+        }
+    }
+}
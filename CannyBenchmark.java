@@ -0,0 +1,93 @@
+import org.openimaj.image.FImage;
+import org.openimaj.image.ImageUtilities;
+import org.openimaj.image.MBFImage;
+import org.openimaj.image.processing.edges.CannyEdgeDetector;
+import org.openimaj.image.processor.SinglebandImageProcessor;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Random;
+
+//Times CannyEdgeDetector and ParallelCannyEdgeDetector on synthetic 1280x720 greyscale frames (as a video in Chapter7
+//gives them), one frame after another with the same instance, and reports the mean ms per frame; the target for
+//ParallelCannyEdgeDetector is under 5 ms a frame on 8 cores.
+//With -check, instead compares the edge maps of the two, for every band of the tutorial images Chapter2 and Chapter5
+//use and for a synthetic frame, with the default tiles and with small ones, and exits with 1 if any pixel differs
+public class CannyBenchmark {
+
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+    private static final int FRAMES = 50;
+    private static final String[] TUTORIAL_IMAGES = {"http://static.openimaj.org/media/tutorial/sinaface.jpg",
+            "http://static.openimaj.org/media/tutorial/query.jpg", "http://static.openimaj.org/media/tutorial/target.jpg"};
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 1 && args[0].equals("-check")) {
+            System.exit(check() ? 0 : 1);
+        }
+
+        Random random = new Random(42);
+        FImage[] frames = new FImage[8];
+        for (int f = 0; f < frames.length; f++) {
+            frames[f] = FHSegmentationBenchmark.syntheticImage(WIDTH, HEIGHT, random).flatten();
+        }
+
+        System.out.println("detector\tthreads\tms per frame");
+        System.out.println("CannyEdgeDetector\t1\t" + time(new CannyEdgeDetector(), frames));
+        System.out.println("ParallelCannyEdgeDetector\t" + Runtime.getRuntime().availableProcessors() + "\t"
+                + time(new ParallelCannyEdgeDetector(), frames));
+    }
+
+    //Mean ms per frame over FRAMES frames, after as many again to warm up
+    private static double time(SinglebandImageProcessor<Float, FImage> detector, FImage[] frames) {
+        for (int f = 0; f < FRAMES; f++) {
+            frames[f % frames.length].process(detector);
+        }
+        long nanos = 0;
+        for (int f = 0; f < FRAMES; f++) {
+            FImage frame = frames[f % frames.length].clone();
+            long start = System.nanoTime();
+            detector.processImage(frame);
+            nanos += System.nanoTime() - start;
+        }
+        return nanos / 1e6 / FRAMES;
+    }
+
+    private static boolean check() throws IOException {
+        boolean same = true;
+        System.out.println("image\tband\ttile rows\tedge pixels\tdiffering pixels");
+        for (String url : TUTORIAL_IMAGES) {
+            MBFImage image = ImageUtilities.readMBF(new URL(url));
+            for (int b = 0; b < image.numBands(); b++) {
+                same &= compare(url, String.valueOf(b), image.getBand(b));
+            }
+        }
+        same &= compare("synthetic " + WIDTH + "x" + HEIGHT, "-",
+                FHSegmentationBenchmark.syntheticImage(WIDTH, HEIGHT, new Random(42)).flatten());
+        System.out.println(same ? "identical" : "DIFFERENT");
+        return same;
+    }
+
+    private static boolean compare(String name, String band, FImage image) {
+        FImage expected = image.process(new CannyEdgeDetector());
+        boolean same = true;
+        for (int tileRows : new int[]{RowTiles.DEFAULT_TILE_ROWS, 7}) {
+            FImage actual = image.process(new ParallelCannyEdgeDetector(-1, -1, 1, tileRows));
+            long edges = 0;
+            long differing = 0;
+            for (int y = 0; y < image.getHeight(); y++) {
+                for (int x = 0; x < image.getWidth(); x++) {
+                    if (expected.pixels[y][x] == 1) {
+                        edges++;
+                    }
+                    if (expected.pixels[y][x] != actual.pixels[y][x]) {
+                        differing++;
+                    }
+                }
+            }
+            System.out.println(name + "\t" + band + "\t" + tileRows + "\t" + edges + "\t" + differing);
+            same &= differing == 0;
+        }
+        return same;
+    }
+}
@@ -0,0 +1,114 @@
+import org.openimaj.image.MBFImage;
+import org.openimaj.image.colour.ColourSpace;
+import org.openimaj.image.processor.PixelProcessor;
+import org.openimaj.ml.clustering.FloatCentroidsResult;
+import org.openimaj.ml.clustering.assignment.HardAssigner;
+import org.openimaj.time.Timer;
+
+import java.util.Random;
+
+//Compares the ways of recolouring an image with its K-means classes used in Chapter3:
+//  1. ColourSpace.convert to Lab, PixelProcessor + HardAssigner per pixel, ColourSpace.convert back to RGB
+//  2. ColourSpace.convert to Lab, parallel PixelKernels.NearestCentroidKernel, ColourSpace.convert back to RGB
+//  3. CentroidLookupTable straight on the RGB image
+//The synthetic image is made of 8-bit colours drawn from a palette plus noise, like a real photo
+public class CentroidLookupBenchmark {
+
+    public static void main(String[] args) {
+        int width = args.length > 0 ? Integer.parseInt(args[0]) : 4000;
+        int height = args.length > 1 ? Integer.parseInt(args[1]) : 3000;
+        int k = 4;
+        Random random = new Random(42);
+
+        MBFImage original = syntheticImage(width, height, 64, random);
+
+        //Clustering once so every path uses the same centroids
+        FloatCentroidsResult result = ColourKMeans.createMiniBatch(k).cluster(ColourSpace.convert(original, ColourSpace.CIE_Lab));
+        final float[][] centroids = result.getCentroids();
+        final HardAssigner<float[], ?, ?> assigner = result.defaultHardAssigner();
+
+        System.out.println("Image: " + width + "x" + height + ", " + k + " centroids");
+
+        //1. The original per-pixel assigner path
+        MBFImage image = original.clone();
+        Timer t1 = Timer.timer();
+        image = ColourSpace.convert(image, ColourSpace.CIE_Lab);
+        image.processInplace(new PixelProcessor<Float[]>() {
+            @Override
+            public Float[] processPixel(Float[] current) {
+                float[] f = new float[current.length];
+                for (int i = 0; i < current.length; i++) {
+                    f[i] = current[i];
+                }
+                int centroid = assigner.assign(f);
+                Float[] ans = new Float[f.length];
+                for (int i = 0; i < centroids[centroid].length; i++) {
+                    ans[i] = centroids[centroid][i];
+                }
+                return ans;
+            }
+        });
+        ColourSpace.convert(image, ColourSpace.RGB);
+        System.out.println("PixelProcessor + HardAssigner: " + t1.duration() + "ms");
+
+        //2. Primitive kernel path
+        image = original.clone();
+        Timer t2 = Timer.timer();
+        image = ColourSpace.convert(image, ColourSpace.CIE_Lab);
+        PixelKernels.applyParallel(image, new PixelKernels.NearestCentroidKernel(centroids));
+        ColourSpace.convert(image, ColourSpace.RGB);
+        System.out.println("NearestCentroidKernel (parallel): " + t2.duration() + "ms");
+
+        //3. Lookup table path, with a fresh (empty) table each time
+        image = original.clone();
+        Timer t3 = Timer.timer();
+        new CentroidLookupTable(centroids).recolour(image);
+        System.out.println("CentroidLookupTable: " + t3.duration() + "ms");
+
+        image = original.clone();
+        Timer t4 = Timer.timer();
+        new CentroidLookupTable(centroids).recolourParallel(image);
+        System.out.println("CentroidLookupTable (parallel): " + t4.duration() + "ms");
+
+        //Checking the table gives the same classes as assigning the Lab pixels directly
+        MBFImage lab = ColourSpace.convert(original, ColourSpace.CIE_Lab);
+        int[] tableAssignments = new CentroidLookupTable(centroids).assign(original);
+        PixelKernels.NearestCentroidKernel nearest = new PixelKernels.NearestCentroidKernel(centroids);
+        float[] pixel = new float[3];
+        int mismatches = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                for (int b = 0; b < 3; b++) {
+                    pixel[b] = lab.getBand(b).pixels[y][x];
+                }
+                if (nearest.assign(pixel) != tableAssignments[y * width + x]) {
+                    mismatches++;
+                }
+            }
+        }
+        System.out.println("Pixels assigned differently by the table: " + mismatches);
+    }
+
+    //An RGB image of 8-bit colours taken from a random palette, with some noise added to each pixel
+    static MBFImage syntheticImage(int width, int height, int paletteSize, Random random) {
+        int[][] palette = new int[paletteSize][3];
+        for (int[] colour : palette) {
+            for (int b = 0; b < 3; b++) {
+                colour[b] = random.nextInt(256);
+            }
+        }
+
+        MBFImage image = new MBFImage(width, height, ColourSpace.RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                //neighbouring pixels share a palette colour, in 16x16 blocks
+                int[] colour = palette[((y / 16) * 31 + (x / 16)) % paletteSize];
+                for (int b = 0; b < 3; b++) {
+                    int value = colour[b] + random.nextInt(9) - 4;
+                    image.getBand(b).pixels[y][x] = Math.max(0, Math.min(255, value)) / 255f;
+                }
+            }
+        }
+        return image;
+    }
+}
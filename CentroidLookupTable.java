@@ -0,0 +1,137 @@
+import org.openimaj.image.MBFImage;
+
+//Assigns 8-bit RGB colours to the closest of a set of CIE Lab centroids through a lookup table.
+//The table has one entry per possible colour (2^24 bytes = 16MB) and is filled lazily:
+//the first time a colour is seen it is converted to Lab and assigned to a centroid, after which
+//every pixel of that colour is a single array read. Photos only use a small fraction of the 16.7M colours,
+//so the expensive conversion and distance calculations are done far fewer times than once per pixel.
+//Entries are single bytes holding the centroid index + 1 (0 means "not computed yet"), so at most 255 centroids.
+//Several threads may fill the same entry at once, but they always write the same value, so no locking is needed
+public class CentroidLookupTable {
+
+    public static final int MAX_CENTROIDS = 255;
+
+    private static final int TABLE_SIZE = 1 << 24;
+
+    private final float[][] labCentroids;
+    private final float[][] rgbCentroids;
+    private final PixelKernels.NearestCentroidKernel nearest;
+    private final byte[] table = new byte[TABLE_SIZE];
+
+    public CentroidLookupTable(float[][] labCentroids) {
+        if (labCentroids.length > MAX_CENTROIDS) {
+            throw new IllegalArgumentException("At most " + MAX_CENTROIDS + " centroids are supported");
+        }
+        this.labCentroids = labCentroids;
+        this.nearest = new PixelKernels.NearestCentroidKernel(labCentroids);
+
+        //The colours written back into RGB images are worked out once per centroid
+        this.rgbCentroids = new float[labCentroids.length][3];
+        for (int c = 0; c < labCentroids.length; c++) {
+            CIELab.labToRgb(labCentroids[c][0], labCentroids[c][1], labCentroids[c][2], rgbCentroids[c]);
+        }
+    }
+
+    public float[][] getLabCentroids() {
+        return labCentroids;
+    }
+
+    //The centroids converted to RGB
+    public float[][] getRgbCentroids() {
+        return rgbCentroids;
+    }
+
+    //Index of the centroid closest to the given RGB colour (values 0-1)
+    public int lookup(float r, float g, float b) {
+        return lookup(key(r, g, b), new float[3]);
+    }
+
+    //Index of the centroid for the colour with the given 24-bit key;
+    //lab is scratch space used only when the entry still has to be computed
+    int lookup(int key, float[] lab) {
+        int entry = table[key] & 0xff;
+        if (entry == 0) {
+            CIELab.rgbToLab(((key >> 16) & 0xff) / 255f, ((key >> 8) & 0xff) / 255f, (key & 0xff) / 255f, lab);
+            entry = nearest.assign(lab) + 1;
+            table[key] = (byte) entry;
+        }
+        return entry - 1;
+    }
+
+    //Fills every entry of the table up front (in parallel) rather than on demand
+    public void precompute() {
+        RowTiles.runParallel(256, 1, new RowTiles.Task() {
+            @Override
+            public void process(int r0, int r1) {
+                float[] lab = new float[3];
+                for (int key = r0 << 16; key < r1 << 16; key++) {
+                    lookup(key, lab);
+                }
+            }
+        });
+    }
+
+    //Replaces every pixel of an RGB image with the RGB colour of its centroid, on the calling thread
+    public void recolour(MBFImage rgbImage) {
+        RowTiles.run(rgbImage.getHeight(), recolourTask(rgbImage));
+    }
+
+    //Replaces every pixel of an RGB image with the RGB colour of its centroid, processing tiles of rows in parallel
+    public void recolourParallel(MBFImage rgbImage) {
+        RowTiles.runParallel(rgbImage.getHeight(), recolourTask(rgbImage));
+    }
+
+    //Centroid index of every pixel of an RGB image, in row-major order
+    public int[] assign(MBFImage rgbImage) {
+        final float[][] red = rgbImage.getBand(0).pixels;
+        final float[][] green = rgbImage.getBand(1).pixels;
+        final float[][] blue = rgbImage.getBand(2).pixels;
+        final int width = rgbImage.getWidth();
+        final int[] assignments = new int[width * rgbImage.getHeight()];
+
+        RowTiles.runParallel(rgbImage.getHeight(), new RowTiles.Task() {
+            @Override
+            public void process(int y0, int y1) {
+                float[] lab = new float[3];
+                for (int y = y0; y < y1; y++) {
+                    for (int x = 0; x < width; x++) {
+                        assignments[y * width + x] = lookup(key(red[y][x], green[y][x], blue[y][x]), lab);
+                    }
+                }
+            }
+        });
+        return assignments;
+    }
+
+    private RowTiles.Task recolourTask(MBFImage rgbImage) {
+        final float[][] red = rgbImage.getBand(0).pixels;
+        final float[][] green = rgbImage.getBand(1).pixels;
+        final float[][] blue = rgbImage.getBand(2).pixels;
+        final int width = rgbImage.getWidth();
+
+        return new RowTiles.Task() {
+            @Override
+            public void process(int y0, int y1) {
+                float[] lab = new float[3];
+                for (int y = y0; y < y1; y++) {
+                    for (int x = 0; x < width; x++) {
+                        float[] colour = rgbCentroids[lookup(key(red[y][x], green[y][x], blue[y][x]), lab)];
+                        red[y][x] = colour[0];
+                        green[y][x] = colour[1];
+                        blue[y][x] = colour[2];
+                    }
+                }
+            }
+        };
+    }
+
+    //Packs an RGB colour (values 0-1) into a 24-bit key of 8-bit channels
+    static int key(float r, float g, float b) {
+        return (channel(r) << 16) | (channel(g) << 8) | channel(b);
+    }
+
+    private static int channel(float v) {
+        int c = Math.round(v * 255f);
+        return c < 0 ? 0 : (c > 255 ? 255 : c);
+    }
+}
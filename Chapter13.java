@@ -1,4 +1,3 @@
-import org.apache.commons.vfs2.FileSystemException;
 import org.openimaj.data.dataset.GroupedDataset;
 import org.openimaj.data.dataset.ListDataset;
 import org.openimaj.data.dataset.VFSGroupDataset;
@@ -11,15 +10,38 @@ import org.openimaj.image.FImage;
 import org.openimaj.image.ImageUtilities;
 import org.openimaj.image.model.EigenImages;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
 
 public class Chapter13 {
 
-    public static void main(String[] args) throws FileSystemException {
+    public static void main(String[] args) throws IOException {
 
         //Loading the AT&T "The Database of Faces" dataset
-        VFSGroupDataset<FImage> dataset =
-                new VFSGroupDataset<>("zip:http://datasets.openimaj.org/att_faces.zip", ImageUtilities.FIMAGE_READER);
+        //VFSGroupDataset<FImage> dataset =
+        //        new VFSGroupDataset<>("zip:http://datasets.openimaj.org/att_faces.zip", ImageUtilities.FIMAGE_READER);
+
+        //The faces are downloaded, unzipped and decoded once into a PackedImageDataset in the temporary directory;
+        //later runs map that file instead of doing it all again. A file that cannot be opened, or does not hold the 40
+        //people's 10 faces each, is written again
+        File packedFaces = new File(System.getProperty("java.io.tmpdir"), "att_faces.pimg");
+        PackedImageDataset packed = null;
+        if (packedFaces.exists()) {
+            try {
+                packed = PackedImageDataset.open(packedFaces);
+            } catch (IOException e) {
+                System.err.println("Packing the faces again: " + e.getMessage());
+            }
+        }
+        if (packed == null || packed.getEncoding() != PackedImageDataset.Encoding.UINT8
+                || packed.getGroupNames().size() != 40 || packed.size() != 400) {
+            PackedImageDataset.write(packedFaces, new VFSGroupDataset<FImage>(
+                    "zip:http://datasets.openimaj.org/att_faces.zip", ImageUtilities.FIMAGE_READER),
+                    PackedImageDataset.Encoding.UINT8);
+            packed = PackedImageDataset.open(packedFaces);
+        }
+        GroupedDataset<String, ListDataset<FImage>, FImage> dataset = packed.asGrouped();
 
         //Splitting the dataset into 2 parts: one for training, and one for testing using GroupedRandomSplitter class
         int nTraining = 5;
@@ -36,12 +36,18 @@ public class Chapter2 {
         MBFImage clone = image.clone();
 
         //Going through all pixels in image one by one to set the blue and green pixels to black
+        /*
         for (int y = 0; y < image.getHeight(); y++) {
             for (int x = 0; x < image.getWidth(); x++) {
                 clone.getBand(1).pixels[y][x] = 0;
                 clone.getBand(2).pixels[y][x] = 0;
             }
         }
+        */
+
+        //The loop above looks the band up again for every pixel; BandOps fills each band a whole row at a time
+        BandOps.PARALLEL.fill(clone, 1, 0f);
+        BandOps.PARALLEL.fill(clone, 2, 0f);
         DisplayUtilities.display(clone, jFrame);
 
         //The fill() function does exactly the same as the two for-loops above
@@ -51,7 +57,10 @@ public class Chapter2 {
 
         //Using the Canny Edge Detector on a new image:
         MBFImage edgeDetectionImage = image.clone();
-        edgeDetectionImage.processInplace(new CannyEdgeDetector());
+        //edgeDetectionImage.processInplace(new CannyEdgeDetector());
+        //The same edge map as CannyEdgeDetector (CannyBenchmark -check compares the two on this image), with tiles of
+        //each band processed in parallel
+        edgeDetectionImage.processInplace(new ParallelCannyEdgeDetector());
         DisplayUtilities.display(edgeDetectionImage, jFrame);
 
         //Using the Image class drawing functions to draw figures with text on image
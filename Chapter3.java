@@ -1,19 +1,14 @@
 import org.openimaj.image.DisplayUtilities;
 import org.openimaj.image.ImageUtilities;
 import org.openimaj.image.MBFImage;
-import org.openimaj.image.colour.ColourSpace;
-import org.openimaj.image.connectedcomponent.GreyscaleConnectedComponentLabeler;
-import org.openimaj.image.pixel.ConnectedComponent;
-import org.openimaj.image.processor.PixelProcessor;
-import org.openimaj.image.segmentation.FelzenszwalbHuttenlocherSegmenter;
-import org.openimaj.image.segmentation.SegmentationUtilities;
+import org.openimaj.image.colour.RGBColour;
+import org.openimaj.image.pixel.Pixel;
 import org.openimaj.image.typography.hershey.HersheyFont;
 import org.openimaj.ml.clustering.FloatCentroidsResult;
-import org.openimaj.ml.clustering.assignment.HardAssigner;
-import org.openimaj.ml.clustering.kmeans.FloatKMeans;
 
 import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -25,10 +20,18 @@ public class Chapter3 {
         MBFImage image = ImageUtilities.readMBF(new URL("https://scontent-lhr3-1.cdninstagram.com/vp/b0ae9ae8c79ba287989fad548763535c/5C78C45D/t51.2885-15/e35/35324506_213131365971383_2531439645359603712_n.jpg"));
         DisplayUtilities.display(image, "Original image");
 
+        //Keeping the RGB image: the centroid lookup table further down recolours it directly
+        MBFImage rgbImage = image;
+
         //Applying colour-space transform
-        image = ColourSpace.convert(image, ColourSpace.CIE_Lab);
+        //image = ColourSpace.convert(image, ColourSpace.CIE_Lab);
+        //CIELab does the same conversion with precomputed gamma and cube-root tables, in parallel tiles of rows.
+        //It makes a Lab copy (rather than converting in place with CIELab.rgbToLabInplace) because the RGB image is
+        //recoloured by the lookup table further down
+        image = CIELab.convertToLab(image);
 
 
+        /*
         //Construct K-means algorithm with 4 clusters with 30 iterations (default) - add second int parameter to set #iterations
         FloatKMeans cluster = FloatKMeans.createExact(4);
 
@@ -37,6 +40,14 @@ public class Chapter3 {
 
         //Grouping the pixels into the selected number of classes
         FloatCentroidsResult result = cluster.cluster(imageData);
+        */
+
+        //The exact K-means above copies every pixel into a W*H x 3 array and runs all its iterations on one thread.
+        //The mini-batch version clusters random samples of pixels read straight from the bands, in parallel,
+        //and stops as soon as the centroids stop moving (ColourKMeans.createExact(4) gives the full-pass behaviour)
+        ColourKMeans cluster = ColourKMeans.createMiniBatch(4);
+        FloatCentroidsResult result = cluster.cluster(image);
+        System.out.println("K-means iterations: " + cluster.getIterations());
 
         //Printing the coordinates of each centroid (average location of all the points belonging to the class)
         final float[][] centroids = result.getCentroids();
@@ -45,7 +56,8 @@ public class Chapter3 {
         }
 
         //Class HardAssigner assigns each pixel in the image to its respective class using the centroids
-        final HardAssigner<float[], ?, ?> assigner = result.defaultHardAssigner();
+        //final HardAssigner<float[], ?, ?> assigner = result.defaultHardAssigner();
+        //(only the commented-out loops below used it; the lookup table further down assigns the colours itself)
 
         //Going through each pixel one by one and assigning it the class it belongs to
 
@@ -62,6 +74,7 @@ public class Chapter3 {
         //Exercise 1: The PixelProcessor
         //Processing the image in place (substitutes the above outer for loops)
 
+        /*
         image.processInplace(new PixelProcessor<Float[]>() {
             @Override
             public Float[] processPixel(Float[] current) {
@@ -82,6 +95,19 @@ public class Chapter3 {
                 return ans;
             }
         });
+        */
+
+        //The PixelProcessor above creates a float[] and a Float[] for every pixel and boxes every value,
+        //so on large images most of the time goes into allocation and garbage collection.
+        //PixelKernels works on the band arrays directly, reusing one float[] per tile of rows,
+        //and processes the tiles in parallel
+        //PixelKernels.applyParallel(image, new PixelKernels.NearestCentroidKernel(centroids));
+
+        //A photo only uses a small part of the 16.7M possible 8-bit colours, so instead of assigning every pixel
+        //the class of each distinct colour (including its conversion to CIE Lab) is worked out once and stored
+        //in a lookup table; the original RGB image is then recoloured with the centroids converted back to RGB
+        CentroidLookupTable lookupTable = new CentroidLookupTable(centroids);
+        lookupTable.recolourParallel(rgbImage);
 
         //What are the advantages and disadvantages of using a PixelProcessor?
 
@@ -97,17 +123,23 @@ public class Chapter3 {
 
 
         //Converting the image back to RGB colour space (for displaying purposes)
-        image = ColourSpace.convert(image, ColourSpace.RGB);
+        //image = ColourSpace.convert(image, ColourSpace.RGB);
+        //Not needed any more: the lookup table has already written the RGB centroid colours into the original image
+        image = rgbImage;
         DisplayUtilities.display(image);
 
 
         //A segment is a group of neighbour pixels with the same class
         //A set of pixels representing a segment is a connected component
         //GreyscaleConnectedComponentLabeler class finds the connected components
-        GreyscaleConnectedComponentLabeler labeler = new GreyscaleConnectedComponentLabeler();
+        //GreyscaleConnectedComponentLabeler labeler = new GreyscaleConnectedComponentLabeler();
 
         //flatten() method on MBFImage merges the colours into grey values by averaging their RGB values
-        List<ConnectedComponent> components = labeler.findComponents(image.flatten());
+        //List<ConnectedComponent> components = labeler.findComponents(image.flatten());
+
+        //ParallelComponentLabeler finds the same components on tiles of rows in parallel and returns a label map
+        //with the area, centroid and bounding box of each component, rather than a set of Pixel objects per component
+        ParallelComponentLabeler.Components components = new ParallelComponentLabeler().findComponents(image.flatten());
 
         //Exercise 2: A real segmentation algorithm
 
@@ -115,18 +147,44 @@ public class Chapter3 {
         - Takes considerably more time to run, but results in more defined segments
          */
 
-        FelzenszwalbHuttenlocherSegmenter<MBFImage> fhSegmenter = new FelzenszwalbHuttenlocherSegmenter<>();
-        fhSegmenter.segment(image);
+        //FelzenszwalbHuttenlocherSegmenter<MBFImage> fhSegmenter = new FelzenszwalbHuttenlocherSegmenter<>();
+        //fhSegmenter.segment(image);
 
-        SegmentationUtilities.renderSegments(image, components);
+        //FastFelzenszwalbHuttenlocherSegmenter gives the same segments using primitive edge arrays,
+        //parallel edge weights and a parallel radix sort of the edges (see FHSegmentationBenchmark)
+        FastFelzenszwalbHuttenlocherSegmenter fhSegmenter = new FastFelzenszwalbHuttenlocherSegmenter();
+        ParallelComponentLabeler.Components segments = fhSegmenter.segment(image);
+        System.out.println("Felzenszwalb-Huttenlocher segments: " + segments.size());
+
+        //SegmentationUtilities.renderSegments(image, components);
+        components.render(image);
 
         //Drawing an image with the components numbered on it
         int i = 0;
+        /*
         for (ConnectedComponent comp : components) {
             if (comp.calculateArea() < 50) //only render numbers for regions that are over 50 pixels
                 continue;
             image.drawText("Point:" + (i++), comp.calculateCentroidPixel(), HersheyFont.TIMES_MEDIUM, 20);
         }
+        */
+        /*
+        for (int c = 0; c < components.size(); c++) {
+            if (components.area(c) < 50) //only render numbers for regions that are over 50 pixels
+                continue;
+            image.drawText("Point:" + (i++), components.centroidPixel(c), HersheyFont.TIMES_MEDIUM, 20);
+        }
+        */
+        //The labels are collected and drawn in one call from cached glyph masks, rather than stroking each one
+        List<String> labels = new ArrayList<>();
+        List<Pixel> positions = new ArrayList<>();
+        for (int c = 0; c < components.size(); c++) {
+            if (components.area(c) < 50) //only render numbers for regions that are over 50 pixels
+                continue;
+            labels.add("Point:" + (i++));
+            positions.add(components.centroidPixel(c));
+        }
+        GlyphCache.SHARED.drawTextAll(image, labels, positions, HersheyFont.TIMES_MEDIUM, 20, RGBColour.WHITE);
         DisplayUtilities.display(image, "FelzenszwalbHuttenlocherSegmenter output image");
 
     }
@@ -6,9 +6,14 @@ import org.openimaj.image.pixel.statistics.HistogramModel;
 import org.openimaj.math.statistics.distribution.MultidimensionalHistogram;
 
 import javax.swing.*;
+import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class Chapter4 {
@@ -26,13 +31,42 @@ public class Chapter4 {
         List<MultidimensionalHistogram> histograms = new ArrayList<>(); //This list holds the histograms for each image in the array above
 
         //A histogram model with 4 bins required for each dimension (3 for the red, green and blue values of a pixel)
-        HistogramModel model = new HistogramModel(4, 4, 4);
+        //HistogramModel model = new HistogramModel(4, 4, 4);
 
         //Generating and storing the histograms for each image from the array
+        /*
         for (URL u : imageURLs) {
             model.estimateModel(ImageUtilities.readMBF(u));
             histograms.add(model.histogram.clone());
         }
+        */
+
+        //BatchHistogramExtractor gives the same histograms, decoding and binning the images in parallel
+        //without building an MBFImage for each of them
+        int[] bins = {4, 4, 4};
+        BatchHistogramExtractor extractor = new BatchHistogramExtractor(bins);
+
+        //The histograms are saved to a HistogramStore the first time, and later runs map them from the file
+        //instead of downloading and decoding the images again. The file is named after a hash of the URLs and the
+        //bins, so changing either makes a new store; one that cannot be opened or does not match is made again.
+        //The bins are stored as doubles (FLOAT64), so the distances printed below are the same on every run
+        File storeFile = new File(System.getProperty("java.io.tmpdir"),
+                "chapter4-histograms-" + storeKey(imageURLs, bins) + ".bin");
+        HistogramStore store = null;
+        if (storeFile.exists()) {
+            try {
+                store = HistogramStore.open(storeFile);
+            } catch (IOException e) {
+                System.err.println("Extracting the histograms again: " + e.getMessage());
+            }
+        }
+        if (store != null && store.size() == imageURLs.length && Arrays.equals(store.getBins(), bins)
+                && store.getEncoding() == HistogramStore.Encoding.FLOAT64) {
+            histograms.addAll(store.getAll());
+        } else {
+            histograms.addAll(extractor.extract(Arrays.asList(imageURLs)));
+            HistogramStore.write(storeFile, histograms, bins, HistogramStore.Encoding.FLOAT64);
+        }
 
 
         //Going through each pair of images and comparing their histograms using the Euclidean distance measure
@@ -74,6 +108,7 @@ public class Chapter4 {
 
         //This code is for exercise 2:
         //Depending on the comparison technique used, the two most similar images are displayed
+        /*
         double minDistance = Double.MAX_VALUE;
         int first = 0;
         int second = 0;
@@ -89,6 +124,13 @@ public class Chapter4 {
                 }
             }
         }
+        */
+        //HistogramDistanceMatrix finds the closest pair from the histograms packed into one array, comparing blocks
+        //of pairs in parallel, and keeps only the best pairs rather than every distance
+        HistogramDistanceMatrix.Pair closest =
+                new HistogramDistanceMatrix(histograms, DoubleFVComparison.EUCLIDEAN).closestPairs(1).get(0);
+        int first = closest.first;
+        int second = closest.second;
 
 
         MBFImage firstImage = ImageUtilities.readMBF(imageURLs[first]);
@@ -109,4 +151,22 @@ public class Chapter4 {
         */
     }
 
+    //The first 16 hex digits of a SHA-256 of the URLs, in order, and the bins
+    private static String storeKey(URL[] urls, int[] bins) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        for (URL url : urls) {
+            digest.update((url.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        digest.update(Arrays.toString(bins).getBytes(StandardCharsets.UTF_8));
+        StringBuilder hex = new StringBuilder();
+        for (byte b : Arrays.copyOf(digest.digest(), 8)) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
 }
@@ -8,6 +8,7 @@ import org.openimaj.image.colour.RGBColour;
 import org.openimaj.image.feature.local.engine.DoGSIFTEngine;
 import org.openimaj.image.feature.local.keypoints.Keypoint;
 import org.openimaj.math.geometry.transforms.FundamentalRefinement;
+import org.openimaj.math.geometry.transforms.HomographyModel;
 import org.openimaj.math.geometry.transforms.HomographyRefinement;
 import org.openimaj.math.geometry.transforms.estimation.RobustAffineTransformEstimator;
 import org.openimaj.math.geometry.transforms.estimation.RobustFundamentalEstimator;
@@ -17,6 +18,7 @@ import org.openimaj.math.model.fit.LMedS;
 import org.openimaj.math.model.fit.RANSAC;
 import org.openimaj.math.model.fit.residuals.ResidualCalculator;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 
@@ -28,14 +30,32 @@ public class Chapter5 {
         MBFImage target = ImageUtilities.readMBF(new URL("http://static.openimaj.org/media/tutorial/target.jpg"));
 
         //Using a difference-of-Gaussian feature detector, described with a SIFT descriptor.
+        //DoGSIFTEngine engine = new DoGSIFTEngine();
+        //LocalFeatureList<Keypoint> queryKeypoints = engine.findFeatures(query.flatten());
+        //LocalFeatureList<Keypoint> targetKeypoints = engine.findFeatures(target.flatten());
+
+        //The KeypointCache keeps DoGSIFTEngine's keypoints on disk by image content, so later runs load them instead of
+        //extracting them again. (ParallelDoGSIFTEngine is faster but does not find the same keypoints; see
+        //SIFTBenchmark -check)
         DoGSIFTEngine engine = new DoGSIFTEngine();
-        LocalFeatureList<Keypoint> queryKeypoints = engine.findFeatures(query.flatten());
-        LocalFeatureList<Keypoint> targetKeypoints = engine.findFeatures(target.flatten());
+        KeypointCache cache = new KeypointCache(new File(System.getProperty("java.io.tmpdir"), "chapter5-keypoints"),
+                64L << 20, engine, "defaults");
+        LocalFeatureList<Keypoint> queryKeypoints = cache.findFeatures(query.flatten());
+        LocalFeatureList<Keypoint> targetKeypoints = cache.findFeatures(target.flatten());
 
         //Comparing based on a given Keypoint in the query and a Keypoint that is closest in the target
 
         //Setting up a matcher to compare keypoints
-        LocalFeatureMatcher<Keypoint> matcher = new BasicMatcher<>(80);
+        //LocalFeatureMatcher<Keypoint> matcher = new BasicMatcher<>(80);
+
+        //ForestKeypointMatcher indexes the query keypoints in a KD-forest so each target keypoint is compared with a
+        //few hundred of them instead of all of them. Its ratio test is much stricter than BasicMatcher(80)'s: it keeps a
+        //match only when the nearest keypoint is under 0.8 times as far as the second nearest (Lowe's ratio), while
+        //BasicMatcher compares squared distances, accepting when 100 * d1^2 < 80 * 80 * d2^2, i.e. d1 < 8 * d2, which
+        //lets through every nearest neighbour with a distinct second nearest. So fewer, more reliable matches are drawn
+        //than with BasicMatcher; new ForestKeypointMatcher<Keypoint>(8f) (which squares its ratio in the same way) would
+        //accept as loosely as BasicMatcher(80) did
+        LocalFeatureMatcher<Keypoint> matcher = new ForestKeypointMatcher<Keypoint>();
         matcher.setModelFeatures(queryKeypoints);
         matcher.findMatches(targetKeypoints);
 
@@ -65,8 +85,16 @@ public class Chapter5 {
 
         //Second model:
         //Draws a much more precise rectangle around the matching points
+        /*
         RobustHomographyEstimator modelFitter = new RobustHomographyEstimator(0.5, 1500,
                 new RANSAC.PercentageInliersStoppingCondition(0.5), HomographyRefinement.NONE);
+        */
+
+        //ParallelRobustEstimator scores the hypotheses in parallel batches on packed coordinates, draws the first
+        //ones from the best matches (PROSAC) and stops once more iterations are unlikely to help
+        ParallelRobustEstimator<HomographyModel> modelFitter = ParallelRobustEstimator.ransac(
+                ParallelRobustEstimator.Geometry.HOMOGRAPHY, new HomographyModel(), 0.5, 1500, 0.99);
+        modelFitter.setStopInlierFraction(0.5);
         matcher = new ConsistentLocalFeatureMatcher2d<>(
                 new BasicTwoWayMatcher<Keypoint>(), modelFitter);
 
@@ -118,6 +146,10 @@ public class Chapter5 {
 
        For Multiple Matches Matcher with count >= 4 I get java.lang.OutOfMemoryError: Java heap space -> max = 3
        new MultipleMatchesMatcher<>(3, 8), modelFitter);
+
+       BoundedMultipleMatchesMatcher keeps its candidates and the matches made from them within maxBytes (dropping
+       the least distinctive ones), so with 16MB it keeps at most 16MB / 48 bytes = 349525 matches whatever the count
+       new BoundedMultipleMatchesMatcher<Keypoint>(10, 0.8f, 16 << 20), modelFitter);
         */
 
 
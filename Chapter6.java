@@ -1,3 +1,5 @@
+import org.openimaj.data.dataset.GroupedDataset;
+import org.openimaj.data.dataset.ListDataset;
 import org.openimaj.data.dataset.MapBackedDataset;
 import org.openimaj.data.dataset.VFSGroupDataset;
 import org.openimaj.data.dataset.VFSListDataset;
@@ -9,6 +11,7 @@ import org.openimaj.image.dataset.BingImageDataset;
 import org.openimaj.util.api.auth.DefaultTokenFactory;
 import org.openimaj.util.api.auth.common.BingAPIToken;
 
+import java.io.File;
 import java.util.Map;
 
 public class Chapter6 {
@@ -18,10 +21,29 @@ public class Chapter6 {
 
       //Creating a list dataset from a directory of images on the computer
       String path = "/home/yoanapaleva/Documents/Computer-Vision/dataset";
+      //VFSListDataset<FImage> images =
+      //        new VFSListDataset<FImage>(path, ImageUtilities.FIMAGE_READER);
+
+      //Reading through the shared DecodedImageCache, so showing the dataset again (or another dataset of the same
+      //files) does not decode each image again
       VFSListDataset<FImage> images =
-              new VFSListDataset<FImage>(path, ImageUtilities.FIMAGE_READER);
+              new VFSListDataset<FImage>(path, DecodedImageCache.SHARED.reader(ImageUtilities.FIMAGE_READER));
 
       System.out.println("Number of items in the dataset: " + images.size());
+
+      //Going through every image in order, with PrefetchingIterator reading and decoding the next ones on other threads
+      //while the current one is looked at (closed in the finally, so its threads stop if the loop ends early)
+      int largest = 0;
+      PrefetchingIterator<FImage> prefetched = new PrefetchingIterator<FImage>(images);
+      try {
+          while (prefetched.hasNext()) {
+              FImage image = prefetched.next();
+              largest = Math.max(largest, image.getWidth() * image.getHeight());
+          }
+      } finally {
+          prefetched.close();
+      }
+      System.out.println("Pixels in the largest image: " + largest);
       DisplayUtilities.display(images.getRandomInstance(), "A random image from the dataset");
 
       //Displaying all images in a window
@@ -29,12 +51,27 @@ public class Chapter6 {
 
       //Creating an image dataset from images in a zip file which is hosted on a web-server
       VFSListDataset<FImage> faces =
-              new VFSListDataset<FImage>("zip:http://datasets.openimaj.org/att_faces.zip", ImageUtilities.FIMAGE_READER);
+              new VFSListDataset<FImage>("zip:http://datasets.openimaj.org/att_faces.zip",
+                      DecodedImageCache.SHARED.reader(ImageUtilities.FIMAGE_READER));
       DisplayUtilities.display("ATT faces", faces);
 
+      //With a local copy of the zip, ZipDataset reads each image straight from the file through an index of the zip's
+      //central directory (saved beside it as att_faces.zip.idx), so random or per-person access reads nothing else
+      File facesZip = new File("/home/yoanapaleva/Documents/Computer-Vision/att_faces.zip");
+      if (facesZip.exists()) {
+          //closed (with the archive) once the image has been read
+          try (ZipIndex facesIndex = ZipIndex.open(facesZip)) {
+              GroupedDataset<String, ListDataset<FImage>, FImage> indexedFaces =
+                      ZipDataset.grouped(facesIndex, ImageUtilities.FIMAGE_READER);
+              DisplayUtilities.display(indexedFaces.getRandomInstance("s1"), "A random image of person s1");
+          }
+      }
+
       //A grouped dataset maps a set of keys (directory name) to sub-datasets
+      //(the same faces as above, so with the cache they are not decoded again, here or in Exercise 1)
       VFSGroupDataset<FImage> groupedFaces =
-              new VFSGroupDataset<FImage>("zip:http://datasets.openimaj.org/att_faces.zip", ImageUtilities.FIMAGE_READER);
+              new VFSGroupDataset<FImage>("zip:http://datasets.openimaj.org/att_faces.zip",
+                      DecodedImageCache.SHARED.reader(ImageUtilities.FIMAGE_READER));
 
 
       //Display all the images from each directory in a window
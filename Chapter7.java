@@ -7,6 +7,8 @@ import org.openimaj.image.processing.convolution.CompassOperators;
 import org.openimaj.image.processing.convolution.FFastGaussianConvolve;
 import org.openimaj.image.processing.edges.CannyEdgeDetector;
 import org.openimaj.image.processing.edges.CannyEdgeDetector2;
+import org.openimaj.util.function.Function;
+import org.openimaj.util.function.Operation;
 import org.openimaj.video.VideoDisplay;
 import org.openimaj.video.VideoDisplayListener;
 import org.openimaj.video.xuggle.XuggleVideo;
@@ -16,7 +18,7 @@ import java.net.URL;
 
 public class Chapter7 {
 
-    public static void main(String[] args) throws MalformedURLException {
+    public static void main(String[] args) throws MalformedURLException, InterruptedException {
 
 
         //Loading a video from url and displaying it
@@ -24,9 +26,38 @@ public class Chapter7 {
         VideoDisplay<MBFImage> display = VideoDisplay.createVideoDisplay(video);
 
         //Iterating through every frame of the video and applying a Canny edge detector
+        /*
         for (MBFImage mbfImage : video) {
             DisplayUtilities.displayName(mbfImage.process(new CannyEdgeDetector()), "videoFrames");
         }
+        */
+
+        //One ParallelCannyEdgeDetector for the whole video: it processes tiles of each frame in parallel
+        //and keeps its buffers from one frame to the next instead of allocating them for every frame
+        /*
+        ParallelCannyEdgeDetector canny = new ParallelCannyEdgeDetector();
+        for (MBFImage mbfImage : video) {
+            DisplayUtilities.displayName(mbfImage.process(canny), "videoFrames");
+        }
+        */
+
+        //The same through a VideoPipeline: decoding, the edge detection and the display each run on a thread of their
+        //own, so the next frames are decoded and processed while one is being shown (with the frames kept in order)
+        final ParallelCannyEdgeDetector canny = new ParallelCannyEdgeDetector();
+        VideoPipeline<MBFImage> pipeline = new VideoPipeline<MBFImage>(video);
+        pipeline.addStage("canny", new Function<MBFImage, MBFImage>() {
+            @Override
+            public MBFImage apply(MBFImage frame) {
+                return frame.processInplace(canny);
+            }
+        });
+        pipeline.run(new Operation<MBFImage>() {
+            @Override
+            public void perform(MBFImage frame) {
+                DisplayUtilities.displayName(frame, "videoFrames");
+            }
+        });
+        System.out.println("Canny: " + pipeline.getLatency("canny"));
 
         //Using a listener to apply different processing techniques to the video
         display.addVideoListener(
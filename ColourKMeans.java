@@ -0,0 +1,266 @@
+import org.openimaj.image.MBFImage;
+import org.openimaj.ml.clustering.FloatCentroidsResult;
+import org.openimaj.util.function.Operation;
+import org.openimaj.util.parallel.Parallel;
+
+import java.util.Random;
+
+//K-means colour clustering that reads pixels straight from the band arrays of an image,
+//so the W*H x 3 copy made by getPixelVectorNative() is never built and memory use does not grow with the image.
+//Two modes are available:
+//  - mini-batch: each iteration assigns a random sample of pixels and moves every centroid towards the
+//    mean of its sampled pixels with a per-centroid learning rate (1 / number of pixels it has seen so far)
+//  - exact: each iteration assigns every pixel and moves the centroids to the mean of their pixels (as FloatKMeans)
+//Assignment and the centroid sums are computed in parallel chunks; iterations stop early once no centroid
+//moves further than the tolerance
+public class ColourKMeans {
+
+    public static final int DEFAULT_BATCH_SIZE = 10000;
+    public static final int DEFAULT_MINI_BATCH_ITERATIONS = 100;
+    public static final int DEFAULT_EXACT_ITERATIONS = 30;
+    public static final float DEFAULT_TOLERANCE = 1e-3f;
+
+    //Pixels drawn per centroid for the k-means++ initialisation
+    private static final int INIT_SAMPLES_PER_CENTROID = 64;
+
+    private final int k;
+    private final int batchSize;
+    private final int maxIterations;
+    private final float tolerance;
+    private final Random random;
+    private int iterations;
+
+    //batchSize <= 0 means every pixel is used in every iteration (exact mode)
+    public ColourKMeans(int k, int batchSize, int maxIterations, float tolerance, long seed) {
+        if (k <= 0) {
+            throw new IllegalArgumentException("k must be positive");
+        }
+        this.k = k;
+        this.batchSize = batchSize;
+        this.maxIterations = maxIterations;
+        this.tolerance = tolerance;
+        this.random = new Random(seed);
+    }
+
+    public static ColourKMeans createMiniBatch(int k) {
+        return new ColourKMeans(k, DEFAULT_BATCH_SIZE, DEFAULT_MINI_BATCH_ITERATIONS, DEFAULT_TOLERANCE, 1L);
+    }
+
+    public static ColourKMeans createExact(int k) {
+        return new ColourKMeans(k, 0, DEFAULT_EXACT_ITERATIONS, DEFAULT_TOLERANCE, 1L);
+    }
+
+    //Number of iterations run by the last call to cluster()
+    public int getIterations() {
+        return iterations;
+    }
+
+    public FloatCentroidsResult cluster(MBFImage image) {
+        return cluster(PixelKernels.bandPixels(image));
+    }
+
+    public FloatCentroidsResult cluster(float[][][] bands) {
+        //there would be no pixels to sample the first centroids from
+        if (bands.length == 0 || bands[0].length == 0 || bands[0][0].length == 0) {
+            throw new IllegalArgumentException("Cannot cluster an empty image: it has no bands or no pixels");
+        }
+        int width = bands[0][0].length;
+        long size = (long) width * bands[0].length;
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Image has too many pixels: " + size);
+        }
+        int nPixels = (int) size;
+        boolean miniBatch = batchSize > 0 && batchSize < nPixels;
+
+        float[][] centroids = initialise(bands, width, nPixels);
+        long[] seen = new long[k];
+
+        iterations = 0;
+        while (iterations < maxIterations) {
+            int[] sample = miniBatch ? sample(nPixels, batchSize) : null;
+            Partials partials = accumulate(bands, width, centroids, sample, nPixels);
+            iterations++;
+
+            float shift = miniBatch ? miniBatchUpdate(centroids, partials, seen) : exactUpdate(centroids, partials);
+            if (shift <= tolerance) {
+                break;
+            }
+        }
+
+        FloatCentroidsResult result = new FloatCentroidsResult();
+        result.centroids = centroids;
+        return result;
+    }
+
+    //Sums and counts of the pixels assigned to each centroid
+    private static class Partials {
+        final double[][] sums;
+        final long[] counts;
+
+        Partials(int k, int nBands) {
+            sums = new double[k][nBands];
+            counts = new long[k];
+        }
+
+        void add(Partials other) {
+            for (int c = 0; c < counts.length; c++) {
+                counts[c] += other.counts[c];
+                for (int b = 0; b < sums[c].length; b++) {
+                    sums[c][b] += other.sums[c][b];
+                }
+            }
+        }
+    }
+
+    //Assigns either the sampled pixels or (if sample is null) every pixel to its closest centroid,
+    //with each chunk of pixels accumulating into its own Partials which are merged at the end
+    private Partials accumulate(final float[][][] bands, final int width, float[][] centroids,
+                                final int[] sample, int nPixels) {
+        final int nItems = sample != null ? sample.length : nPixels;
+        final int nChunks = Math.max(1, Math.min(nItems / 1024, Runtime.getRuntime().availableProcessors() * 4));
+        final Partials[] chunkPartials = new Partials[nChunks];
+        final PixelKernels.NearestCentroidKernel nearest = new PixelKernels.NearestCentroidKernel(centroids);
+
+        Parallel.forIndex(0, nChunks, 1, new Operation<Integer>() {
+            @Override
+            public void perform(Integer chunk) {
+                int start = (int) ((long) nItems * chunk / nChunks);
+                int end = (int) ((long) nItems * (chunk + 1) / nChunks);
+                Partials partials = new Partials(k, bands.length);
+                float[] pixel = new float[bands.length];
+
+                for (int i = start; i < end; i++) {
+                    int index = sample != null ? sample[i] : i;
+                    int y = index / width;
+                    int x = index - y * width;
+                    for (int b = 0; b < bands.length; b++) {
+                        pixel[b] = bands[b][y][x];
+                    }
+
+                    int c = nearest.assign(pixel);
+                    partials.counts[c]++;
+                    for (int b = 0; b < bands.length; b++) {
+                        partials.sums[c][b] += pixel[b];
+                    }
+                }
+                chunkPartials[chunk] = partials;
+            }
+        });
+
+        Partials total = chunkPartials[0];
+        for (int i = 1; i < nChunks; i++) {
+            total.add(chunkPartials[i]);
+        }
+        return total;
+    }
+
+    //Moves each centroid to the mean of its pixels (centroids without pixels stay where they are)
+    //and returns the largest distance moved
+    private static float exactUpdate(float[][] centroids, Partials partials) {
+        float maxShift = 0;
+        for (int c = 0; c < centroids.length; c++) {
+            long count = partials.counts[c];
+            if (count == 0) {
+                continue;
+            }
+            float shift = 0;
+            for (int b = 0; b < centroids[c].length; b++) {
+                float value = (float) (partials.sums[c][b] / count);
+                float diff = value - centroids[c][b];
+                shift += diff * diff;
+                centroids[c][b] = value;
+            }
+            maxShift = Math.max(maxShift, shift);
+        }
+        return (float) Math.sqrt(maxShift);
+    }
+
+    //Applies the mini-batch update for all the batch's pixels at once: with n pixels summing to s
+    //and N pixels seen in total, the centroid c becomes c + (s - n * c) / N,
+    //i.e. the running mean of every pixel the centroid has been assigned so far
+    private static float miniBatchUpdate(float[][] centroids, Partials partials, long[] seen) {
+        float maxShift = 0;
+        for (int c = 0; c < centroids.length; c++) {
+            long count = partials.counts[c];
+            if (count == 0) {
+                continue;
+            }
+            seen[c] += count;
+            float shift = 0;
+            for (int b = 0; b < centroids[c].length; b++) {
+                float old = centroids[c][b];
+                float value = (float) (old + (partials.sums[c][b] - count * old) / seen[c]);
+                float diff = value - old;
+                shift += diff * diff;
+                centroids[c][b] = value;
+            }
+            maxShift = Math.max(maxShift, shift);
+        }
+        return (float) Math.sqrt(maxShift);
+    }
+
+    //Random pixel indices (with replacement)
+    private int[] sample(int nPixels, int count) {
+        int[] indices = new int[count];
+        for (int i = 0; i < count; i++) {
+            indices[i] = random.nextInt(nPixels);
+        }
+        return indices;
+    }
+
+    //k-means++ seeding over a small random sample of pixels: the first centroid is picked at random,
+    //each following one with probability proportional to its squared distance from the closest centroid so far
+    private float[][] initialise(float[][][] bands, int width, int nPixels) {
+        int nBands = bands.length;
+        int nSamples = Math.min(nPixels, k * INIT_SAMPLES_PER_CENTROID);
+        int[] indices = sample(nPixels, nSamples);
+
+        float[][] points = new float[nSamples][nBands];
+        for (int i = 0; i < nSamples; i++) {
+            int y = indices[i] / width;
+            int x = indices[i] - y * width;
+            for (int b = 0; b < nBands; b++) {
+                points[i][b] = bands[b][y][x];
+            }
+        }
+
+        float[][] centroids = new float[k][];
+        centroids[0] = points[random.nextInt(nSamples)].clone();
+
+        double[] distances = new double[nSamples];
+        for (int i = 0; i < nSamples; i++) {
+            distances[i] = Double.MAX_VALUE;
+        }
+
+        for (int c = 1; c < k; c++) {
+            double total = 0;
+            for (int i = 0; i < nSamples; i++) {
+                distances[i] = Math.min(distances[i], squaredDistance(points[i], centroids[c - 1]));
+                total += distances[i];
+            }
+
+            int chosen = random.nextInt(nSamples);
+            if (total > 0) {
+                double target = random.nextDouble() * total;
+                for (int i = 0; i < nSamples; i++) {
+                    target -= distances[i];
+                    if (target <= 0) {
+                        chosen = i;
+                        break;
+                    }
+                }
+            }
+            centroids[c] = points[chosen].clone();
+        }
+        return centroids;
+    }
+
+    private static double squaredDistance(float[] a, float[] b) {
+        double distance = 0;
+        for (int i = 0; i < a.length; i++) {
+            double diff = a[i] - b[i];
+            distance += diff * diff;
+        }
+        return distance;
+    }
+}
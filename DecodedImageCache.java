@@ -0,0 +1,248 @@
+import org.openimaj.image.Image;
+import org.openimaj.image.MBFImage;
+import org.openimaj.io.InputStreamObjectReader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+//Keeps decoded images in memory so a dataset shown or iterated again, or another dataset over the same files, does not
+//decode them again. reader() wraps an ImageUtilities reader (FIMAGE_READER, MBFIMAGE_READER...) and can be given to
+//any dataset in its place, e.g.
+//  new VFSListDataset<FImage>(path, DecodedImageCache.SHARED.reader(ImageUtilities.FIMAGE_READER))
+//The wrapped reader still reads each file's bytes, but looks them up by their SHA-256 (and the reader used) before
+//decoding, so the same picture hits whichever dataset or path it is read through.
+//The cache holds at most maxBytes of pixels (4 bytes a pixel per band, as FImage and MBFImage store them) and drops
+//the least recently used images past that. With spill set, dropped images are kept through SoftReferences until the
+//garbage collector needs the memory, and are moved back in if they are read again before that.
+//Images are mutable, so each read returns a copy of the cached image, which is still much cheaper than decoding it.
+//Thread safe: decoding happens outside the lock, so two threads reading the same new image may both decode it
+public class DecodedImageCache {
+
+    public static final long DEFAULT_MAX_BYTES = Math.min(256L << 20, Runtime.getRuntime().maxMemory() / 4);
+
+    //A cache shared by every dataset that does not need its own
+    public static final DecodedImageCache SHARED = new DecodedImageCache(DEFAULT_MAX_BYTES, true);
+
+    private final long maxBytes;
+    private final boolean spill;
+
+    //Least recently used first
+    private final LinkedHashMap<Key, Image<?, ?>> entries = new LinkedHashMap<Key, Image<?, ?>>(16, 0.75f, true);
+    //Images dropped from entries that the garbage collector has not taken yet
+    private final Map<Key, SpilledImage> spilled = new HashMap<Key, SpilledImage>();
+    private final ReferenceQueue<Image<?, ?>> collected = new ReferenceQueue<Image<?, ?>>();
+    private long totalBytes;
+    private long hits;
+    private long spillHits;
+    private long misses;
+    private long evictions;
+
+    public DecodedImageCache(long maxBytes, boolean spill) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes must not be negative");
+        }
+        this.maxBytes = maxBytes;
+        this.spill = spill;
+    }
+
+    //A reader that decodes with the given one only the images not in the cache
+    public <I extends Image<?, I>> InputStreamObjectReader<I> reader(final InputStreamObjectReader<I> reader) {
+        return new InputStreamObjectReader<I>() {
+            @Override
+            public I read(InputStream stream) throws IOException {
+                return DecodedImageCache.this.read(reader, stream);
+            }
+
+            @Override
+            public boolean canRead(InputStream stream, String name) {
+                return reader.canRead(stream, name);
+            }
+        };
+    }
+
+    private <I extends Image<?, I>> I read(InputStreamObjectReader<I> reader, InputStream stream) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1 << 16];
+        int n;
+        while ((n = stream.read(buffer)) > 0) {
+            digest.update(buffer, 0, n);
+            bytes.write(buffer, 0, n);
+        }
+        Key key = new Key(reader, digest.digest());
+
+        //the key holds the reader, so a cached image was made by this reader and is an I
+        @SuppressWarnings("unchecked")
+        I cached = (I) get(key);
+        if (cached != null) {
+            return cached.clone();
+        }
+        I image = reader.read(new ByteArrayInputStream(bytes.toByteArray()));
+        if (image != null) {
+            put(key, image.clone());
+        }
+        return image;
+    }
+
+    //Images read from the cache (including spilled ones)
+    public synchronized long getHits() {
+        return hits + spillHits;
+    }
+
+    //Images read from the spilled ones, after they had been dropped
+    public synchronized long getSpillHits() {
+        return spillHits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    //Images dropped to keep within maxBytes (spilled, when spill is set)
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    //The size of the images held, not counting spilled ones
+    public synchronized long getBytes() {
+        return totalBytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    //Number of images held, not counting spilled ones
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    //Number of spilled images the garbage collector has not taken yet
+    public synchronized int spilledSize() {
+        expunge();
+        return spilled.size();
+    }
+
+    //Drops every image, including the spilled ones; the counters are kept
+    public synchronized void clear() {
+        entries.clear();
+        spilled.clear();
+        totalBytes = 0;
+        expunge();
+    }
+
+    private synchronized Image<?, ?> get(Key key) {
+        expunge();
+        Image<?, ?> image = entries.get(key);
+        if (image != null) {
+            hits++;
+            return image;
+        }
+        SpilledImage reference = spilled.remove(key);
+        if (reference != null) {
+            image = reference.get();
+            if (image != null) {
+                spillHits++;
+                add(key, image);
+                return image;
+            }
+        }
+        misses++;
+        return null;
+    }
+
+    private synchronized void put(Key key, Image<?, ?> image) {
+        expunge();
+        //another thread may have decoded it meanwhile
+        if (!entries.containsKey(key)) {
+            spilled.remove(key);
+            add(key, image);
+        }
+    }
+
+    private void add(Key key, Image<?, ?> image) {
+        entries.put(key, image);
+        totalBytes += bytes(image);
+        evict();
+    }
+
+    //Drops the least recently used images until the total is within maxBytes
+    private void evict() {
+        Iterator<Map.Entry<Key, Image<?, ?>>> it = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<Key, Image<?, ?>> eldest = it.next();
+            totalBytes -= bytes(eldest.getValue());
+            it.remove();
+            evictions++;
+            if (spill) {
+                spilled.put(eldest.getKey(), new SpilledImage(eldest.getKey(), eldest.getValue(), collected));
+            }
+        }
+    }
+
+    //Forgets the spilled images the garbage collector has taken
+    private void expunge() {
+        SpilledImage reference;
+        while ((reference = (SpilledImage) collected.poll()) != null) {
+            if (spilled.get(reference.key) == reference) {
+                spilled.remove(reference.key);
+            }
+        }
+    }
+
+    private static long bytes(Image<?, ?> image) {
+        int bands = image instanceof MBFImage ? ((MBFImage) image).numBands() : 1;
+        return 4L * bands * image.getWidth() * image.getHeight();
+    }
+
+    private static final class Key {
+        private final Object reader;
+        private final byte[] digest;
+        private final int hash;
+
+        Key(Object reader, byte[] digest) {
+            this.reader = reader;
+            this.digest = digest;
+            this.hash = 31 * System.identityHashCode(reader) + Arrays.hashCode(digest);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return reader == other.reader && Arrays.equals(digest, other.digest);
+        }
+    }
+
+    private static final class SpilledImage extends SoftReference<Image<?, ?>> {
+        private final Key key;
+
+        SpilledImage(Key key, Image<?, ?> image, ReferenceQueue<Image<?, ?>> queue) {
+            super(image, queue);
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+import org.openimaj.image.MBFImage;
+import org.openimaj.image.colour.ColourSpace;
+import org.openimaj.image.pixel.ConnectedComponent;
+import org.openimaj.image.pixel.Pixel;
+import org.openimaj.image.segmentation.FelzenszwalbHuttenlocherSegmenter;
+import org.openimaj.time.Timer;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+//Times FastFelzenszwalbHuttenlocherSegmenter on synthetic images of 1 to 50 megapixels (or the sizes given as arguments)
+//The images are generated from a fixed seed, so every run segments the same pixels.
+//For images up to COMPARE_LIMIT pixels FelzenszwalbHuttenlocherSegmenter is also run, and the two sets of segments are
+//checked to be the same (bigger images take too long and too much memory with the original).
+//Run with a large heap for the bigger sizes, e.g. -Xmx8g
+public class FHSegmentationBenchmark {
+
+    private static final int COMPARE_LIMIT = 1000000;
+
+    public static void main(String[] args) {
+        double[] megapixels = {1, 5, 12, 25, 50};
+        if (args.length > 0) {
+            megapixels = new double[args.length];
+            for (int i = 0; i < args.length; i++) {
+                megapixels[i] = Double.parseDouble(args[i]);
+            }
+        }
+
+        FastFelzenszwalbHuttenlocherSegmenter fast = new FastFelzenszwalbHuttenlocherSegmenter();
+        System.out.println("MP\tsize\tsegments\tfast (ms)\toriginal (ms)\tsame segments");
+
+        for (double mp : megapixels) {
+            //4:3 images
+            int width = (int) Math.round(Math.sqrt(mp * 1e6 * 4 / 3));
+            int height = (int) Math.round(width * 3 / 4.0);
+            MBFImage image = syntheticImage(width, height, new Random(42));
+
+            Timer t1 = Timer.timer();
+            ParallelComponentLabeler.Components segments = fast.segment(image);
+            long fastTime = t1.duration();
+
+            String originalTime = "-";
+            String same = "-";
+            if ((long) width * height <= COMPARE_LIMIT) {
+                Timer t2 = Timer.timer();
+                List<ConnectedComponent> original = new FelzenszwalbHuttenlocherSegmenter<MBFImage>().segment(image);
+                originalTime = Long.toString(t2.duration());
+                same = Boolean.toString(samePartition(segments, original));
+            }
+
+            System.out.println(mp + "\t" + width + "x" + height + "\t" + segments.size() + "\t" + fastTime
+                    + "\t" + originalTime + "\t" + same);
+        }
+    }
+
+    //Rectangles of random colours and sizes on top of each other, with noise, so there are segments to find
+    static MBFImage syntheticImage(int width, int height, Random random) {
+        MBFImage image = new MBFImage(width, height, ColourSpace.RGB);
+        int nRectangles = Math.max(1, width * height / 20000);
+        for (int r = 0; r < nRectangles; r++) {
+            int x0 = random.nextInt(width);
+            int y0 = random.nextInt(height);
+            int x1 = Math.min(width, x0 + 10 + random.nextInt(300));
+            int y1 = Math.min(height, y0 + 10 + random.nextInt(300));
+            for (int b = 0; b < 3; b++) {
+                float value = random.nextFloat();
+                float[][] pixels = image.getBand(b).pixels;
+                for (int y = y0; y < y1; y++) {
+                    Arrays.fill(pixels[y], x0, x1, value);
+                }
+            }
+        }
+        for (int b = 0; b < 3; b++) {
+            float[][] pixels = image.getBand(b).pixels;
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    pixels[y][x] = Math.max(0, Math.min(1, pixels[y][x] + (random.nextFloat() - 0.5f) * 0.05f));
+                }
+            }
+        }
+        return image;
+    }
+
+    //True if each original component covers exactly the pixels of one segment
+    static boolean samePartition(ParallelComponentLabeler.Components segments, List<ConnectedComponent> original) {
+        if (segments.size() != original.size()) {
+            return false;
+        }
+        int[] matched = new int[segments.size()];
+        Arrays.fill(matched, -1);
+        for (int c = 0; c < original.size(); c++) {
+            int segment = -1;
+            for (Pixel p : original.get(c).getPixels()) {
+                int label = segments.getLabel(p.x, p.y);
+                if (segment == -1) {
+                    segment = label;
+                } else if (label != segment) {
+                    return false;
+                }
+            }
+            if (segment == -1 || matched[segment] != -1) {
+                return false;
+            }
+            matched[segment] = c;
+        }
+        return true;
+    }
+}
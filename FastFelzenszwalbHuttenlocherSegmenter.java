@@ -0,0 +1,244 @@
+import org.openimaj.image.FImage;
+import org.openimaj.image.MBFImage;
+import org.openimaj.image.processing.convolution.FGaussianConvolve;
+import org.openimaj.util.function.Operation;
+import org.openimaj.util.parallel.Parallel;
+
+import java.util.Arrays;
+
+//The Felzenszwalb-Huttenlocher graph segmentation of FelzenszwalbHuttenlocherSegmenter, with the same parameters
+//and the same segments, but built for large images:
+//  - edges are not objects: edge e joins pixel e / 4 to its right, lower, lower-right or upper-right neighbour
+//    (e % 4, the same order the original adds them in), so only a float[] of weights and an int[] of edge numbers are stored
+//  - edge weights are computed on tiles of rows in parallel
+//  - the edges are ordered with a parallel stable radix sort on the bits of their weights, giving the same order
+//    as the stable Collections.sort of the original
+//  - the disjoint-set forest is three primitive arrays (parent, size, threshold) rather than a map of Integers
+//Memory: per pixel, the edge weights take 16 bytes, the sorted edge numbers 16 and the radix sort's buffer another 16,
+//the disjoint-set forest 12 and the returned labels 4, so 64 bytes are allocated per pixel on top of the smoothed
+//copy of the image (4 bytes per band, so 12 for RGB): 76 bytes per pixel in all for an RGB image. The sort's buffer
+//is dropped before the forest is made, so at most 48 + 12 of them are live at once.
+//The merging itself has to visit the edges in order, so it stays on one thread
+public class FastFelzenszwalbHuttenlocherSegmenter {
+
+    private static final int RADIX_BITS = 8;
+    private static final int RADIX = 1 << RADIX_BITS;
+
+    private final float sigma;
+    private final float k;
+    private final int minSize;
+
+    //The defaults of FelzenszwalbHuttenlocherSegmenter
+    public FastFelzenszwalbHuttenlocherSegmenter() {
+        this(0.5f, 500f / 255f, 50);
+    }
+
+    public FastFelzenszwalbHuttenlocherSegmenter(float sigma, float k, int minSize) {
+        this.sigma = sigma;
+        this.k = k;
+        this.minSize = minSize;
+    }
+
+    public ParallelComponentLabeler.Components segment(MBFImage image) {
+        MBFImage smooth = image.process(new FGaussianConvolve(sigma));
+        final int width = smooth.getWidth();
+        final int height = smooth.getHeight();
+        final int nPixels = width * height;
+
+        final float[] weights = edgeWeights(PixelKernels.bandPixels(smooth), width, height);
+        int[] edges = sortEdges(weights);
+
+        //Disjoint-set forest with the merge threshold of each set's root
+        int[] parent = new int[nPixels];
+        int[] size = new int[nPixels];
+        float[] threshold = new float[nPixels];
+        for (int i = 0; i < nPixels; i++) {
+            parent[i] = i;
+            size[i] = 1;
+            threshold[i] = k;
+        }
+
+        //Merging in order of increasing weight while the edge is no heavier than the internal difference
+        //(+ k / size) of both sets; edges off the image have infinite weight and come last
+        for (int e : edges) {
+            float weight = weights[e];
+            if (weight == Float.POSITIVE_INFINITY) {
+                break;
+            }
+            int a = find(parent, e >> 2);
+            int b = find(parent, neighbour(e, width));
+            if (a != b && weight <= threshold[a] && weight <= threshold[b]) {
+                int root = union(parent, size, a, b);
+                threshold[root] = weight + k / size[root];
+            }
+        }
+
+        //Joining the components smaller than minSize to a neighbour, again in order of edge weight
+        for (int e : edges) {
+            if (weights[e] == Float.POSITIVE_INFINITY) {
+                break;
+            }
+            int a = find(parent, e >> 2);
+            int b = find(parent, neighbour(e, width));
+            if (a != b && (size[a] < minSize || size[b] < minSize)) {
+                union(parent, size, a, b);
+            }
+        }
+
+        //Numbering the segments in raster order (size is reused to map roots to segment numbers)
+        int[] labels = new int[nPixels];
+        int[] segmentOfRoot = size;
+        Arrays.fill(segmentOfRoot, -1);
+        int nSegments = 0;
+        for (int i = 0; i < nPixels; i++) {
+            int root = find(parent, i);
+            if (segmentOfRoot[root] < 0) {
+                segmentOfRoot[root] = nSegments++;
+            }
+            labels[i] = segmentOfRoot[root];
+        }
+        return new ParallelComponentLabeler.Components(labels, width, height, nSegments);
+    }
+
+    //Pixel at the other end of edge e
+    private static int neighbour(int e, int width) {
+        int pixel = e >> 2;
+        switch (e & 3) {
+            case 0:
+                return pixel + 1;
+            case 1:
+                return pixel + width;
+            case 2:
+                return pixel + width + 1;
+            default:
+                return pixel - width + 1;
+        }
+    }
+
+    //Colour distance along every edge; edges leaving the image get an infinite weight
+    private static float[] edgeWeights(final float[][][] bands, final int width, final int height) {
+        final float[] weights = new float[width * height * 4];
+        RowTiles.runParallel(height, new RowTiles.Task() {
+            @Override
+            public void process(int y0, int y1) {
+                for (int y = y0; y < y1; y++) {
+                    for (int x = 0; x < width; x++) {
+                        int e = (y * width + x) * 4;
+                        boolean right = x < width - 1;
+                        weights[e] = right ? diff(bands, x, y, x + 1, y) : Float.POSITIVE_INFINITY;
+                        weights[e + 1] = y < height - 1 ? diff(bands, x, y, x, y + 1) : Float.POSITIVE_INFINITY;
+                        weights[e + 2] = right && y < height - 1 ? diff(bands, x, y, x + 1, y + 1) : Float.POSITIVE_INFINITY;
+                        weights[e + 3] = right && y > 0 ? diff(bands, x, y, x + 1, y - 1) : Float.POSITIVE_INFINITY;
+                    }
+                }
+            }
+        });
+        return weights;
+    }
+
+    //Euclidean distance between two pixels over all bands (as in the original)
+    private static float diff(float[][][] bands, int x1, int y1, int x2, int y2) {
+        float sum = 0;
+        for (float[][] band : bands) {
+            float d = band[y1][x1] - band[y2][x2];
+            sum += d * d;
+        }
+        return (float) Math.sqrt(sum);
+    }
+
+    //Edge numbers in order of increasing weight, ties kept in edge order.
+    //Weights are never negative, so their IEEE bit patterns sort in the same order as the values and
+    //a least-significant-digit radix sort over the bits (8 at a time) orders them. Each pass counts digits
+    //per chunk of edges in parallel, then scatters the chunks in parallel to their precomputed offsets,
+    //which keeps the sort stable. Passes where every edge has the same digit are skipped
+    static int[] sortEdges(final float[] weights) {
+        final int n = weights.length;
+        int[] edges = new int[n];
+        int[] buffer = new int[n];
+        for (int i = 0; i < n; i++) {
+            edges[i] = i;
+        }
+
+        final int nChunks = Math.max(1, Math.min(n / 65536, Runtime.getRuntime().availableProcessors() * 4));
+        final int[][] counts = new int[nChunks][RADIX];
+
+        for (int shift = 0; shift < 32; shift += RADIX_BITS) {
+            final int[] from = edges;
+            final int[] to = buffer;
+            final int digitShift = shift;
+
+            Parallel.forIndex(0, nChunks, 1, new Operation<Integer>() {
+                @Override
+                public void perform(Integer chunk) {
+                    int[] count = counts[chunk];
+                    Arrays.fill(count, 0);
+                    for (int i = chunkStart(n, nChunks, chunk); i < chunkStart(n, nChunks, chunk + 1); i++) {
+                        count[digit(weights[from[i]], digitShift)]++;
+                    }
+                }
+            });
+
+            //Turning the counts into the position where each chunk writes its first edge of each digit
+            int offset = 0;
+            boolean skip = false;
+            for (int d = 0; d < RADIX; d++) {
+                int total = 0;
+                for (int c = 0; c < nChunks; c++) {
+                    int count = counts[c][d];
+                    counts[c][d] = offset + total;
+                    total += count;
+                }
+                if (total == n) {
+                    skip = true;
+                    break;
+                }
+                offset += total;
+            }
+            if (skip) {
+                continue;
+            }
+
+            Parallel.forIndex(0, nChunks, 1, new Operation<Integer>() {
+                @Override
+                public void perform(Integer chunk) {
+                    int[] position = counts[chunk];
+                    for (int i = chunkStart(n, nChunks, chunk); i < chunkStart(n, nChunks, chunk + 1); i++) {
+                        to[position[digit(weights[from[i]], digitShift)]++] = from[i];
+                    }
+                }
+            });
+
+            buffer = edges;
+            edges = to;
+        }
+        return edges;
+    }
+
+    private static int chunkStart(int n, int nChunks, int chunk) {
+        return (int) ((long) n * chunk / nChunks);
+    }
+
+    private static int digit(float weight, int shift) {
+        return (Float.floatToIntBits(weight) >>> shift) & (RADIX - 1);
+    }
+
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    //Union by size; returns the root of the merged set
+    private static int union(int[] parent, int[] size, int a, int b) {
+        if (size[a] < size[b]) {
+            int tmp = a;
+            a = b;
+            b = tmp;
+        }
+        parent[b] = a;
+        size[a] += size[b];
+        return a;
+    }
+}
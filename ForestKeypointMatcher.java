@@ -0,0 +1,115 @@
+import org.openimaj.feature.local.matcher.LocalFeatureMatcher;
+import org.openimaj.image.feature.local.keypoints.Keypoint;
+import org.openimaj.util.function.Operation;
+import org.openimaj.util.pair.Pair;
+import org.openimaj.util.parallel.Parallel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+//A LocalFeatureMatcher like BasicMatcher (each keypoint is matched to its nearest model keypoint if that is clearly
+//nearer than the second nearest), but the model keypoints' descriptors are put in a ByteKDForest once, in
+//setModelFeatures, so each keypoint is compared with a few hundred model keypoints rather than all of them.
+//The ratio test keeps a match when distance to nearest < ratio * distance to second nearest (Lowe suggests 0.8).
+//Keypoints are matched in parallel. The index is kept until the model changes, so one model can be matched against
+//any number of images: findMatches / getMatches as usual, or match(), which can be called from several threads at once
+public class ForestKeypointMatcher<T extends Keypoint> implements LocalFeatureMatcher<T> {
+
+    public static final float DEFAULT_RATIO = 0.8f;
+    public static final int DEFAULT_CHECKS = 512;
+
+    private static final int CHUNK = 64;
+
+    private final float ratio;
+    private final int maxChecks;
+    private final int nTrees;
+
+    private List<T> modelKeypoints;
+    private ByteKDForest forest;
+    private List<Pair<T>> matches = new ArrayList<Pair<T>>();
+
+    //Each thread's two nearest model keypoints
+    private final ThreadLocal<TopK> nearest = new ThreadLocal<TopK>() {
+        @Override
+        protected TopK initialValue() {
+            return new TopK(2);
+        }
+    };
+
+    public ForestKeypointMatcher() {
+        this(DEFAULT_RATIO);
+    }
+
+    public ForestKeypointMatcher(float ratio) {
+        this(ratio, DEFAULT_CHECKS, ByteKDForest.DEFAULT_TREES);
+    }
+
+    //maxChecks: how many model keypoints a search compares at most (more is slower but misses fewer nearest ones)
+    public ForestKeypointMatcher(float ratio, int maxChecks, int nTrees) {
+        this.ratio = ratio;
+        this.maxChecks = maxChecks;
+        this.nTrees = nTrees;
+    }
+
+    //Builds the index of the model keypoints
+    @Override
+    public void setModelFeatures(List<T> modelkeys) {
+        byte[][] descriptors = new byte[modelkeys.size()][];
+        for (int i = 0; i < descriptors.length; i++) {
+            descriptors[i] = modelkeys.get(i).ivec;
+        }
+        forest = new ByteKDForest(descriptors, nTrees, ByteKDForest.DEFAULT_LEAF_SIZE, 42);
+        modelKeypoints = new ArrayList<T>(modelkeys);
+    }
+
+    @Override
+    public boolean findMatches(List<T> keys) {
+        matches = match(keys);
+        return true;
+    }
+
+    @Override
+    public List<Pair<T>> getMatches() {
+        return matches;
+    }
+
+    //The matches of the keypoints against the model, as pairs of (keypoint, model keypoint) in keypoint order,
+    //without changing getMatches()
+    public List<Pair<T>> match(final List<T> keys) {
+        if (forest == null) {
+            throw new IllegalStateException("setModelFeatures must be called first");
+        }
+        final int[] matched = new int[keys.size()];
+        final float ratioSquared = ratio * ratio;
+        final int nChunks = (keys.size() + CHUNK - 1) / CHUNK;
+
+        Parallel.forIndex(0, nChunks, 1, new Operation<Integer>() {
+            @Override
+            public void perform(Integer chunk) {
+                TopK best = nearest.get();
+                double[] distances = new double[2];
+                long[] ids = new long[2];
+                for (int i = chunk * CHUNK; i < Math.min(keys.size(), (chunk + 1) * CHUNK); i++) {
+                    forest.search(keys.get(i).ivec, best, maxChecks);
+                    int found = best.sorted(distances, ids);
+                    //with a single model keypoint there is nothing to compare against, as in BasicMatcher
+                    boolean distinct = found == 1 || (found == 2 && distances[0] < ratioSquared * distances[1]);
+                    matched[i] = found > 0 && distinct ? (int) ids[0] : -1;
+                }
+            }
+        });
+
+        List<Pair<T>> result = new ArrayList<Pair<T>>();
+        for (int i = 0; i < matched.length; i++) {
+            if (matched[i] >= 0) {
+                result.add(new Pair<T>(keys.get(i), modelKeypoints.get(matched[i])));
+            }
+        }
+        return result;
+    }
+
+    //The index of the current model keypoints
+    public ByteKDForest getForest() {
+        return forest;
+    }
+}
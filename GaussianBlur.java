@@ -0,0 +1,401 @@
+import org.openimaj.image.FImage;
+import org.openimaj.image.MBFImage;
+import org.openimaj.image.processor.ImageProcessor;
+
+import java.util.Arrays;
+
+//Gaussian blur with three interchangeable implementations:
+//  - SEPARABLE: direct convolution with FGaussianConvolve's sampled Gaussian kernel ((int) (8 sigma + 1) taps, made
+//    odd), one row pass and one column pass; exact but the cost grows with sigma
+//  - BOX: three successive box filters computed with running sums (a 1D integral image) whose widths are chosen
+//    so their combined variance matches sigma; constant cost per pixel, a close approximation of the Gaussian
+//  - RECURSIVE: the Young-van Vliet IIR filter (a 3rd-order recursion run forwards then backwards), with the
+//    backward pass started from the exact state for a border extended with its last pixel (Triggs & Sdika), so the
+//    border is filtered as well as the rest; constant cost per pixel and accurate for sigma above about 1
+//By default the implementation is picked from sigma (see selectBackend); BlurBenchmark compares them.
+//The approximations trade accuracy for speed: on 0..1 images RECURSIVE is off from SEPARABLE by about 0.002 on
+//average and at most 0.03 for sigma 3 (less for larger sigmas), as much inside the image as at its border, so code
+//that must match FGaussianConvolve closely should ask for SEPARABLE.
+//All bands of an MBFImage are blurred together: the row pass goes through tiles of rows and the column pass
+//through strips of columns, in parallel, handling every band of a tile before moving on.
+//Pixels beyond the image border take the value of the nearest border pixel
+public class GaussianBlur implements ImageProcessor<MBFImage> {
+
+    public enum Backend {
+        SEPARABLE, BOX, RECURSIVE
+    }
+
+    //Up to this sigma (FGaussianConvolve's usual 2f included) the exact direct kernel is used, as it is short enough
+    //to cost about the same as the recursive filter
+    public static final float SEPARABLE_MAX_SIGMA = 2f;
+
+    private static final int STRIP_COLUMNS = 64;
+    private static final int BOXES = 3;
+
+    private final float sigma;
+    private final Backend backend;
+
+    //SEPARABLE: half of the symmetric kernel (weights[0] is the centre)
+    private float[] kernel;
+    //BOX: the radius of each box
+    private int[] boxRadii;
+    //RECURSIVE: the Young-van Vliet coefficients, already divided by b0
+    private float b, c1, c2, c3;
+    //RECURSIVE: the backward pass's starting outputs beyond the end from the forward pass's last three outputs
+    //(both less the border value), m[3 * i + j] for output i and forward output j
+    private final double[] m = new double[9];
+
+    public GaussianBlur(float sigma) {
+        this(sigma, selectBackend(sigma));
+    }
+
+    public GaussianBlur(float sigma, Backend backend) {
+        if (sigma <= 0) {
+            throw new IllegalArgumentException("sigma must be positive");
+        }
+        this.sigma = sigma;
+        this.backend = backend;
+
+        switch (backend) {
+            case SEPARABLE:
+                kernel = halfKernel(sigma);
+                break;
+            case BOX:
+                boxRadii = boxRadii(sigma);
+                break;
+            default:
+                setRecursiveCoefficients(sigma);
+        }
+    }
+
+    //The implementation used when none is given: the exact direct kernel for sigmas up to SEPARABLE_MAX_SIGMA, the
+    //faster but approximate recursive filter above it
+    public static Backend selectBackend(float sigma) {
+        return sigma <= SEPARABLE_MAX_SIGMA ? Backend.SEPARABLE : Backend.RECURSIVE;
+    }
+
+    public float getSigma() {
+        return sigma;
+    }
+
+    public Backend getBackend() {
+        return backend;
+    }
+
+    @Override
+    public void processImage(MBFImage image) {
+        blur(PixelKernels.bandPixels(image));
+    }
+
+    //Blurs a single band
+    public void processImage(FImage image) {
+        blur(new float[][][]{image.pixels});
+    }
+
+    private void blur(final float[][][] bands) {
+        //nothing to blur in an image with no bands, rows or columns
+        if (bands.length == 0 || bands[0].length == 0 || bands[0][0].length == 0) {
+            return;
+        }
+        final int height = bands[0].length;
+        final int width = bands[0][0].length;
+        final int pad = padding();
+
+        //Row pass
+        RowTiles.runParallel(height, new RowTiles.Task() {
+            @Override
+            public void process(int y0, int y1) {
+                float[] padded = new float[width + 2 * pad];
+                for (float[][] band : bands) {
+                    for (int y = y0; y < y1; y++) {
+                        blurRow(band[y], padded, pad);
+                    }
+                }
+            }
+        });
+
+        //Column pass, on strips of columns so that the inner loops still run along rows
+        RowTiles.runParallel(width, STRIP_COLUMNS, new RowTiles.Task() {
+            @Override
+            public void process(int x0, int x1) {
+                int stripWidth = x1 - x0;
+                float[][] strip = backend == Backend.RECURSIVE ? null : new float[height + 2 * pad][stripWidth];
+                float[][] spare = backend == Backend.BOX ? new float[height + 2 * pad][stripWidth] : null;
+                for (float[][] band : bands) {
+                    blurColumns(band, x0, x1, strip, spare, pad);
+                }
+            }
+        });
+    }
+
+    //Number of border pixels each side of a row or column the implementation reads
+    private int padding() {
+        switch (backend) {
+            case SEPARABLE:
+                return kernel.length - 1;
+            case BOX:
+                return boxRadii[boxRadii.length - 1] + 1;
+            default:
+                return 0;
+        }
+    }
+
+    private void blurRow(float[] row, float[] padded, int pad) {
+        switch (backend) {
+            case SEPARABLE: {
+                padRow(row, padded, pad);
+                for (int x = 0; x < row.length; x++) {
+                    int centre = pad + x;
+                    float sum = kernel[0] * padded[centre];
+                    for (int k = 1; k < kernel.length; k++) {
+                        sum += kernel[k] * (padded[centre - k] + padded[centre + k]);
+                    }
+                    row[x] = sum;
+                }
+                break;
+            }
+            case BOX: {
+                for (int r : boxRadii) {
+                    padRow(row, padded, pad);
+                    float scale = 1f / (2 * r + 1);
+                    double sum = 0;
+                    for (int i = pad - r; i <= pad + r; i++) {
+                        sum += padded[i];
+                    }
+                    for (int x = 0; x < row.length; x++) {
+                        row[x] = (float) (sum * scale);
+                        sum += padded[pad + x + r + 1] - padded[pad + x - r];
+                    }
+                }
+                break;
+            }
+            default: {
+                int n = row.length;
+                float last = row[n - 1];
+                float p1 = row[0], p2 = p1, p3 = p1;
+                for (int x = 0; x < n; x++) {
+                    float v = b * row[x] + c1 * p1 + c2 * p2 + c3 * p3;
+                    p3 = p2;
+                    p2 = p1;
+                    p1 = v;
+                    row[x] = v;
+                }
+                float d1 = p1 - last, d2 = p2 - last, d3 = p3 - last;
+                p1 = (float) (last + m[0] * d1 + m[1] * d2 + m[2] * d3);
+                p2 = (float) (last + m[3] * d1 + m[4] * d2 + m[5] * d3);
+                p3 = (float) (last + m[6] * d1 + m[7] * d2 + m[8] * d3);
+                for (int x = n - 1; x >= 0; x--) {
+                    float v = b * row[x] + c1 * p1 + c2 * p2 + c3 * p3;
+                    p3 = p2;
+                    p2 = p1;
+                    p1 = v;
+                    row[x] = v;
+                }
+            }
+        }
+    }
+
+    private void blurColumns(float[][] band, int x0, int x1, float[][] strip, float[][] spare, int pad) {
+        int height = band.length;
+        int stripWidth = x1 - x0;
+
+        switch (backend) {
+            case SEPARABLE: {
+                padStrip(band, x0, stripWidth, strip, pad);
+                for (int y = 0; y < height; y++) {
+                    float[] out = band[y];
+                    float[] centre = strip[pad + y];
+                    for (int i = 0; i < stripWidth; i++) {
+                        out[x0 + i] = kernel[0] * centre[i];
+                    }
+                    for (int k = 1; k < kernel.length; k++) {
+                        float weight = kernel[k];
+                        float[] above = strip[pad + y - k];
+                        float[] below = strip[pad + y + k];
+                        for (int i = 0; i < stripWidth; i++) {
+                            out[x0 + i] += weight * (above[i] + below[i]);
+                        }
+                    }
+                }
+                break;
+            }
+            case BOX: {
+                padStrip(band, x0, stripWidth, strip, pad);
+                double[] sums = new double[stripWidth];
+                for (int box = 0; box < boxRadii.length; box++) {
+                    int r = boxRadii[box];
+                    float scale = 1f / (2 * r + 1);
+                    Arrays.fill(sums, 0);
+                    for (int y = pad - r; y <= pad + r; y++) {
+                        for (int i = 0; i < stripWidth; i++) {
+                            sums[i] += strip[y][i];
+                        }
+                    }
+                    for (int y = 0; y < height; y++) {
+                        float[] out = spare[pad + y];
+                        float[] enter = strip[pad + y + r + 1];
+                        float[] leave = strip[pad + y - r];
+                        for (int i = 0; i < stripWidth; i++) {
+                            out[i] = (float) (sums[i] * scale);
+                            sums[i] += enter[i] - leave[i];
+                        }
+                    }
+                    //the output becomes the input of the next box, with its border rows extended again
+                    float[][] tmp = strip;
+                    strip = spare;
+                    spare = tmp;
+                    for (int p = 0; p < pad; p++) {
+                        System.arraycopy(strip[pad], 0, strip[p], 0, stripWidth);
+                        System.arraycopy(strip[pad + height - 1], 0, strip[pad + height + p], 0, stripWidth);
+                    }
+                }
+                for (int y = 0; y < height; y++) {
+                    System.arraycopy(strip[pad + y], 0, band[y], x0, stripWidth);
+                }
+                break;
+            }
+            default: {
+                float[] last = Arrays.copyOfRange(band[height - 1], x0, x1);
+                float[][] state = new float[3][];
+                for (int k = 0; k < 3; k++) {
+                    state[k] = Arrays.copyOfRange(band[0], x0, x1);
+                }
+                recursiveColumns(band, x0, stripWidth, 0, height, 1, state);
+                for (int i = 0; i < stripWidth; i++) {
+                    float d1 = state[0][i] - last[i], d2 = state[1][i] - last[i], d3 = state[2][i] - last[i];
+                    state[0][i] = (float) (last[i] + m[0] * d1 + m[1] * d2 + m[2] * d3);
+                    state[1][i] = (float) (last[i] + m[3] * d1 + m[4] * d2 + m[5] * d3);
+                    state[2][i] = (float) (last[i] + m[6] * d1 + m[7] * d2 + m[8] * d3);
+                }
+                recursiveColumns(band, x0, stripWidth, height - 1, -1, -1, state);
+            }
+        }
+    }
+
+    //One direction of the recursive filter down (step 1) or up (step -1) the columns of a strip, starting from the
+    //previous outputs in state (most recent first), and leaving the last three outputs there
+    private void recursiveColumns(float[][] band, int x0, int stripWidth, int from, int to, int step,
+                                  float[][] state) {
+        float[] p1 = state[0];
+        float[] p2 = state[1];
+        float[] p3 = state[2];
+        for (int y = from; y != to; y += step) {
+            float[] row = band[y];
+            for (int i = 0; i < stripWidth; i++) {
+                float v = b * row[x0 + i] + c1 * p1[i] + c2 * p2[i] + c3 * p3[i];
+                p3[i] = v;
+                row[x0 + i] = v;
+            }
+            //the array just written becomes the most recent output
+            float[] tmp = p3;
+            p3 = p2;
+            p2 = p1;
+            p1 = tmp;
+        }
+        state[0] = p1;
+        state[1] = p2;
+        state[2] = p3;
+    }
+
+    private static void padRow(float[] row, float[] padded, int pad) {
+        int n = row.length;
+        System.arraycopy(row, 0, padded, pad, n);
+        for (int p = 0; p < pad; p++) {
+            padded[p] = row[0];
+            padded[pad + n + p] = row[n - 1];
+        }
+    }
+
+    private static void padStrip(float[][] band, int x0, int stripWidth, float[][] strip, int pad) {
+        int height = band.length;
+        for (int y = 0; y < height; y++) {
+            System.arraycopy(band[y], x0, strip[pad + y], 0, stripWidth);
+        }
+        for (int p = 0; p < pad; p++) {
+            System.arraycopy(band[0], x0, strip[p], 0, stripWidth);
+            System.arraycopy(band[height - 1], x0, strip[pad + height + p], 0, stripWidth);
+        }
+    }
+
+    //The centre and right half of FGaussianConvolve's kernel: (int) (8 sigma + 1) taps, one more if that is even,
+    //sampled and normalised in floats over all the taps in the same order as FGaussianConvolve.makeKernel
+    static float[] halfKernel(float sigma) {
+        int size = (int) (8f * sigma + 1f);
+        if (size % 2 == 0) {
+            size++;
+        }
+        float[] full = new float[size];
+        float sum = 0;
+        for (int i = 0; i < size; i++) {
+            float x = i - size / 2;
+            full[i] = (float) Math.exp(-x * x / (2.0 * sigma * sigma));
+            sum += full[i];
+        }
+        float[] weights = new float[size / 2 + 1];
+        for (int k = 0; k < weights.length; k++) {
+            weights[k] = full[size / 2 + k] / sum;
+        }
+        return weights;
+    }
+
+    //Radii of three boxes whose variances add up to sigma^2 as closely as odd widths allow:
+    //m boxes of the largest odd width below the ideal, the rest two pixels wider (in increasing order)
+    private static int[] boxRadii(float sigma) {
+        double ideal = Math.sqrt(12.0 * sigma * sigma / BOXES + 1);
+        int lower = (int) Math.floor(ideal);
+        if (lower % 2 == 0) {
+            lower--;
+        }
+        int upper = lower + 2;
+        long m = Math.round((12.0 * sigma * sigma - BOXES * lower * lower - 4.0 * BOXES * lower - 3 * BOXES) / (-4.0 * lower - 4));
+
+        int[] radii = new int[BOXES];
+        for (int i = 0; i < BOXES; i++) {
+            radii[i] = ((i < m ? lower : upper) - 1) / 2;
+        }
+        return radii;
+    }
+
+    //Young & van Vliet (1995), "Recursive implementation of the Gaussian filter"
+    private void setRecursiveCoefficients(float sigma) {
+        double q = sigma >= 2.5 ? 0.98711 * sigma - 0.96330 : 3.97156 - 4.14554 * Math.sqrt(1 - 0.26891 * sigma);
+        double q2 = q * q;
+        double q3 = q2 * q;
+        double b0 = 1.57825 + 2.44413 * q + 1.4281 * q2 + 0.422205 * q3;
+        double b1 = 2.44413 * q + 2.85619 * q2 + 1.26661 * q3;
+        double b2 = -(1.4281 * q2 + 1.26661 * q3);
+        double b3 = 0.422205 * q3;
+
+        c1 = (float) (b1 / b0);
+        c2 = (float) (b2 / b0);
+        c3 = (float) (b3 / b0);
+        b = 1 - (c1 + c2 + c3);
+        setBackwardStart();
+    }
+
+    //Triggs & Sdika (2006), "Boundary conditions for Young-van Vliet recursive filtering": beyond the end of a row
+    //the input keeps the border value u, so both passes run on towards u, and the backward pass's exact starting
+    //outputs are a linear function of the forward pass's last three outputs, both less u. Rather than their closed
+    //form, the matrix is found by running the two passes of the recursion on past the end, from each unit forward
+    //state, until they have died away
+    private void setBackwardStart() {
+        int length = 64 + (int) Math.ceil(50 * sigma);
+        double[] forward = new double[length + 3];
+        double[] backward = new double[length + 3];
+        for (int j = 0; j < 3; j++) {
+            //forward[2 - j]: the forward output j places before the end (forward[3] is the first one past it)
+            Arrays.fill(forward, 0);
+            forward[2 - j] = 1;
+            for (int k = 3; k < length + 3; k++) {
+                forward[k] = c1 * forward[k - 1] + c2 * forward[k - 2] + c3 * forward[k - 3];
+            }
+            Arrays.fill(backward, 0);
+            for (int k = length - 1; k >= 3; k--) {
+                backward[k] = b * forward[k] + c1 * backward[k + 1] + c2 * backward[k + 2] + c3 * backward[k + 3];
+            }
+            for (int i = 0; i < 3; i++) {
+                m[3 * i + j] = backward[3 + i];
+            }
+        }
+    }
+}
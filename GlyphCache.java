@@ -0,0 +1,210 @@
+import org.openimaj.image.FImage;
+import org.openimaj.image.MBFImage;
+import org.openimaj.image.pixel.Pixel;
+import org.openimaj.image.renderer.FImageRenderer;
+import org.openimaj.image.typography.hershey.HersheyFont;
+import org.openimaj.image.typography.hershey.HersheyFontStyle;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+//Draws HersheyFont text from a cache of rasterised glyphs instead of stroking every glyph's vectors on every call.
+//The first time a character is needed in a given font and size it is drawn once (with the same HersheyFont renderer
+//as MBFImage.drawText) onto a scratch FImage, and the pixels it touched are kept as an alpha mask together with the
+//glyph's advance width. After that, drawing the character only blends the mask into each band with the colour.
+//The cache holds at most capacity glyphs and drops the least recently used one when full.
+//Glyphs are placed at the same pen positions as drawText, rounded to whole pixels, so text can differ from
+//drawText by a pixel here and there.
+//drawTextAll draws many labels in one call: the glyphs are looked up first, then blended on tiles of rows in parallel,
+//each tile drawing the labels in the order given (so where labels overlap the later one is on top, as with drawText)
+public class GlyphCache {
+
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    //A cache shared by everything that does not need its own
+    public static final GlyphCache SHARED = new GlyphCache(DEFAULT_CAPACITY);
+
+    private final Map<Long, Glyph> glyphs;
+
+    public GlyphCache(final int capacity) {
+        glyphs = new LinkedHashMap<Long, Glyph>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Glyph> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    //Number of glyphs currently cached
+    public synchronized int size() {
+        return glyphs.size();
+    }
+
+    public synchronized void clear() {
+        glyphs.clear();
+    }
+
+    //The same as image.drawText(text, x, y, font, size, colour)
+    public void drawText(MBFImage image, String text, int x, int y, HersheyFont font, int size, Float[] colour) {
+        drawTextAll(image, new String[]{text}, new int[]{x}, new int[]{y}, font, size, colour);
+    }
+
+    //Draws each label at the position with the same index
+    public void drawTextAll(MBFImage image, List<String> texts, List<Pixel> positions, HersheyFont font, int size, Float[] colour) {
+        if (texts.size() != positions.size()) {
+            throw new IllegalArgumentException("One position is needed per label");
+        }
+        int[] xs = new int[positions.size()];
+        int[] ys = new int[positions.size()];
+        for (int i = 0; i < xs.length; i++) {
+            xs[i] = positions.get(i).x;
+            ys[i] = positions.get(i).y;
+        }
+        drawTextAll(image, texts.toArray(new String[texts.size()]), xs, ys, font, size, colour);
+    }
+
+    //Draws texts[i] with its pen starting at (xs[i], ys[i]), as drawText would
+    public void drawTextAll(MBFImage image, String[] texts, int[] xs, int[] ys, HersheyFont font, int size, Float[] colour) {
+        if (texts.length != xs.length || texts.length != ys.length) {
+            throw new IllegalArgumentException("One position is needed per label");
+        }
+        if (colour.length != image.numBands()) {
+            throw new IllegalArgumentException("The colour must have one value per band");
+        }
+
+        //Where every glyph goes, in drawing order
+        final List<Placement> placements = new ArrayList<Placement>();
+        for (int t = 0; t < texts.length; t++) {
+            float pen = xs[t];
+            String text = texts[t];
+            for (int i = 0; i < text.length(); i++) {
+                Glyph glyph = glyph(font, size, text.charAt(i));
+                if (glyph.mask != null) {
+                    placements.add(new Placement(glyph, Math.round(pen) + glyph.offsetX, ys[t] + glyph.offsetY));
+                }
+                pen += glyph.advance;
+            }
+        }
+
+        final float[][][] bands = PixelKernels.bandPixels(image);
+        final float[] values = new float[colour.length];
+        for (int b = 0; b < values.length; b++) {
+            values[b] = colour[b];
+        }
+        final int width = image.getWidth();
+        RowTiles.runParallel(image.getHeight(), new RowTiles.Task() {
+            @Override
+            public void process(int y0, int y1) {
+                for (Placement p : placements) {
+                    blend(bands, values, width, y0, y1, p);
+                }
+            }
+        });
+    }
+
+    //Blends the part of a placed glyph that falls in rows y0 to y1 into every band
+    private static void blend(float[][][] bands, float[] colour, int width, int y0, int y1, Placement p) {
+        float[][] mask = p.glyph.mask;
+        int top = Math.max(y0, p.y);
+        int bottom = Math.min(y1, p.y + mask.length);
+        int left = Math.max(0, p.x);
+        int right = Math.min(width, p.x + mask[0].length);
+        for (int b = 0; b < bands.length; b++) {
+            float value = colour[b];
+            for (int y = top; y < bottom; y++) {
+                float[] row = bands[b][y];
+                float[] alpha = mask[y - p.y];
+                for (int x = left; x < right; x++) {
+                    float a = alpha[x - p.x];
+                    if (a != 0) {
+                        row[x] += a * (value - row[x]);
+                    }
+                }
+            }
+        }
+    }
+
+    private Glyph glyph(HersheyFont font, int size, char c) {
+        Long key = ((long) font.ordinal() << 48) | ((long) size << 16) | c;
+        Glyph glyph;
+        synchronized (this) {
+            glyph = glyphs.get(key);
+        }
+        if (glyph == null) {
+            //Another thread may rasterise the same glyph at the same time; both results are the same
+            glyph = rasterise(font, size, c);
+            synchronized (this) {
+                glyphs.put(key, glyph);
+            }
+        }
+        return glyph;
+    }
+
+    //Draws the character on a scratch image big enough for any glyph of the size (with the pen at (size, 2 * size))
+    //and keeps the smallest rectangle of pixels it touched
+    private static Glyph rasterise(HersheyFont font, int size, char c) {
+        String text = String.valueOf(c);
+        FImage canvas = new FImage(4 * size + 1, 4 * size + 1);
+        int penX = size;
+        int penY = 2 * size;
+        canvas.drawText(text, penX, penY, font, size, 1f);
+
+        FImageRenderer renderer = canvas.createRenderer();
+        HersheyFontStyle<Float> style = font.createStyle(renderer);
+        style.setFontSize(size);
+        float advance = style.getRenderer(renderer).getSize(text, style).width;
+
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = -1, maxY = -1;
+        for (int y = 0; y < canvas.getHeight(); y++) {
+            float[] row = canvas.pixels[y];
+            for (int x = 0; x < row.length; x++) {
+                if (row[x] != 0) {
+                    minX = Math.min(minX, x);
+                    maxX = Math.max(maxX, x);
+                    minY = Math.min(minY, y);
+                    maxY = Math.max(maxY, y);
+                }
+            }
+        }
+        if (maxX < 0) {
+            //nothing drawn, e.g. a space
+            return new Glyph(null, 0, 0, advance);
+        }
+
+        float[][] mask = new float[maxY - minY + 1][maxX - minX + 1];
+        for (int y = minY; y <= maxY; y++) {
+            System.arraycopy(canvas.pixels[y], minX, mask[y - minY], 0, mask[0].length);
+        }
+        return new Glyph(mask, minX - penX, minY - penY, advance);
+    }
+
+    //A glyph's alpha mask, the position of the mask's top left corner relative to the pen, and how far the pen moves
+    private static final class Glyph {
+        final float[][] mask;
+        final int offsetX;
+        final int offsetY;
+        final float advance;
+
+        Glyph(float[][] mask, int offsetX, int offsetY, float advance) {
+            this.mask = mask;
+            this.offsetX = offsetX;
+            this.offsetY = offsetY;
+            this.advance = advance;
+        }
+    }
+
+    //A glyph and the image position of its mask's top left corner
+    private static final class Placement {
+        final Glyph glyph;
+        final int x;
+        final int y;
+
+        Placement(Glyph glyph, int x, int y) {
+            this.glyph = glyph;
+            this.x = x;
+            this.y = y;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+import org.openimaj.feature.DoubleFVComparison;
+import org.openimaj.time.Timer;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+//Times HistogramDistanceMatrix.closestPairs on random 4x4x4 colour histograms (20000 of them unless another number is
+//given as the first argument) for each of the measures used in Chapter4, against the nested loop over
+//DoubleFVComparison.compare that Chapter4 used to run (on the first NESTED_LIMIT histograms only, as it gets slow).
+//Also checks the values HistogramDistanceMatrix computes against DoubleFVComparison.compare for a sample of pairs
+public class HistogramDistanceBenchmark {
+
+    private static final int BINS = 64;
+    private static final int NESTED_LIMIT = 5000;
+    private static final int CHECKED_PAIRS = 10000;
+
+    private static final List<DoubleFVComparison> COMPARISONS = Arrays.asList(DoubleFVComparison.EUCLIDEAN,
+            DoubleFVComparison.INTERSECTION, DoubleFVComparison.COSINE_SIM, DoubleFVComparison.CHI_SQUARE,
+            DoubleFVComparison.BHATTACHARYYA);
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        Random random = new Random(42);
+
+        //normalised histograms with a quarter of the bins empty, like those of real images
+        double[] data = new double[n * BINS];
+        for (int i = 0; i < n; i++) {
+            double total = 0;
+            for (int b = i * BINS; b < (i + 1) * BINS; b++) {
+                data[b] = random.nextInt(4) == 0 ? 0 : random.nextDouble();
+                total += data[b];
+            }
+            for (int b = i * BINS; b < (i + 1) * BINS; b++) {
+                data[b] /= total;
+            }
+        }
+
+        //the same histograms as separate arrays, for DoubleFVComparison
+        double[][] histograms = new double[n][];
+        for (int i = 0; i < n; i++) {
+            histograms[i] = Arrays.copyOfRange(data, i * BINS, (i + 1) * BINS);
+        }
+
+        int nested = Math.min(n, NESTED_LIMIT);
+        System.out.println("comparison\tclosest pair\tblocked, " + n + " (ms)\tnested, " + nested + " (ms)\tmax difference");
+        for (DoubleFVComparison comparison : COMPARISONS) {
+            HistogramDistanceMatrix matrix = new HistogramDistanceMatrix(data, n, BINS, comparison,
+                    HistogramDistanceMatrix.DEFAULT_BLOCK_SIZE);
+
+            Timer t1 = Timer.timer();
+            HistogramDistanceMatrix.Pair best = matrix.closestPairs(10).get(0);
+            long blockedTime = t1.duration();
+
+            Timer t2 = Timer.timer();
+            nestedBest(histograms, nested, comparison, matrix.isSimilarity());
+            long nestedTime = t2.duration();
+
+            double maxDifference = 0;
+            for (int p = 0; p < CHECKED_PAIRS; p++) {
+                int a = random.nextInt(n);
+                int b = random.nextInt(n);
+                double expected = comparison.compare(histograms[a], histograms[b]);
+                maxDifference = Math.max(maxDifference, Math.abs(expected - matrix.compare(a, b)));
+            }
+
+            System.out.println(comparison + "\t" + best.first + "-" + best.second + "\t" + blockedTime + "\t"
+                    + nestedTime + "\t" + maxDifference);
+        }
+    }
+
+    //The loop Chapter4 runs, over the first n histograms
+    private static double nestedBest(double[][] histograms, int n, DoubleFVComparison comparison, boolean similarity) {
+        double best = similarity ? -Double.MAX_VALUE : Double.MAX_VALUE;
+        for (int i = 0; i < n; i++) {
+            for (int j = i + 1; j < n; j++) {
+                double value = comparison.compare(histograms[i], histograms[j]);
+                best = similarity ? Math.max(best, value) : Math.min(best, value);
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,336 @@
+import org.openimaj.feature.DoubleFVComparison;
+import org.openimaj.math.statistics.distribution.MultidimensionalHistogram;
+import org.openimaj.util.function.Operation;
+import org.openimaj.util.parallel.Parallel;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+//Compares every pair of a set of histograms (as histograms.get(i).compare(histograms.get(j), comparison) would)
+//without ever holding the N x N matrix of results:
+//  - the histograms are packed one after another in a single double[], and anything a measure needs per histogram
+//    (lengths for COSINE_SIM, totals and square roots for BHATTACHARYYA) is worked out once
+//  - the upper triangle is computed in square blocks of blockSize x blockSize pairs, whose rows stay in cache while
+//    the block is done; the blocks of one block row are computed in parallel, block rows one after another
+//  - the results are kept only as far as they are needed: the k best pairs overall (closestPairs), or the k best
+//    neighbours of each histogram (writeNearest), which are written out as soon as every block involving a row is done
+//For the distances (EUCLIDEAN, SUM_SQUARE, CHI_SQUARE, BHATTACHARYYA) best means smallest, for the similarities
+//(INTERSECTION, COSINE_SIM) largest
+public class HistogramDistanceMatrix {
+
+    public static final int DEFAULT_BLOCK_SIZE = 64;
+
+    private final double[] data;
+    private final int n;
+    private final int dims;
+    private final DoubleFVComparison comparison;
+    private final boolean similarity;
+    private final int blockSize;
+
+    //COSINE_SIM: the length of each histogram; BHATTACHARYYA: the total of each histogram
+    private double[] norms;
+    //BHATTACHARYYA: the square root of every bin
+    private double[] roots;
+
+    //Each thread's block of results
+    private final ThreadLocal<double[]> tiles = new ThreadLocal<double[]>() {
+        @Override
+        protected double[] initialValue() {
+            return new double[blockSize * blockSize];
+        }
+    };
+
+    //A pair of histograms (first < second) and the result of comparing them
+    public static class Pair {
+        public final int first;
+        public final int second;
+        public final double value;
+
+        Pair(int first, int second, double value) {
+            this.first = first;
+            this.second = second;
+            this.value = value;
+        }
+
+        @Override
+        public String toString() {
+            return first + "\t" + second + "\t" + value;
+        }
+    }
+
+    //Used to pass each computed block on to whatever is collecting the results
+    private interface BlockVisitor {
+        //tile[(i - i0) * blockSize + (j - j0)] holds the result for i in [i0, i1), j in [max(j0, i + 1), j1)
+        void visit(int i0, int i1, int j0, int j1, double[] tile);
+    }
+
+    public HistogramDistanceMatrix(List<MultidimensionalHistogram> histograms, DoubleFVComparison comparison) {
+        this(pack(histograms), histograms.size(), histograms.isEmpty() ? 0 : histograms.get(0).values.length,
+                comparison, DEFAULT_BLOCK_SIZE);
+    }
+
+    //data holds n histograms of dims bins one after another
+    public HistogramDistanceMatrix(double[] data, int n, int dims, DoubleFVComparison comparison, int blockSize) {
+        if (data.length != (long) n * dims) {
+            throw new IllegalArgumentException("data must hold n * dims values");
+        }
+        this.data = data;
+        this.n = n;
+        this.dims = dims;
+        this.comparison = comparison;
+        this.blockSize = blockSize;
+
+        switch (comparison) {
+            case EUCLIDEAN:
+            case SUM_SQUARE:
+            case CHI_SQUARE:
+                similarity = false;
+                break;
+            case INTERSECTION:
+                similarity = true;
+                break;
+            case COSINE_SIM:
+                similarity = true;
+                norms = new double[n];
+                for (int i = 0; i < n; i++) {
+                    double sum = 0;
+                    for (int d = i * dims; d < (i + 1) * dims; d++) {
+                        sum += data[d] * data[d];
+                    }
+                    norms[i] = Math.sqrt(sum);
+                }
+                break;
+            case BHATTACHARYYA:
+                similarity = false;
+                norms = new double[n];
+                roots = new double[data.length];
+                for (int i = 0; i < n; i++) {
+                    double sum = 0;
+                    for (int d = i * dims; d < (i + 1) * dims; d++) {
+                        sum += data[d];
+                        roots[d] = Math.sqrt(data[d]);
+                    }
+                    norms[i] = sum;
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported comparison: " + comparison);
+        }
+    }
+
+    private static double[] pack(List<MultidimensionalHistogram> histograms) {
+        if (histograms.isEmpty()) {
+            return new double[0];
+        }
+        int dims = histograms.get(0).values.length;
+        double[] data = new double[histograms.size() * dims];
+        for (int i = 0; i < histograms.size(); i++) {
+            double[] values = histograms.get(i).values;
+            if (values.length != dims) {
+                throw new IllegalArgumentException("All histograms must have the same number of bins");
+            }
+            System.arraycopy(values, 0, data, i * dims, dims);
+        }
+        return data;
+    }
+
+    public int size() {
+        return n;
+    }
+
+    //True if larger values mean more similar histograms
+    public boolean isSimilarity() {
+        return similarity;
+    }
+
+    //The result of comparing histograms a and b
+    public double compare(int a, int b) {
+        int offsetA = a * dims;
+        int offsetB = b * dims;
+        switch (comparison) {
+            case EUCLIDEAN:
+                return Math.sqrt(sumSquare(offsetA, offsetB));
+            case SUM_SQUARE:
+                return sumSquare(offsetA, offsetB);
+            case CHI_SQUARE: {
+                double sum = 0;
+                for (int d = 0; d < dims; d++) {
+                    double difference = data[offsetA + d] - data[offsetB + d];
+                    double total = data[offsetA + d] + data[offsetB + d];
+                    if (Math.abs(total) > 0) {
+                        sum += difference * difference / total;
+                    }
+                }
+                return sum / 2;
+            }
+            case INTERSECTION: {
+                double sum = 0;
+                for (int d = 0; d < dims; d++) {
+                    sum += Math.min(data[offsetA + d], data[offsetB + d]);
+                }
+                return sum;
+            }
+            case COSINE_SIM: {
+                double dot = 0;
+                for (int d = 0; d < dims; d++) {
+                    dot += data[offsetA + d] * data[offsetB + d];
+                }
+                return dot / (norms[a] * norms[b]);
+            }
+            default: {
+                //BHATTACHARYYA
+                double sum = 0;
+                for (int d = 0; d < dims; d++) {
+                    sum += roots[offsetA + d] * roots[offsetB + d];
+                }
+                return Math.sqrt(Math.max(0, 1 - sum / Math.sqrt(norms[a] * norms[b])));
+            }
+        }
+    }
+
+    private double sumSquare(int offsetA, int offsetB) {
+        double sum = 0;
+        for (int d = 0; d < dims; d++) {
+            double difference = data[offsetA + d] - data[offsetB + d];
+            sum += difference * difference;
+        }
+        return sum;
+    }
+
+    //The k best pairs of different histograms, best first
+    public List<Pair> closestPairs(final int k) {
+        final List<TopK> allBest = Collections.synchronizedList(new ArrayList<TopK>());
+        final ThreadLocal<TopK> threadBest = new ThreadLocal<TopK>() {
+            @Override
+            protected TopK initialValue() {
+                TopK best = new TopK(k);
+                allBest.add(best);
+                return best;
+            }
+        };
+
+        BlockVisitor collector = new BlockVisitor() {
+            @Override
+            public void visit(int i0, int i1, int j0, int j1, double[] tile) {
+                TopK best = threadBest.get();
+                for (int i = i0; i < i1; i++) {
+                    int row = (i - i0) * blockSize - j0;
+                    for (int j = Math.max(j0, i + 1); j < j1; j++) {
+                        double value = tile[row + j];
+                        best.offer(similarity ? -value : value, (long) i * n + j);
+                    }
+                }
+            }
+        };
+        for (int blockRow = 0; blockRow < blockCount(); blockRow++) {
+            forBlockRow(blockRow, collector);
+        }
+
+        TopK best = new TopK(k);
+        for (TopK threadTop : allBest) {
+            best.addAll(threadTop);
+        }
+        double[] scores = new double[k];
+        long[] ids = new long[k];
+        int count = best.sorted(scores, ids);
+        List<Pair> pairs = new ArrayList<Pair>(count);
+        for (int p = 0; p < count; p++) {
+            pairs.add(new Pair((int) (ids[p] / n), (int) (ids[p] % n), similarity ? -scores[p] : scores[p]));
+        }
+        return pairs;
+    }
+
+    //Writes the k best other histograms of every histogram to the file, see writeNearest(int, Writer)
+    public void writeNearest(int k, File file) throws IOException {
+        Writer out = new BufferedWriter(new FileWriter(file));
+        try {
+            writeNearest(k, out);
+        } finally {
+            out.close();
+        }
+    }
+
+    //Writes the k best other histograms of every histogram, one "histogram<TAB>neighbour<TAB>value" line per
+    //neighbour, histograms in order and neighbours best first.
+    //Only the k best so far of the rows not yet written are held in memory
+    public void writeNearest(int k, final Writer out) throws IOException {
+        final TopK[] nearest = new TopK[n];
+        for (int i = 0; i < n; i++) {
+            nearest[i] = new TopK(k);
+        }
+        final double[] scores = new double[k];
+        final long[] ids = new long[k];
+
+        BlockVisitor collector = new BlockVisitor() {
+            @Override
+            public void visit(int i0, int i1, int j0, int j1, double[] tile) {
+                //each row of the block goes to histogram i, each column to histogram j, under one lock each
+                for (int i = i0; i < i1; i++) {
+                    int row = (i - i0) * blockSize - j0;
+                    TopK best = nearest[i];
+                    synchronized (best) {
+                        for (int j = Math.max(j0, i + 1); j < j1; j++) {
+                            double value = tile[row + j];
+                            best.offer(similarity ? -value : value, j);
+                        }
+                    }
+                }
+                for (int j = j0; j < j1; j++) {
+                    TopK best = nearest[j];
+                    synchronized (best) {
+                        for (int i = i0; i < Math.min(i1, j); i++) {
+                            double value = tile[(i - i0) * blockSize + j - j0];
+                            best.offer(similarity ? -value : value, i);
+                        }
+                    }
+                }
+            }
+        };
+
+        for (int blockRow = 0; blockRow < blockCount(); blockRow++) {
+            forBlockRow(blockRow, collector);
+            int i0 = blockRow * blockSize;
+            for (int i = i0; i < Math.min(n, i0 + blockSize); i++) {
+                int count = nearest[i].sorted(scores, ids);
+                for (int p = 0; p < count; p++) {
+                    out.write(i + "\t" + ids[p] + "\t" + (similarity ? -scores[p] : scores[p]) + "\n");
+                }
+                nearest[i] = null;
+            }
+        }
+    }
+
+    //Computes the blocks of one block row of the upper triangle in parallel and passes each to the visitor.
+    //Going through the block rows in order, rows i0 to i1 are complete once their block row is done,
+    //as the blocks above them came earlier
+    private void forBlockRow(final int blockRow, final BlockVisitor visitor) {
+        final int nBlocks = blockCount();
+        final int i0 = blockRow * blockSize;
+        final int i1 = Math.min(n, i0 + blockSize);
+        Parallel.forIndex(blockRow, nBlocks, 1, new Operation<Integer>() {
+            @Override
+            public void perform(Integer blockColumn) {
+                int j0 = blockColumn * blockSize;
+                int j1 = Math.min(n, j0 + blockSize);
+                double[] tile = tiles.get();
+                for (int i = i0; i < i1; i++) {
+                    int row = (i - i0) * blockSize - j0;
+                    for (int j = Math.max(j0, i + 1); j < j1; j++) {
+                        tile[row + j] = compare(i, j);
+                    }
+                }
+                visitor.visit(i0, i1, j0, j1, tile);
+            }
+        });
+    }
+
+    private int blockCount() {
+        return (n + blockSize - 1) / blockSize;
+    }
+}
@@ -0,0 +1,502 @@
+import org.openimaj.math.statistics.distribution.MultidimensionalHistogram;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+//An approximate nearest-neighbour index of histograms by Euclidean distance (DoubleFVComparison.EUCLIDEAN), for
+//"find images like this one" queries over far more histograms than a scan can handle.
+//It is a hierarchical navigable small world graph (Malkov & Yashunin, "Efficient and robust approximate nearest
+//neighbor search using Hierarchical Navigable Small World graphs"):
+//  - every histogram is a node linked to up to m close nodes (2 * m on the bottom layer); each node also appears on
+//    the layers above with exponentially decreasing probability, giving a few long-range links to start from
+//  - a query walks greedily down from the top layer, then searches the bottom layer keeping the efSearch best nodes
+//    found so far; efSearch is the recall/speed knob (larger finds more of the true nearest neighbours, more slowly)
+//  - histograms can be added at any time (they get consecutive ids from 0), and the index saved and loaded again
+//The histograms are held as floats. Queries may run on many threads at once; adding takes a lock that waits for them.
+//HistogramIndexBenchmark measures recall@10 against an exact scan for a range of efSearch values
+public class HistogramIndex {
+
+    public static final int DEFAULT_M = 16;
+    public static final int DEFAULT_EF_CONSTRUCTION = 200;
+    public static final int DEFAULT_EF_SEARCH = 64;
+
+    private static final int MAGIC = 0x484e5357;
+
+    private final int dims;
+    private final int m;
+    private final int efConstruction;
+    private final double levelFactor;
+    private final Random random;
+    private volatile int efSearch = DEFAULT_EF_SEARCH;
+
+    //size histograms of dims values one after another
+    private float[] vectors;
+    //links[node][level]: the number of neighbours, then their ids
+    private int[][][] links;
+    private int size;
+    private int entryPoint = -1;
+    private int topLevel = -1;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    //Each thread's working arrays for searching
+    private final ThreadLocal<Search> searches = new ThreadLocal<Search>() {
+        @Override
+        protected Search initialValue() {
+            return new Search();
+        }
+    };
+
+    //A histogram found by a query and its distance from the query
+    public static class Neighbour {
+        public final int id;
+        public final double distance;
+
+        Neighbour(int id, double distance) {
+            this.id = id;
+            this.distance = distance;
+        }
+
+        @Override
+        public String toString() {
+            return id + "\t" + distance;
+        }
+    }
+
+    public HistogramIndex(int dims) {
+        this(dims, DEFAULT_M, DEFAULT_EF_CONSTRUCTION, 42);
+    }
+
+    //m: links per node (more gives better recall on harder data, using more memory and build time);
+    //efConstruction: how many candidates are looked at when linking a new node
+    public HistogramIndex(int dims, int m, int efConstruction, long seed) {
+        if (m < 2) {
+            throw new IllegalArgumentException("m must be at least 2");
+        }
+        this.dims = dims;
+        this.m = m;
+        this.efConstruction = Math.max(efConstruction, m);
+        this.levelFactor = 1 / Math.log(m);
+        this.random = new Random(seed);
+        vectors = new float[16 * dims];
+        links = new int[16][][];
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int getDims() {
+        return dims;
+    }
+
+    public int getEfSearch() {
+        return efSearch;
+    }
+
+    //The number of candidates a query keeps (at least the k asked for); the recall/latency trade-off
+    public void setEfSearch(int efSearch) {
+        this.efSearch = Math.max(1, efSearch);
+    }
+
+    //Adds the histogram and returns its id
+    public int add(MultidimensionalHistogram histogram) {
+        return add(histogram.values);
+    }
+
+    public int add(double[] histogram) {
+        float[] vector = toFloats(histogram);
+        lock.writeLock().lock();
+        try {
+            return insert(vector);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    //The k indexed histograms closest to the given one (approximately), closest first
+    public List<Neighbour> query(MultidimensionalHistogram histogram, int k) {
+        return query(histogram.values, k);
+    }
+
+    public List<Neighbour> query(double[] histogram, int k) {
+        float[] vector = toFloats(histogram);
+        lock.readLock().lock();
+        try {
+            List<Neighbour> neighbours = new ArrayList<Neighbour>(k);
+            if (size == 0) {
+                return neighbours;
+            }
+            Search search = searches.get();
+            int node = descend(vector, 0, entryPoint, topLevel, 0);
+            search.entries[0] = node;
+            int found = searchLayer(search, vector, 0, search.entries, 1, Math.max(k, efSearch), 0);
+            for (int i = 0; i < Math.min(k, found); i++) {
+                neighbours.add(new Neighbour((int) search.sortedIds[i], Math.sqrt(search.sortedScores[i])));
+            }
+            return neighbours;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private float[] toFloats(double[] histogram) {
+        if (histogram.length != dims) {
+            throw new IllegalArgumentException("Expected a histogram of " + dims + " bins");
+        }
+        float[] vector = new float[dims];
+        for (int d = 0; d < dims; d++) {
+            vector[d] = (float) histogram[d];
+        }
+        return vector;
+    }
+
+    private int insert(float[] vector) {
+        int id = size;
+        if ((id + 1) * dims > vectors.length) {
+            vectors = Arrays.copyOf(vectors, vectors.length * 2);
+            links = Arrays.copyOf(links, links.length * 2);
+        }
+        System.arraycopy(vector, 0, vectors, id * dims, dims);
+        int level = (int) (-Math.log(1 - random.nextDouble()) * levelFactor);
+        links[id] = new int[level + 1][];
+        for (int l = 0; l <= level; l++) {
+            links[id][l] = new int[maxLinks(l) + 1];
+        }
+        size++;
+
+        if (entryPoint < 0) {
+            entryPoint = id;
+            topLevel = level;
+            return id;
+        }
+
+        Search search = searches.get();
+        int offset = id * dims;
+        int node = descend(vectors, offset, entryPoint, topLevel, level + 1);
+        search.entries[0] = node;
+        int nEntries = 1;
+        for (int l = Math.min(level, topLevel); l >= 0; l--) {
+            int found = searchLayer(search, vectors, offset, search.entries, nEntries, efConstruction, l);
+            int[] chosen = selectNeighbours(search.sortedIds, search.sortedScores, found, m);
+            int[] own = links[id][l];
+            own[0] = chosen.length;
+            System.arraycopy(chosen, 0, own, 1, chosen.length);
+            for (int neighbour : chosen) {
+                link(neighbour, id, l);
+            }
+            //the candidates found on this layer are where the search of the next one starts
+            if (search.entries.length < found) {
+                search.entries = new int[found];
+            }
+            for (int i = 0; i < found; i++) {
+                search.entries[i] = (int) search.sortedIds[i];
+            }
+            nEntries = found;
+        }
+
+        if (level > topLevel) {
+            entryPoint = id;
+            topLevel = level;
+        }
+        return id;
+    }
+
+    //Adds a link from node to newNode on the level, pruning node's links again if there are too many
+    private void link(int node, int newNode, int level) {
+        int[] own = links[node][level];
+        int count = own[0];
+        if (count < own.length - 1) {
+            own[count + 1] = newNode;
+            own[0] = count + 1;
+            return;
+        }
+
+        //too many: keep the best of the old links and the new one, by the same rule as for a new node.
+        //With so few of them, an insertion sort by distance is enough
+        int offset = node * dims;
+        long[] ids = new long[count + 1];
+        double[] scores = new double[count + 1];
+        for (int i = 0; i <= count; i++) {
+            int candidate = i < count ? own[i + 1] : newNode;
+            double score = distance(vectors, offset, candidate);
+            int j = i;
+            while (j > 0 && scores[j - 1] > score) {
+                scores[j] = scores[j - 1];
+                ids[j] = ids[j - 1];
+                j--;
+            }
+            scores[j] = score;
+            ids[j] = candidate;
+        }
+        int[] chosen = selectNeighbours(ids, scores, count + 1, own.length - 1);
+        own[0] = chosen.length;
+        System.arraycopy(chosen, 0, own, 1, chosen.length);
+    }
+
+    //The heuristic of the paper: going through the candidates closest first, a candidate is kept only if it is closer
+    //to the node than to any candidate already kept, which spreads the links out in different directions
+    private int[] selectNeighbours(long[] ids, double[] scores, int found, int max) {
+        int[] chosen = new int[Math.min(max, found)];
+        int count = 0;
+        for (int i = 0; i < found && count < chosen.length; i++) {
+            int candidate = (int) ids[i];
+            boolean keep = true;
+            for (int j = 0; j < count; j++) {
+                if (distance(vectors, candidate * dims, chosen[j]) < scores[i]) {
+                    keep = false;
+                    break;
+                }
+            }
+            if (keep) {
+                chosen[count++] = candidate;
+            }
+        }
+        return count == chosen.length ? chosen : Arrays.copyOf(chosen, count);
+    }
+
+    private int maxLinks(int level) {
+        return level == 0 ? 2 * m : m;
+    }
+
+    //Walks greedily from node through the levels from top down to (and including) bottom, and returns the closest
+    //node found
+    private int descend(float[] query, int offset, int node, int top, int bottom) {
+        double best = distance(query, offset, node);
+        for (int l = top; l >= bottom; l--) {
+            boolean moved = true;
+            while (moved) {
+                moved = false;
+                int[] neighbours = links[node][l];
+                for (int i = 1; i <= neighbours[0]; i++) {
+                    double d = distance(query, offset, neighbours[i]);
+                    if (d < best) {
+                        best = d;
+                        node = neighbours[i];
+                        moved = true;
+                    }
+                }
+            }
+        }
+        return node;
+    }
+
+    //Best-first search of one level from the entry nodes, keeping the ef closest nodes found. They are left in
+    //search.sortedIds / sortedScores (squared distances), closest first, and their number is returned
+    private int searchLayer(Search search, float[] query, int offset, int[] entries, int nEntries, int ef, int level) {
+        search.start(size, ef);
+        TopK best = search.best;
+        for (int i = 0; i < nEntries; i++) {
+            int node = entries[i];
+            if (search.visit(node)) {
+                double d = distance(query, offset, node);
+                best.offer(d, node);
+                search.push(d, node);
+            }
+        }
+
+        while (search.candidates > 0) {
+            double d = search.candidateScores[0];
+            int node = search.pop();
+            if (d > best.worstScore()) {
+                break;
+            }
+            int[] neighbours = links[node][level];
+            for (int i = 1; i <= neighbours[0]; i++) {
+                int neighbour = neighbours[i];
+                if (search.visit(neighbour)) {
+                    double dn = distance(query, offset, neighbour);
+                    if (dn < best.worstScore()) {
+                        best.offer(dn, neighbour);
+                        search.push(dn, neighbour);
+                    }
+                }
+            }
+        }
+        return best.sorted(search.sortedScores, search.sortedIds);
+    }
+
+    //Squared Euclidean distance between query[offset...] and the histogram of node
+    private double distance(float[] query, int offset, int node) {
+        int other = node * dims;
+        double sum = 0;
+        for (int d = 0; d < dims; d++) {
+            double difference = query[offset + d] - vectors[other + d];
+            sum += difference * difference;
+        }
+        return sum;
+    }
+
+    //A thread's search state: which nodes have been visited (marked with the number of the search, so nothing has
+    //to be cleared between searches), a min-heap of candidates to expand, and the best nodes so far
+    private static final class Search {
+        int[] visited = new int[0];
+        int mark;
+        double[] candidateScores = new double[64];
+        int[] candidateIds = new int[64];
+        int candidates;
+        TopK best;
+        double[] sortedScores;
+        long[] sortedIds;
+        int[] entries = new int[1];
+
+        void start(int size, int ef) {
+            if (visited.length < size) {
+                visited = new int[Math.max(size, visited.length * 2)];
+                mark = 0;
+            }
+            if (++mark == 0) {
+                Arrays.fill(visited, 0);
+                mark = 1;
+            }
+            if (best == null || best.capacity() != ef) {
+                best = new TopK(ef);
+                sortedScores = new double[ef];
+                sortedIds = new long[ef];
+            }
+            best.clear();
+            candidates = 0;
+        }
+
+        //Marks the node visited; false if it already was
+        boolean visit(int node) {
+            if (visited[node] == mark) {
+                return false;
+            }
+            visited[node] = mark;
+            return true;
+        }
+
+        void push(double score, int id) {
+            if (candidates == candidateScores.length) {
+                candidateScores = Arrays.copyOf(candidateScores, candidates * 2);
+                candidateIds = Arrays.copyOf(candidateIds, candidates * 2);
+            }
+            int i = candidates++;
+            while (i > 0) {
+                int parent = (i - 1) >> 1;
+                if (candidateScores[parent] <= score) {
+                    break;
+                }
+                candidateScores[i] = candidateScores[parent];
+                candidateIds[i] = candidateIds[parent];
+                i = parent;
+            }
+            candidateScores[i] = score;
+            candidateIds[i] = id;
+        }
+
+        //Removes the closest candidate and returns its id
+        int pop() {
+            int top = candidateIds[0];
+            double score = candidateScores[--candidates];
+            int id = candidateIds[candidates];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= candidates) {
+                    break;
+                }
+                if (child + 1 < candidates && candidateScores[child + 1] < candidateScores[child]) {
+                    child++;
+                }
+                if (candidateScores[child] >= score) {
+                    break;
+                }
+                candidateScores[i] = candidateScores[child];
+                candidateIds[i] = candidateIds[child];
+                i = child;
+            }
+            candidateScores[i] = score;
+            candidateIds[i] = id;
+            return top;
+        }
+    }
+
+    //Writes the histograms and the graph to the file
+    public void save(File file) throws IOException {
+        lock.readLock().lock();
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(dims);
+                out.writeInt(m);
+                out.writeInt(efConstruction);
+                out.writeInt(size);
+                out.writeInt(entryPoint);
+                out.writeInt(topLevel);
+                for (int i = 0; i < size * dims; i++) {
+                    out.writeFloat(vectors[i]);
+                }
+                for (int node = 0; node < size; node++) {
+                    out.writeByte(links[node].length);
+                    for (int[] level : links[node]) {
+                        for (int i = 0; i <= level[0]; i++) {
+                            out.writeInt(level[i]);
+                        }
+                    }
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    //Reads an index written by save; more histograms can be added to it
+    public static HistogramIndex load(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a histogram index: " + file);
+            }
+            int dims = in.readInt();
+            int m = in.readInt();
+            int efConstruction = in.readInt();
+            HistogramIndex index = new HistogramIndex(dims, m, efConstruction, System.nanoTime());
+            int size = in.readInt();
+            index.entryPoint = in.readInt();
+            index.topLevel = in.readInt();
+            index.size = size;
+            index.vectors = new float[Math.max(16, size) * dims];
+            index.links = new int[Math.max(16, size)][][];
+            for (int i = 0; i < size * dims; i++) {
+                index.vectors[i] = in.readFloat();
+            }
+            for (int node = 0; node < size; node++) {
+                int levels = in.readUnsignedByte();
+                index.links[node] = new int[levels][];
+                for (int l = 0; l < levels; l++) {
+                    int[] level = new int[index.maxLinks(l) + 1];
+                    level[0] = in.readInt();
+                    for (int i = 1; i <= level[0]; i++) {
+                        level[i] = in.readInt();
+                    }
+                    index.links[node][l] = level;
+                }
+            }
+            return index;
+        } finally {
+            in.close();
+        }
+    }
+}
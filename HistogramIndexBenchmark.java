@@ -0,0 +1,138 @@
+import org.openimaj.time.Timer;
+import org.openimaj.util.function.Operation;
+import org.openimaj.util.parallel.Parallel;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+//Builds a HistogramIndex of synthetic 4x4x4 colour histograms (100000 unless another number is given as the first
+//argument) and reports, for a range of efSearch values, recall@10 (the fraction of the true 10 nearest histograms,
+//found by an exact scan, that the index returns) and the mean time per query.
+//The histograms come from a few hundred random "scene" histograms with noise added, so that, as with real
+//images, there are groups of similar ones. The index is also saved, loaded back and checked to answer the same
+public class HistogramIndexBenchmark {
+
+    private static final int BINS = 64;
+    private static final int SCENES = 500;
+    private static final int QUERIES = 1000;
+    private static final int K = 10;
+    private static final int[] EF_SEARCH = {10, 16, 32, 64, 128, 256};
+
+    public static void main(String[] args) throws IOException {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        Random random = new Random(42);
+        double[][] scenes = new double[SCENES][];
+        for (int s = 0; s < SCENES; s++) {
+            scenes[s] = randomHistogram(random, null);
+        }
+        final double[][] histograms = new double[n][];
+        for (int i = 0; i < n; i++) {
+            histograms[i] = randomHistogram(random, scenes[random.nextInt(SCENES)]);
+        }
+        final double[][] queries = new double[QUERIES][];
+        for (int q = 0; q < QUERIES; q++) {
+            queries[q] = randomHistogram(random, scenes[random.nextInt(SCENES)]);
+        }
+
+        Timer t1 = Timer.timer();
+        HistogramIndex index = new HistogramIndex(BINS);
+        for (double[] histogram : histograms) {
+            index.add(histogram);
+        }
+        System.out.println("Built an index of " + n + " histograms in " + t1.duration() + " ms");
+
+        //the true nearest neighbours, by scanning everything
+        final int[][] exact = new int[QUERIES][];
+        Timer t2 = Timer.timer();
+        Parallel.forIndex(0, QUERIES, 1, new Operation<Integer>() {
+            @Override
+            public void perform(Integer q) {
+                exact[q] = exactNearest(histograms, queries[q]);
+            }
+        });
+        System.out.println("Exact scan: " + (t2.duration() * 1000.0 / QUERIES) + " us per query (parallel)");
+
+        System.out.println("efSearch\trecall@" + K + "\tus per query");
+        for (int ef : EF_SEARCH) {
+            index.setEfSearch(ef);
+            int hits = 0;
+            Timer t3 = Timer.timer();
+            for (int q = 0; q < QUERIES; q++) {
+                hits += overlap(index.query(queries[q], K), exact[q]);
+            }
+            long time = t3.duration();
+            System.out.println(ef + "\t" + ((double) hits / (QUERIES * K)) + "\t" + (time * 1000.0 / QUERIES));
+        }
+
+        File file = File.createTempFile("histograms", ".hnsw");
+        try {
+            index.save(file);
+            HistogramIndex loaded = HistogramIndex.load(file);
+            loaded.setEfSearch(index.getEfSearch());
+            boolean same = true;
+            for (int q = 0; q < QUERIES && same; q++) {
+                List<HistogramIndex.Neighbour> a = index.query(queries[q], K);
+                List<HistogramIndex.Neighbour> b = loaded.query(queries[q], K);
+                for (int i = 0; i < a.size(); i++) {
+                    same &= a.get(i).id == b.get(i).id;
+                }
+            }
+            System.out.println("Saved " + file.length() / 1024 + " KB; loaded index answers the same: " + same);
+        } finally {
+            file.delete();
+        }
+    }
+
+    //A normalised histogram: random if base is null, otherwise base with noise added
+    private static double[] randomHistogram(Random random, double[] base) {
+        double[] histogram = new double[BINS];
+        double total = 0;
+        for (int b = 0; b < BINS; b++) {
+            if (base == null) {
+                histogram[b] = random.nextInt(3) == 0 ? 0 : random.nextDouble();
+            } else {
+                histogram[b] = Math.max(0, base[b] + random.nextGaussian() * 0.01);
+            }
+            total += histogram[b];
+        }
+        for (int b = 0; b < BINS; b++) {
+            histogram[b] /= total;
+        }
+        return histogram;
+    }
+
+    private static int[] exactNearest(double[][] histograms, double[] query) {
+        TopK best = new TopK(K);
+        for (int i = 0; i < histograms.length; i++) {
+            double sum = 0;
+            for (int b = 0; b < BINS; b++) {
+                double difference = (float) query[b] - (float) histograms[i][b];
+                sum += difference * difference;
+            }
+            best.offer(sum, i);
+        }
+        double[] scores = new double[K];
+        long[] ids = new long[K];
+        int count = best.sorted(scores, ids);
+        int[] nearest = new int[count];
+        for (int i = 0; i < count; i++) {
+            nearest[i] = (int) ids[i];
+        }
+        return nearest;
+    }
+
+    private static int overlap(List<HistogramIndex.Neighbour> found, int[] exact) {
+        int hits = 0;
+        for (HistogramIndex.Neighbour neighbour : found) {
+            for (int id : exact) {
+                if (neighbour.id == id) {
+                    hits++;
+                    break;
+                }
+            }
+        }
+        return hits;
+    }
+}
@@ -0,0 +1,402 @@
+import org.openimaj.math.statistics.distribution.MultidimensionalHistogram;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+//A file of histograms that can be opened and read without decoding anything: the file is memory-mapped, so opening
+//it takes milliseconds whatever its size, rows are only read from disk when touched, and several processes reading
+//the same file share one copy in the page cache.
+//Layout (little-endian):
+//  header: magic "HIST", format version, encoding, number of dimensions, the number of bins of each dimension,
+//          the number of rows (long) and the size of a row in bytes, padded to a multiple of 16 bytes
+//  rows:   one fixed-size row per histogram, in the order they were added, bins in MultidimensionalHistogram order
+//A row holds every bin as FLOAT64 (the doubles exactly as given), FLOAT32 (half the size, exact for values that fit
+//a float), FLOAT16 (a quarter of the size, about 3 significant digits) or UINT8 (an eighth of the size: a float
+//scale, the largest bin of the row, then each bin as a byte from 0 to 255 of that scale).
+//Histograms are appended with a RowWriter (create) and read back with open. A RowWriter writes to a temporary file
+//beside the store and renames it into place when closed, so a store is never seen half written
+public class HistogramStore {
+
+    public enum Encoding {
+        //FLOAT64 comes last so that the encodings of stores already written keep their numbers
+        FLOAT32, FLOAT16, UINT8, FLOAT64
+    }
+
+    private static final int MAGIC = 0x54534948;
+    private static final int VERSION = 1;
+
+    private final int[] nbins;
+    private final int length;
+    private final Encoding encoding;
+    private final long rows;
+    private final int rowBytes;
+
+    //The rows, mapped in segments as a single mapping cannot be larger than 2GB
+    private final MappedByteBuffer[] segments;
+    private final int rowsPerSegment;
+
+    private HistogramStore(int[] nbins, Encoding encoding, long rows, int rowBytes, MappedByteBuffer[] segments,
+                           int rowsPerSegment) {
+        this.nbins = nbins;
+        this.length = product(nbins);
+        this.encoding = encoding;
+        this.rows = rows;
+        this.rowBytes = rowBytes;
+        this.segments = segments;
+        this.rowsPerSegment = rowsPerSegment;
+    }
+
+    //Maps the store in the file for reading. The file can be closed and the store used from many threads
+    public static HistogramStore open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, header, 0);
+            if (header.getInt(0) != MAGIC) {
+                throw new IOException("Not a histogram store: " + file);
+            }
+            if (header.getInt(4) != VERSION) {
+                throw new IOException("Unsupported histogram store version " + header.getInt(4) + ": " + file);
+            }
+            int encodingOrdinal = header.getInt(8);
+            int dimensions = header.getInt(12);
+            if (encodingOrdinal < 0 || encodingOrdinal >= Encoding.values().length || dimensions < 1
+                    || dimensions > 64) {
+                throw new IOException("Corrupt histogram store header: " + file);
+            }
+            Encoding encoding = Encoding.values()[encodingOrdinal];
+
+            ByteBuffer rest = ByteBuffer.allocate(4 * dimensions + 12).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, rest, 16);
+            int[] nbins = new int[dimensions];
+            for (int d = 0; d < dimensions; d++) {
+                nbins[d] = rest.getInt(4 * d);
+            }
+            long rows = rest.getLong(4 * dimensions);
+            int rowBytes = rest.getInt(4 * dimensions + 8);
+            for (int bins : nbins) {
+                if (bins < 1) {
+                    throw new IOException("Corrupt histogram store header: " + file);
+                }
+            }
+            if (rows < 0 || rowBytes != rowBytes(encoding, product(nbins))) {
+                throw new IOException("Corrupt histogram store header: " + file);
+            }
+
+            long dataStart = headerBytes(dimensions);
+            if (channel.size() < dataStart + rows * rowBytes) {
+                throw new IOException("Histogram store is truncated: " + file);
+            }
+            int rowsPerSegment = Integer.MAX_VALUE / rowBytes;
+            int nSegments = (int) ((rows + rowsPerSegment - 1) / rowsPerSegment);
+            MappedByteBuffer[] segments = new MappedByteBuffer[nSegments];
+            for (int s = 0; s < nSegments; s++) {
+                long first = (long) s * rowsPerSegment;
+                long count = Math.min(rowsPerSegment, rows - first);
+                segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, dataStart + first * rowBytes, count * rowBytes);
+                segments[s].order(ByteOrder.LITTLE_ENDIAN);
+            }
+            return new HistogramStore(nbins, encoding, rows, rowBytes, segments, rowsPerSegment);
+        } finally {
+            raf.close();
+        }
+    }
+
+    //Starts a new store in the file (replacing anything there) for histograms of the given bins
+    public static RowWriter create(File file, int[] nbins, Encoding encoding) throws IOException {
+        return new RowWriter(file, nbins, encoding);
+    }
+
+    //Writes the histograms to a new store in the file
+    public static void write(File file, List<MultidimensionalHistogram> histograms, int[] nbins, Encoding encoding)
+            throws IOException {
+        RowWriter writer = create(file, nbins, encoding);
+        boolean written = false;
+        try {
+            for (MultidimensionalHistogram histogram : histograms) {
+                writer.add(histogram.values);
+            }
+            written = true;
+        } finally {
+            if (written) {
+                writer.close();
+            } else {
+                writer.discard();
+            }
+        }
+    }
+
+    public int size() {
+        return (int) Math.min(rows, Integer.MAX_VALUE);
+    }
+
+    public int[] getBins() {
+        return nbins.clone();
+    }
+
+    //Number of values in each histogram
+    public int length() {
+        return length;
+    }
+
+    public Encoding getEncoding() {
+        return encoding;
+    }
+
+    //Reads histogram row into out[offset...]
+    public void read(int row, double[] out, int offset) {
+        if (row < 0 || row >= rows) {
+            throw new IndexOutOfBoundsException("No row " + row);
+        }
+        ByteBuffer segment = segments[row / rowsPerSegment];
+        int position = (row % rowsPerSegment) * rowBytes;
+        switch (encoding) {
+            case FLOAT32:
+                for (int b = 0; b < length; b++) {
+                    out[offset + b] = segment.getFloat(position + 4 * b);
+                }
+                break;
+            case FLOAT16:
+                for (int b = 0; b < length; b++) {
+                    out[offset + b] = halfToFloat(segment.getShort(position + 2 * b));
+                }
+                break;
+            case FLOAT64:
+                for (int b = 0; b < length; b++) {
+                    out[offset + b] = segment.getDouble(position + 8 * b);
+                }
+                break;
+            default: {
+                float scale = segment.getFloat(position) / 255;
+                for (int b = 0; b < length; b++) {
+                    out[offset + b] = (segment.get(position + 4 + b) & 0xff) * scale;
+                }
+            }
+        }
+    }
+
+    public MultidimensionalHistogram get(int row) {
+        MultidimensionalHistogram histogram = new MultidimensionalHistogram(nbins);
+        read(row, histogram.values, 0);
+        return histogram;
+    }
+
+    //Every histogram, as MultidimensionalHistograms
+    public List<MultidimensionalHistogram> getAll() {
+        List<MultidimensionalHistogram> histograms = new ArrayList<MultidimensionalHistogram>(size());
+        for (int row = 0; row < size(); row++) {
+            histograms.add(get(row));
+        }
+        return histograms;
+    }
+
+    //Every histogram one after another in one array, as HistogramDistanceMatrix takes them
+    public double[] toPackedArray() {
+        double[] packed = new double[size() * length];
+        for (int row = 0; row < size(); row++) {
+            read(row, packed, row * length);
+        }
+        return packed;
+    }
+
+    //Appends histograms to a new store; the number of rows in the header is filled in by close(), which then moves the
+    //store into place. discard() gives up on it instead, leaving the file as it was
+    public static class RowWriter implements Closeable {
+
+        private static final int BUFFER_BYTES = 1 << 20;
+
+        private final File target;
+        private final File temporary;
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final int dimensions;
+        private final int length;
+        private final Encoding encoding;
+        private final ByteBuffer buffer;
+        private long rows;
+
+        private RowWriter(File file, int[] nbins, Encoding encoding) throws IOException {
+            this.target = file;
+            this.temporary = File.createTempFile("hist", ".tmp", file.getAbsoluteFile().getParentFile());
+            this.file = new RandomAccessFile(temporary, "rw");
+            this.channel = this.file.getChannel();
+            this.dimensions = nbins.length;
+            this.length = product(nbins);
+            this.encoding = encoding;
+            int rowBytes = rowBytes(encoding, length);
+            buffer = ByteBuffer.allocate(Math.max(BUFFER_BYTES, rowBytes)).order(ByteOrder.LITTLE_ENDIAN);
+
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(encoding.ordinal()).putInt(dimensions);
+            for (int bins : nbins) {
+                buffer.putInt(bins);
+            }
+            buffer.putLong(0).putInt(rowBytes);
+            while (buffer.position() < headerBytes(dimensions)) {
+                buffer.put((byte) 0);
+            }
+        }
+
+        public void add(MultidimensionalHistogram histogram) throws IOException {
+            add(histogram.values);
+        }
+
+        public void add(double[] histogram) throws IOException {
+            if (histogram.length != length) {
+                throw new IllegalArgumentException("Expected a histogram of " + length + " bins");
+            }
+            if (buffer.remaining() < rowBytes(encoding, length)) {
+                flush();
+            }
+            switch (encoding) {
+                case FLOAT32:
+                    for (double value : histogram) {
+                        buffer.putFloat((float) value);
+                    }
+                    break;
+                case FLOAT16:
+                    for (double value : histogram) {
+                        buffer.putShort(floatToHalf((float) value));
+                    }
+                    break;
+                case FLOAT64:
+                    for (double value : histogram) {
+                        buffer.putDouble(value);
+                    }
+                    break;
+                default: {
+                    float max = 0;
+                    for (double value : histogram) {
+                        max = Math.max(max, (float) value);
+                    }
+                    buffer.putFloat(max);
+                    for (double value : histogram) {
+                        buffer.put((byte) (max == 0 ? 0 : Math.round(Math.max(0, value) / max * 255)));
+                    }
+                }
+            }
+            rows++;
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        //Writes out the remaining rows and the row count, and moves the store into place
+        @Override
+        public void close() throws IOException {
+            boolean moved = false;
+            try {
+                flush();
+                ByteBuffer count = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+                count.putLong(0, rows);
+                channel.write(count, 16 + 4 * dimensions);
+                file.close();
+                Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                moved = true;
+            } finally {
+                file.close();
+                if (!moved) {
+                    temporary.delete();
+                }
+            }
+        }
+
+        //Deletes what has been written, without touching the store's file
+        public void discard() throws IOException {
+            try {
+                file.close();
+            } finally {
+                temporary.delete();
+            }
+        }
+    }
+
+    private static int product(int[] nbins) {
+        int length = 1;
+        for (int bins : nbins) {
+            length *= bins;
+        }
+        return length;
+    }
+
+    private static int rowBytes(Encoding encoding, int length) {
+        switch (encoding) {
+            case FLOAT32:
+                return 4 * length;
+            case FLOAT16:
+                return 2 * length;
+            case FLOAT64:
+                return 8 * length;
+            default:
+                return 4 + length;
+        }
+    }
+
+    private static long headerBytes(int dimensions) {
+        return (16 + 4 * dimensions + 12 + 15) / 16 * 16;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of histogram store");
+            }
+        }
+    }
+
+    //IEEE 754 half precision, rounding to the nearest (ties to even); too large values become infinity
+    static short floatToHalf(float value) {
+        int bits = Float.floatToIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int magnitude = bits & 0x7fffffff;
+        if (magnitude >= 0x7f800000) {
+            //infinity or NaN
+            return (short) (sign | 0x7c00 | (magnitude > 0x7f800000 ? 0x200 : 0));
+        }
+        if (magnitude >= 0x477ff000) {
+            //65520 and above round to infinity
+            return (short) (sign | 0x7c00);
+        }
+        if (magnitude >= 0x38800000) {
+            //normal: rebias the exponent from 127 to 15 and drop 13 bits of mantissa, rounding
+            int half = (magnitude - 0x38000000) >>> 13;
+            int dropped = magnitude & 0x1fff;
+            if (dropped > 0x1000 || (dropped == 0x1000 && (half & 1) != 0)) {
+                half++;
+            }
+            return (short) (sign | half);
+        }
+        //subnormal (or zero): a whole number of units of 2^-24
+        return (short) (sign | (int) Math.rint(Float.intBitsToFloat(magnitude) * 16777216f));
+    }
+
+    static float halfToFloat(short half) {
+        int sign = (half & 0x8000) << 16;
+        int exponent = (half >>> 10) & 0x1f;
+        int mantissa = half & 0x3ff;
+        if (exponent == 0x1f) {
+            return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+        }
+        if (exponent == 0) {
+            float subnormal = mantissa / 16777216f;
+            return sign == 0 ? subnormal : -subnormal;
+        }
+        return Float.intBitsToFloat(sign | ((exponent + 112) << 23) | (mantissa << 13));
+    }
+}
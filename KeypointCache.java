@@ -0,0 +1,285 @@
+import org.openimaj.feature.local.list.LocalFeatureList;
+import org.openimaj.feature.local.list.MemoryLocalFeatureList;
+import org.openimaj.image.FImage;
+import org.openimaj.image.feature.local.engine.Engine;
+import org.openimaj.image.feature.local.keypoints.Keypoint;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+//An Engine that remembers the keypoints another Engine (DoGSIFTEngine, ParallelDoGSIFTEngine...) found in each
+//image, in a directory, so an image seen before (on this or an earlier run) is not processed again.
+//Entries are keyed by a SHA-256 of the image's size and pixels, the engine's class and a description of its settings
+//given by the caller (e.g. ParallelDoGSIFTEngine.getSettings(), or the DoGSIFTEngineOptions changed from their
+//defaults), so the same picture read from anywhere hits, and a changed picture, or an engine with other settings,
+//misses. Bump the description when anything else that changes the keypoints changes.
+//Each entry is one file (little-endian):
+//  header: magic "KPTS", format version, number of keypoints, descriptor length
+//  then one fixed-size record per keypoint: x, y, scale and orientation as floats, then the descriptor bytes
+//which is read back through a memory mapping. When the files add up to more than maxBytes, the least recently used
+//ones are deleted. Files are written under a temporary name and renamed into place, so a reader (or another
+//process) never sees half an entry; a file that cannot be read is treated as a miss and replaced.
+//Thread safe: extraction happens outside the lock, so several threads can be extracting at once
+public class KeypointCache implements Engine<Keypoint, FImage> {
+
+    private static final int MAGIC = 0x5354504b;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 16;
+    private static final String SUFFIX = ".kpts";
+
+    private final File directory;
+    private final long maxBytes;
+    private final Engine<Keypoint, FImage> engine;
+    private final String settings;
+
+    //Entry file name to size, least recently used first
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private long totalBytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    //settings: anything about the engine besides its class that changes the keypoints it finds
+    public KeypointCache(File directory, long maxBytes, Engine<Keypoint, FImage> engine, String settings)
+            throws IOException {
+        if (settings == null) {
+            throw new IllegalArgumentException("The engine's settings must be given, even if empty");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create keypoint cache directory " + directory);
+        }
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.engine = engine;
+        this.settings = settings;
+
+        //existing entries, oldest first, so the ones from earlier runs are evicted in the order they were used
+        File[] files = directory.listFiles();
+        if (files != null) {
+            Arrays.sort(files, new Comparator<File>() {
+                @Override
+                public int compare(File a, File b) {
+                    return Long.compare(a.lastModified(), b.lastModified());
+                }
+            });
+            for (File file : files) {
+                if (file.getName().endsWith(SUFFIX)) {
+                    entries.put(file.getName(), file.length());
+                    totalBytes += file.length();
+                }
+            }
+        }
+        synchronized (this) {
+            evict();
+        }
+    }
+
+    //The keypoints of the image: from the cache if it has been seen before, otherwise from the engine (and then
+    //cached)
+    @Override
+    public LocalFeatureList<Keypoint> findFeatures(FImage image) {
+        String name = key(image) + SUFFIX;
+        File file = new File(directory, name);
+        boolean known;
+        synchronized (this) {
+            known = entries.get(name) != null;
+        }
+        if (known) {
+            try {
+                LocalFeatureList<Keypoint> keypoints = read(file);
+                synchronized (this) {
+                    hits++;
+                }
+                //so other processes sharing the directory see it as recently used too
+                file.setLastModified(System.currentTimeMillis());
+                return keypoints;
+            } catch (IOException e) {
+                //deleted by another process, or damaged: extract again
+                synchronized (this) {
+                    remove(name);
+                }
+            }
+        }
+
+        LocalFeatureList<Keypoint> keypoints = engine.findFeatures(image);
+        synchronized (this) {
+            misses++;
+        }
+        try {
+            long size = write(file, keypoints);
+            synchronized (this) {
+                remove(name);
+                entries.put(name, size);
+                totalBytes += size;
+                evict();
+            }
+        } catch (IOException e) {
+            //the keypoints are still good, they are just not cached
+        }
+        return keypoints;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    //The size of all the cached entries
+    public synchronized long getBytes() {
+        return totalBytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private void remove(String name) {
+        Long size = entries.remove(name);
+        if (size != null) {
+            totalBytes -= size;
+        }
+    }
+
+    //Deletes the least recently used entries until the total is within maxBytes
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            new File(directory, eldest.getKey()).delete();
+            totalBytes -= eldest.getValue();
+            it.remove();
+            evictions++;
+        }
+    }
+
+    //SHA-256 of the engine's class and settings, the image's size and its pixels, in hex
+    private String key(FImage image) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        //each string is preceded by its length, so the class and settings cannot run into each other
+        for (String part : new String[]{engine.getClass().getName(), settings}) {
+            byte[] bytes = part.getBytes(StandardCharsets.UTF_8);
+            digest.update(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(bytes.length).array());
+            digest.update(bytes);
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        ByteBuffer row = ByteBuffer.allocate(Math.max(8, 4 * width)).order(ByteOrder.LITTLE_ENDIAN);
+        row.putInt(width).putInt(height).flip();
+        digest.update(row);
+        for (int y = 0; y < height; y++) {
+            row.clear();
+            row.asFloatBuffer().put(image.pixels[y], 0, width);
+            row.limit(4 * width);
+            digest.update(row);
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    private static LocalFeatureList<Keypoint> read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        MappedByteBuffer buffer;
+        try {
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.limit() < HEADER_BYTES || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not a keypoint cache entry: " + file);
+        }
+        int count = buffer.getInt(8);
+        int descriptorLength = buffer.getInt(12);
+        int recordBytes = 16 + descriptorLength;
+        if (count < 0 || descriptorLength < 0 || buffer.limit() != HEADER_BYTES + (long) count * recordBytes) {
+            throw new IOException("Truncated keypoint cache entry: " + file);
+        }
+
+        MemoryLocalFeatureList<Keypoint> keypoints = new MemoryLocalFeatureList<Keypoint>();
+        buffer.position(HEADER_BYTES);
+        for (int i = 0; i < count; i++) {
+            float x = buffer.getFloat();
+            float y = buffer.getFloat();
+            float scale = buffer.getFloat();
+            float ori = buffer.getFloat();
+            byte[] ivec = new byte[descriptorLength];
+            buffer.get(ivec);
+            keypoints.add(new Keypoint(x, y, ori, scale, ivec));
+        }
+        return keypoints;
+    }
+
+    //Writes the entry under a temporary name and moves it into place; returns its size
+    private static long write(File file, LocalFeatureList<Keypoint> keypoints) throws IOException {
+        int descriptorLength = keypoints.isEmpty() ? 0 : keypoints.get(0).ivec.length;
+        int recordBytes = 16 + descriptorLength;
+        File temporary = File.createTempFile("kpts", ".tmp", file.getParentFile());
+        boolean moved = false;
+        RandomAccessFile raf = new RandomAccessFile(temporary, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(Math.max(HEADER_BYTES, Math.min(1 << 20,
+                    HEADER_BYTES + keypoints.size() * recordBytes))).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(keypoints.size()).putInt(descriptorLength);
+            for (Keypoint keypoint : keypoints) {
+                if (keypoint.ivec.length != descriptorLength) {
+                    throw new IOException("Keypoints with descriptors of different lengths cannot be cached");
+                }
+                if (buffer.remaining() < recordBytes) {
+                    flush(channel, buffer);
+                }
+                buffer.putFloat(keypoint.x).putFloat(keypoint.y).putFloat(keypoint.scale).putFloat(keypoint.ori);
+                buffer.put(keypoint.ivec);
+            }
+            flush(channel, buffer);
+            raf.close();
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            moved = true;
+        } finally {
+            raf.close();
+            if (!moved) {
+                temporary.delete();
+            }
+        }
+        return file.length();
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
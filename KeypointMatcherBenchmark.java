@@ -0,0 +1,125 @@
+import org.openimaj.image.feature.local.keypoints.Keypoint;
+import org.openimaj.time.Timer;
+import org.openimaj.util.pair.Pair;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+//Compares ForestKeypointMatcher with a brute-force nearest-neighbour ratio test (what BasicMatcher does) on
+//synthetic 128-byte descriptors: 10000 model keypoints (or the number given as the first argument) and as many
+//target keypoints, half of them noisy copies of model keypoints and half unrelated.
+//Reports the time of each, and how many of the brute-force matches the forest also finds, for a range of checks
+public class KeypointMatcherBenchmark {
+
+    private static final int DIMS = 128;
+    private static final int[] CHECKS = {64, 128, 256, 512, 1024};
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        Random random = new Random(42);
+
+        //descriptors gathered around a few hundred "textures", like SIFT descriptors of real images
+        byte[][] centres = new byte[300][];
+        for (int c = 0; c < centres.length; c++) {
+            centres[c] = randomDescriptor(random, null, 0);
+        }
+        List<Keypoint> model = new ArrayList<Keypoint>();
+        for (int i = 0; i < n; i++) {
+            model.add(keypoint(randomDescriptor(random, centres[random.nextInt(centres.length)], 30)));
+        }
+        List<Keypoint> target = new ArrayList<Keypoint>();
+        for (int i = 0; i < n; i++) {
+            byte[] descriptor = i % 2 == 0
+                    ? randomDescriptor(random, model.get(random.nextInt(n)).ivec, 6)
+                    : randomDescriptor(random, centres[random.nextInt(centres.length)], 30);
+            target.add(keypoint(descriptor));
+        }
+
+        Timer t1 = Timer.timer();
+        int[] exact = bruteForce(model, target, ForestKeypointMatcher.DEFAULT_RATIO);
+        long bruteTime = t1.duration();
+        int exactMatches = 0;
+        for (int m : exact) {
+            if (m >= 0) {
+                exactMatches++;
+            }
+        }
+        System.out.println("Brute force: " + exactMatches + " matches in " + bruteTime + " ms");
+
+        Map<Keypoint, Integer> targetIndex = new IdentityHashMap<Keypoint, Integer>();
+        for (int i = 0; i < n; i++) {
+            targetIndex.put(target.get(i), i);
+        }
+
+        System.out.println("checks\tbuild (ms)\tmatch (ms)\tmatches\tagreeing with brute force");
+        for (int checks : CHECKS) {
+            ForestKeypointMatcher<Keypoint> matcher = new ForestKeypointMatcher<Keypoint>(
+                    ForestKeypointMatcher.DEFAULT_RATIO, checks, ByteKDForest.DEFAULT_TREES);
+            Timer t2 = Timer.timer();
+            matcher.setModelFeatures(model);
+            long buildTime = t2.duration();
+
+            Timer t3 = Timer.timer();
+            matcher.findMatches(target);
+            long matchTime = t3.duration();
+
+            //the pairs keep the keypoint objects, so a match agrees if the same model keypoint was chosen
+            int agreeing = 0;
+            for (Pair<Keypoint> pair : matcher.getMatches()) {
+                int i = targetIndex.get(pair.firstObject());
+                if (exact[i] >= 0 && model.get(exact[i]) == pair.secondObject()) {
+                    agreeing++;
+                }
+            }
+            System.out.println(checks + "\t" + buildTime + "\t" + matchTime + "\t" + matcher.getMatches().size()
+                    + "\t" + agreeing);
+        }
+    }
+
+    //For each target keypoint, the model keypoint it matches by the ratio test over all model keypoints, or -1
+    private static int[] bruteForce(List<Keypoint> model, List<Keypoint> target, float ratio) {
+        int[] matches = new int[target.size()];
+        for (int i = 0; i < target.size(); i++) {
+            byte[] query = target.get(i).ivec;
+            long best = Long.MAX_VALUE;
+            long second = Long.MAX_VALUE;
+            int bestIndex = -1;
+            for (int j = 0; j < model.size(); j++) {
+                byte[] descriptor = model.get(j).ivec;
+                long sum = 0;
+                for (int d = 0; d < DIMS; d++) {
+                    int difference = query[d] - descriptor[d];
+                    sum += difference * difference;
+                }
+                if (sum < best) {
+                    second = best;
+                    best = sum;
+                    bestIndex = j;
+                } else if (sum < second) {
+                    second = sum;
+                }
+            }
+            matches[i] = best < ratio * ratio * second ? bestIndex : -1;
+        }
+        return matches;
+    }
+
+    private static Keypoint keypoint(byte[] descriptor) {
+        Keypoint keypoint = new Keypoint(DIMS);
+        keypoint.ivec = descriptor;
+        return keypoint;
+    }
+
+    //Random bytes, or base with uniform noise of up to +-noise
+    private static byte[] randomDescriptor(Random random, byte[] base, int noise) {
+        byte[] descriptor = new byte[DIMS];
+        for (int d = 0; d < DIMS; d++) {
+            int value = base == null ? random.nextInt(256) - 128 : base[d] + random.nextInt(2 * noise + 1) - noise;
+            descriptor[d] = (byte) Math.max(-128, Math.min(127, value));
+        }
+        return descriptor;
+    }
+}
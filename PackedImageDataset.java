@@ -0,0 +1,515 @@
+import org.openimaj.data.dataset.GroupedDataset;
+import org.openimaj.data.dataset.ListBackedDataset;
+import org.openimaj.data.dataset.ListDataset;
+import org.openimaj.data.dataset.MapBackedDataset;
+import org.openimaj.data.dataset.VFSGroupDataset;
+import org.openimaj.data.dataset.VFSListDataset;
+import org.openimaj.image.FImage;
+import org.openimaj.image.ImageUtilities;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+//A dataset of greyscale images kept decoded in one file, so a dataset such as the zipped faces of Chapter6 and
+//Chapter13 is inflated and decoded once (by write, or by running this class) instead of on every run. The file is
+//memory-mapped: opening it reads a 32-byte header whatever the number of images, get(i) copies image i's pixels
+//straight from the mapping into an FImage (getPixels(i) gives the mapped bytes themselves), and several processes
+//reading the same file share one copy in the page cache.
+//Layout (little-endian):
+//  header:  magic "PIMG", format version, encoding, number of groups, number of images, size of the largest image in
+//           bytes, size of the group names in bytes, and a reserved int
+//  groups:  for each group, the index of its first image, its number of images and where its name starts
+//  names:   the groups' names in UTF-8, padded to a multiple of 16 bytes
+//  images:  for each image, where its pixels start in the file (long), its width and its height
+//  pixels:  each image's pixels, row by row, as FLOAT32 (exact) or UINT8 (a quarter of the size; exact for images
+//           decoded from 8-bit files, as ImageUtilities.FIMAGE_READER gives), padded to a multiple of 4 bytes
+//The file is written under a temporary name and renamed into place when complete, and the magic number is written
+//last, so a file whose export did not finish is never opened.
+//Images are numbered from 0 across all the groups, in group order; asGrouped() gives them back as a GroupedDataset
+//of one ListDataset per group, which can stand in for the VFSGroupDataset it was written from
+public class PackedImageDataset extends AbstractList<FImage> implements ListDataset<FImage> {
+
+    public enum Encoding {
+        FLOAT32, UINT8
+    }
+
+    private static final int MAGIC = 0x474d4950;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+    private static final int GROUP_BYTES = 12;
+    private static final int IMAGE_BYTES = 16;
+    //Pixels are mapped in segments, as a single mapping cannot be larger than 2GB; each segment also maps the size of
+    //the largest image past its end, so an image starting in a segment always ends in it
+    private static final long SEGMENT_BYTES = 1L << 30;
+
+    private final Encoding encoding;
+    private final int nGroups;
+    private final int nImages;
+    private final int namesBytes;
+    //The group table, names and image table
+    private final MappedByteBuffer index;
+    private final int namesStart;
+    private final int imagesStart;
+    private final long dataStart;
+    private final MappedByteBuffer[] segments;
+    private final Random random = new Random();
+
+    //Group name to images, read when first asked for
+    private Map<String, ListDataset<FImage>> groups;
+
+    private PackedImageDataset(Encoding encoding, int nGroups, int nImages, int namesBytes, long dataStart,
+                               MappedByteBuffer index, MappedByteBuffer[] segments) {
+        this.encoding = encoding;
+        this.nGroups = nGroups;
+        this.nImages = nImages;
+        this.namesBytes = namesBytes;
+        this.namesStart = GROUP_BYTES * nGroups;
+        this.imagesStart = namesStart + pad16(namesBytes);
+        this.dataStart = dataStart;
+        this.index = index;
+        this.segments = segments;
+    }
+
+    //Converts a VFSGroupDataset (or VFSListDataset with -list) to a packed file, e.g.
+    //  PackedImageDataset zip:/data/att_faces.zip faces.pimg UINT8
+    //or with -check, writes and reads back images of sizes that are not multiples of 4 in both encodings
+    public static void main(String[] args) throws IOException {
+        if (args.length == 1 && args[0].equals("-check")) {
+            System.exit(check() ? 0 : 1);
+        }
+        boolean list = args.length > 0 && args[0].equals("-list");
+        int first = list ? 1 : 0;
+        if (args.length - first < 2) {
+            System.err.println("Usage: PackedImageDataset [-list] <directory or zip:archive> <output file>"
+                    + " [FLOAT32|UINT8]");
+            System.exit(1);
+        }
+        File output = new File(args[first + 1]);
+        Encoding encoding = args.length - first > 2 ? Encoding.valueOf(args[first + 2]) : Encoding.UINT8;
+        long start = System.currentTimeMillis();
+        if (list) {
+            write(output, new VFSListDataset<FImage>(args[first], ImageUtilities.FIMAGE_READER), encoding);
+        } else {
+            write(output, new VFSGroupDataset<FImage>(args[first], ImageUtilities.FIMAGE_READER), encoding);
+        }
+        PackedImageDataset packed = open(output);
+        System.out.println(packed.size() + " images in " + packed.getGroupNames().size() + " groups written to "
+                + output + " (" + output.length() + " bytes) in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    //Packs images of a few sizes, some of them not a multiple of 4 pixels (so the padding matters), in each encoding,
+    //and compares what is read back with what was written; prints the result for each encoding
+    private static boolean check() throws IOException {
+        int[][] sizes = {{3, 3}, {5, 5}, {4, 4}, {7, 1}, {1, 2}, {640, 480}};
+        Random random = new Random(42);
+        List<FImage> images = new ArrayList<FImage>();
+        for (int[] size : sizes) {
+            FImage image = new FImage(size[0], size[1]);
+            for (float[] row : image.pixels) {
+                for (int x = 0; x < row.length; x++) {
+                    //whole multiples of 1/255, which UINT8 keeps exactly
+                    row[x] = random.nextInt(256) / 255f;
+                }
+            }
+            images.add(image);
+        }
+
+        boolean ok = true;
+        File file = File.createTempFile("check", ".pimg");
+        try {
+            for (Encoding encoding : Encoding.values()) {
+                write(file, new ListBackedDataset<FImage>(images), encoding);
+                PackedImageDataset packed = open(file);
+                float maxDifference = packed.size() == images.size() ? 0 : Float.POSITIVE_INFINITY;
+                for (int i = 0; i < Math.min(packed.size(), images.size()); i++) {
+                    FImage expected = images.get(i);
+                    FImage actual = packed.getInstance(i);
+                    if (actual.getWidth() != expected.getWidth() || actual.getHeight() != expected.getHeight()) {
+                        maxDifference = Float.POSITIVE_INFINITY;
+                        continue;
+                    }
+                    for (int y = 0; y < expected.getHeight(); y++) {
+                        for (int x = 0; x < expected.getWidth(); x++) {
+                            maxDifference = Math.max(maxDifference,
+                                    Math.abs(actual.pixels[y][x] - expected.pixels[y][x]));
+                        }
+                    }
+                }
+                //UINT8 rounds through a byte, so it is exact to within float error
+                boolean exact = maxDifference <= (encoding == Encoding.FLOAT32 ? 0 : 1e-6f);
+                System.out.println(encoding + ": " + packed.size() + " images, largest difference " + maxDifference
+                        + (exact ? "" : " FAILED"));
+                ok &= exact;
+            }
+        } finally {
+            file.delete();
+        }
+        return ok;
+    }
+
+    //Maps the dataset in the file for reading. The file can be closed and the dataset used from many threads
+    public static PackedImageDataset open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, header, 0);
+            if (header.getInt(0) != MAGIC) {
+                throw new IOException("Not a packed image dataset: " + file);
+            }
+            if (header.getInt(4) != VERSION) {
+                throw new IOException("Unsupported packed image dataset version " + header.getInt(4) + ": " + file);
+            }
+            int encodingOrdinal = header.getInt(8);
+            int nGroups = header.getInt(12);
+            int nImages = header.getInt(16);
+            int maxImageBytes = header.getInt(20);
+            int namesBytes = header.getInt(24);
+            if (encodingOrdinal < 0 || encodingOrdinal >= Encoding.values().length || nGroups < 0 || nImages < 0
+                    || maxImageBytes < 0 || namesBytes < 0) {
+                throw new IOException("Corrupt packed image dataset header: " + file);
+            }
+            Encoding encoding = Encoding.values()[encodingOrdinal];
+
+            long indexBytes = indexBytes(nGroups, namesBytes, nImages);
+            long dataStart = HEADER_BYTES + indexBytes;
+            if (indexBytes > Integer.MAX_VALUE || channel.size() < dataStart) {
+                throw new IOException("Corrupt packed image dataset header: " + file);
+            }
+            MappedByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES, indexBytes);
+            index.order(ByteOrder.LITTLE_ENDIAN);
+
+            long dataBytes = channel.size() - dataStart;
+            int nSegments = (int) ((dataBytes + SEGMENT_BYTES - 1) / SEGMENT_BYTES);
+            MappedByteBuffer[] segments = new MappedByteBuffer[nSegments];
+            for (int s = 0; s < nSegments; s++) {
+                long first = s * SEGMENT_BYTES;
+                segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, dataStart + first,
+                        Math.min(dataBytes - first, SEGMENT_BYTES + maxImageBytes));
+            }
+            return new PackedImageDataset(encoding, nGroups, nImages, namesBytes, dataStart, index, segments);
+        } finally {
+            raf.close();
+        }
+    }
+
+    //Writes every group of the dataset (in the order of getGroups()) to a new packed file
+    public static void write(File file, GroupedDataset<String, ? extends ListDataset<FImage>, FImage> dataset,
+                             Encoding encoding) throws IOException {
+        List<String> names = new ArrayList<String>(dataset.getGroups());
+        List<ListDataset<FImage>> groups = new ArrayList<ListDataset<FImage>>();
+        for (String name : names) {
+            groups.add(dataset.get(name));
+        }
+        write(file, names, groups, encoding);
+    }
+
+    //Writes the dataset to a new packed file, as a single group with an empty name
+    public static void write(File file, ListDataset<FImage> dataset, Encoding encoding) throws IOException {
+        write(file, Collections.singletonList(""), Collections.singletonList(dataset), encoding);
+    }
+
+    private static void write(File file, List<String> names, List<? extends ListDataset<FImage>> groups,
+                              Encoding encoding) throws IOException {
+        byte[][] nameBytes = new byte[names.size()][];
+        int namesBytes = 0;
+        long total = 0;
+        for (int g = 0; g < names.size(); g++) {
+            nameBytes[g] = names.get(g).getBytes(StandardCharsets.UTF_8);
+            namesBytes += nameBytes[g].length;
+            total += groups.get(g).size();
+        }
+        long indexBytes = indexBytes(names.size(), namesBytes, total);
+        if (total > Integer.MAX_VALUE || indexBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many images or groups to pack: " + total);
+        }
+        int nImages = (int) total;
+
+        //written under a temporary name in the same directory and moved into place, so an export that does not finish
+        //never leaves a file behind under the real name
+        File temporary = File.createTempFile("pimg", ".tmp", file.getAbsoluteFile().getParentFile());
+        boolean moved = false;
+        RandomAccessFile raf = new RandomAccessFile(temporary, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer index = ByteBuffer.allocate((int) indexBytes).order(ByteOrder.LITTLE_ENDIAN);
+            int first = 0;
+            int nameOffset = 0;
+            for (int g = 0; g < names.size(); g++) {
+                index.putInt(first).putInt(groups.get(g).size()).putInt(nameOffset);
+                first += groups.get(g).size();
+                nameOffset += nameBytes[g].length;
+            }
+            for (byte[] name : nameBytes) {
+                index.put(name);
+            }
+            index.position(GROUP_BYTES * names.size() + pad16(namesBytes));
+
+            //the pixels, images decoded ahead on other threads; the header and index are filled in at the end
+            long position = HEADER_BYTES + indexBytes;
+            channel.position(position);
+            int maxImageBytes = 0;
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+            for (ListDataset<FImage> group : groups) {
+                PrefetchingIterator<FImage> images = new PrefetchingIterator<FImage>(group);
+                try {
+                    while (images.hasNext()) {
+                        FImage image = images.next();
+                        int width = image.getWidth();
+                        int height = image.getHeight();
+                        long pixelBytes = (long) width * height * (encoding == Encoding.FLOAT32 ? 4 : 1);
+                        long imageBytes = pad4(pixelBytes);
+                        if (imageBytes > Integer.MAX_VALUE - SEGMENT_BYTES) {
+                            throw new IllegalArgumentException("Image too large to pack: " + width + "x" + height);
+                        }
+                        index.putLong(position).putInt(width).putInt(height);
+                        maxImageBytes = Math.max(maxImageBytes, (int) imageBytes);
+                        position += imageBytes;
+                        for (int y = 0; y < height; y++) {
+                            float[] row = image.pixels[y];
+                            for (int x = 0; x < width; x++) {
+                                if (buffer.remaining() < 4) {
+                                    flush(channel, buffer);
+                                }
+                                if (encoding == Encoding.FLOAT32) {
+                                    buffer.putFloat(row[x]);
+                                } else {
+                                    buffer.put((byte) Math.round(Math.max(0, Math.min(1, row[x])) * 255));
+                                }
+                            }
+                        }
+                        for (long padding = pixelBytes; padding < imageBytes; padding++) {
+                            if (buffer.remaining() < 1) {
+                                flush(channel, buffer);
+                            }
+                            buffer.put((byte) 0);
+                        }
+                    }
+                } finally {
+                    images.close();
+                }
+            }
+            flush(channel, buffer);
+
+            index.flip();
+            writeFully(channel, index, HEADER_BYTES);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(0).putInt(VERSION).putInt(encoding.ordinal()).putInt(names.size()).putInt(nImages)
+                    .putInt(maxImageBytes).putInt(namesBytes).putInt(0).flip();
+            writeFully(channel, header, 0);
+            channel.force(false);
+            //and then the magic number, once everything else is in the file
+            ByteBuffer magic = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            magic.putInt(MAGIC).flip();
+            writeFully(channel, magic, 0);
+            raf.close();
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            moved = true;
+        } finally {
+            raf.close();
+            if (!moved) {
+                temporary.delete();
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return nImages;
+    }
+
+    @Override
+    public int numInstances() {
+        return nImages;
+    }
+
+    @Override
+    public FImage get(int i) {
+        return getInstance(i);
+    }
+
+    @Override
+    public FImage getRandomInstance() {
+        return getInstance(random.nextInt(nImages));
+    }
+
+    public Encoding getEncoding() {
+        return encoding;
+    }
+
+    public int getWidth(int i) {
+        return index.getInt(entry(i) + 8);
+    }
+
+    public int getHeight(int i) {
+        return index.getInt(entry(i) + 12);
+    }
+
+    //Image i, copied out of the mapping
+    @Override
+    public FImage getInstance(int i) {
+        int width = getWidth(i);
+        int height = getHeight(i);
+        ByteBuffer pixels = getPixels(i);
+        FImage image = new FImage(width, height);
+        if (encoding == Encoding.FLOAT32) {
+            FloatBuffer floats = pixels.asFloatBuffer();
+            for (int y = 0; y < height; y++) {
+                floats.get(image.pixels[y]);
+            }
+        } else {
+            int p = 0;
+            for (int y = 0; y < height; y++) {
+                float[] row = image.pixels[y];
+                for (int x = 0; x < width; x++) {
+                    row[x] = (pixels.get(p++) & 0xff) / 255f;
+                }
+            }
+        }
+        return image;
+    }
+
+    //The mapped pixels of image i (read-only, little-endian), row by row in the file's encoding, without copying
+    public ByteBuffer getPixels(int i) {
+        long offset = index.getLong(entry(i)) - dataStart;
+        long bytes = (long) getWidth(i) * getHeight(i) * (encoding == Encoding.FLOAT32 ? 4 : 1);
+        ByteBuffer segment = segments[(int) (offset / SEGMENT_BYTES)].duplicate();
+        int position = (int) (offset % SEGMENT_BYTES);
+        segment.limit(position + (int) bytes).position(position);
+        return segment.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    //The names of the groups, in the order they were written
+    public List<String> getGroupNames() {
+        return new ArrayList<String>(groups().keySet());
+    }
+
+    //The images of one group, or null if there is no such group
+    public ListDataset<FImage> getGroup(String name) {
+        return groups().get(name);
+    }
+
+    //The images as a GroupedDataset of one ListDataset per group, e.g. for a GroupedRandomSplitter
+    public GroupedDataset<String, ListDataset<FImage>, FImage> asGrouped() {
+        return new MapBackedDataset<String, ListDataset<FImage>, FImage>(groups());
+    }
+
+    private synchronized Map<String, ListDataset<FImage>> groups() {
+        if (groups == null) {
+            Map<String, ListDataset<FImage>> map = new LinkedHashMap<String, ListDataset<FImage>>();
+            for (int g = 0; g < nGroups; g++) {
+                int first = index.getInt(GROUP_BYTES * g);
+                int count = index.getInt(GROUP_BYTES * g + 4);
+                int nameStart = index.getInt(GROUP_BYTES * g + 8);
+                int nameEnd = g + 1 < nGroups ? index.getInt(GROUP_BYTES * (g + 1) + 8) : namesBytes;
+                byte[] name = new byte[nameEnd - nameStart];
+                for (int b = 0; b < name.length; b++) {
+                    name[b] = index.get(namesStart + nameStart + b);
+                }
+                map.put(new String(name, StandardCharsets.UTF_8), new Group(this, first, count));
+            }
+            groups = Collections.unmodifiableMap(map);
+        }
+        return groups;
+    }
+
+    private int entry(int i) {
+        if (i < 0 || i >= nImages) {
+            throw new IndexOutOfBoundsException("No image " + i);
+        }
+        return imagesStart + IMAGE_BYTES * i;
+    }
+
+    //The images of one group, a view of the packed dataset
+    private static class Group extends AbstractList<FImage> implements ListDataset<FImage> {
+
+        private final PackedImageDataset dataset;
+        private final int first;
+        private final int count;
+
+        Group(PackedImageDataset dataset, int first, int count) {
+            this.dataset = dataset;
+            this.first = first;
+            this.count = count;
+        }
+
+        @Override
+        public int size() {
+            return count;
+        }
+
+        @Override
+        public int numInstances() {
+            return count;
+        }
+
+        @Override
+        public FImage get(int i) {
+            return getInstance(i);
+        }
+
+        @Override
+        public FImage getInstance(int i) {
+            if (i < 0 || i >= count) {
+                throw new IndexOutOfBoundsException("No image " + i + " in a group of " + count);
+            }
+            return dataset.getInstance(first + i);
+        }
+
+        @Override
+        public FImage getRandomInstance() {
+            return getInstance(dataset.random.nextInt(count));
+        }
+    }
+
+    private static long indexBytes(int nGroups, int namesBytes, long nImages) {
+        return (long) GROUP_BYTES * nGroups + pad16(namesBytes) + IMAGE_BYTES * nImages;
+    }
+
+    private static int pad16(int bytes) {
+        return (bytes + 15) / 16 * 16;
+    }
+
+    private static long pad4(long bytes) {
+        return (bytes + 3) / 4 * 4;
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of packed image dataset");
+            }
+        }
+    }
+}
@@ -0,0 +1,275 @@
+import org.openimaj.image.FImage;
+import org.openimaj.image.processing.convolution.FSobel;
+import org.openimaj.image.processing.edges.NonMaximumSuppressionTangent;
+import org.openimaj.image.processor.SinglebandImageProcessor;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+//A drop-in replacement for CannyEdgeDetector (same constructors, and the same edge map: 1 on edges, 0 elsewhere)
+//that splits the image into tiles of rows and processes them in parallel:
+//  1. each tile, extended by a halo of rows above and below, goes through the same FSobel gradients and
+//     NonMaximumSuppressionTangent as CannyEdgeDetector; the halo is wider than the reach of the Gaussian,
+//     Sobel and suppression windows, so the tile's own rows come out exactly as for the whole image
+//  2. the suppressed magnitudes are normalised and, unless given, the thresholds are chosen as CannyEdgeDetector does
+//     (the high threshold where 70% of the raw gradient magnitudes in a 64-bin histogram of 0-1 fall below it, the low
+//     one 0.4 * high)
+//  3. the hysteresis gives what CannyEdgeDetector.thresholdingTracker gives. That tracker goes through the strong
+//     pixels (at least the high threshold) in raster order and, for each one not already marked, marks it and those of
+//     its 8 neighbours at least the low threshold, but only of that strong pixel (it looks around the pixel it started
+//     from, not around each pixel it reaches), and never a pixel in the first row or column. So edges do not run along
+//     weak pixels further than one pixel from a strong one, and a strong pixel already marked as the neighbour of an
+//     earlier one does not mark its own neighbours. Here the strong pixels are found in parallel, the ones that mark
+//     their neighbours are picked in one raster-order pass over them (each depends on the four neighbours before it),
+//     and the edge map is then written in parallel
+//CannyBenchmark -check compares the edge maps with CannyEdgeDetector's on the tutorial images; CannyBenchmark times
+//both on 720p frames.
+//Everything this class allocates is kept between calls: the full-image buffers, and each thread's tile buffers and
+//FSobel, so processing a stream of frames of the same size (e.g. video in Chapter7) does not allocate them again.
+//FSobel and NonMaximumSuppressionTangent still make their own gradient and suppressed images for each tile.
+//An instance must not be used by two threads at once
+public class ParallelCannyEdgeDetector implements SinglebandImageProcessor<Float, FImage> {
+
+    private static final float THRESHOLD_RATIO = 0.4f;
+    private static final int HISTOGRAM_BINS = 64;
+    private static final float HIGH_THRESHOLD_FRACTION = 0.7f;
+
+    private final float lowThreshold;
+    private final float highThreshold;
+    private final float sigma;
+    private final int tileRows;
+
+    //Gradient magnitudes before and after non-maximum suppression, reused between calls
+    private float[][] magnitudes;
+    private float[][] suppressed;
+    //Whether each pixel is a strong pixel that marks its neighbours
+    private boolean[] tracked;
+    //The strong pixels of each tile, in raster order, and how many there are
+    private int[][] strong = new int[0][];
+    private int[] strongCounts = new int[0];
+
+    //Each thread's tile buffers, by tile height (the last tile is usually shorter)
+    private final ThreadLocal<Map<Integer, TileBuffers>> tileBuffers = new ThreadLocal<Map<Integer, TileBuffers>>() {
+        @Override
+        protected Map<Integer, TileBuffers> initialValue() {
+            return new HashMap<Integer, TileBuffers>();
+        }
+    };
+
+    //Automatic thresholds, sigma = 1
+    public ParallelCannyEdgeDetector() {
+        this(-1, -1, 1);
+    }
+
+    //Automatic thresholds
+    public ParallelCannyEdgeDetector(float sigma) {
+        this(-1, -1, sigma);
+    }
+
+    public ParallelCannyEdgeDetector(float lowThreshold, float highThreshold, float sigma) {
+        this(lowThreshold, highThreshold, sigma, RowTiles.DEFAULT_TILE_ROWS);
+    }
+
+    public ParallelCannyEdgeDetector(float lowThreshold, float highThreshold, float sigma, int tileRows) {
+        this.lowThreshold = lowThreshold;
+        this.highThreshold = highThreshold;
+        this.sigma = sigma;
+        this.tileRows = tileRows;
+    }
+
+    @Override
+    public void processImage(final FImage image) {
+        final int height = image.pixels.length;
+        if (height == 0 || image.pixels[0].length == 0) {
+            return;
+        }
+        final int width = image.getWidth();
+        final int nTiles = (height + tileRows - 1) / tileRows;
+        if (magnitudes == null || magnitudes.length != height || magnitudes[0].length != width) {
+            magnitudes = new float[height][width];
+            suppressed = new float[height][width];
+            tracked = new boolean[width * height];
+        }
+        if (strong.length < nTiles) {
+            strong = Arrays.copyOf(strong, nTiles);
+            strongCounts = new int[nTiles];
+        }
+
+        //Rows either side of a tile needed for the Gaussian (4 sigma), the Sobel kernel and the suppression window
+        final int halo = (int) Math.ceil(4 * sigma) + 3;
+        final float[] tileMin = new float[nTiles];
+        final float[] tileMax = new float[nTiles];
+
+        //1. Gradients and non-maximum suppression
+        RowTiles.runParallel(height, tileRows, new RowTiles.Task() {
+            @Override
+            public void process(int y0, int y1) {
+                int top = Math.max(0, y0 - halo);
+                int bottom = Math.min(height, y1 + halo);
+                TileBuffers buffers = tileBuffers(width, bottom - top);
+                for (int y = top; y < bottom; y++) {
+                    System.arraycopy(image.pixels[y], 0, buffers.input.pixels[y - top], 0, width);
+                }
+
+                buffers.sobel.analyseImage(buffers.input);
+                FImage tileSuppressed = NonMaximumSuppressionTangent.computeSuppressed(buffers.sobel.dx,
+                        buffers.sobel.dy, buffers.magnitudes);
+
+                float min = Float.MAX_VALUE;
+                float max = -Float.MAX_VALUE;
+                for (int y = y0; y < y1; y++) {
+                    System.arraycopy(buffers.magnitudes.pixels[y - top], 0, magnitudes[y], 0, width);
+                    float[] row = suppressed[y];
+                    System.arraycopy(tileSuppressed.pixels[y - top], 0, row, 0, width);
+                    for (int x = 0; x < width; x++) {
+                        min = Math.min(min, row[x]);
+                        max = Math.max(max, row[x]);
+                    }
+                }
+                tileMin[y0 / tileRows] = min;
+                tileMax[y0 / tileRows] = max;
+            }
+        });
+
+        //2. Normalising the suppressed magnitudes to 0-1 (as FImage.normalise()) and choosing the thresholds
+        float min = Float.MAX_VALUE;
+        float max = -Float.MAX_VALUE;
+        for (int t = 0; t < nTiles; t++) {
+            min = Math.min(min, tileMin[t]);
+            max = Math.max(max, tileMax[t]);
+        }
+        final float lowest = min;
+        final float range = max - min;
+        if (range > 0) {
+            RowTiles.runParallel(height, tileRows, new RowTiles.Task() {
+                @Override
+                public void process(int y0, int y1) {
+                    for (int y = y0; y < y1; y++) {
+                        float[] row = suppressed[y];
+                        for (int x = 0; x < width; x++) {
+                            row[x] = (row[x] - lowest) / range;
+                        }
+                    }
+                }
+            });
+        }
+
+        final float high = highThreshold >= 0 ? highThreshold : automaticHighThreshold(width, height);
+        final float low = highThreshold >= 0 ? lowThreshold : THRESHOLD_RATIO * high;
+
+        //3. Hysteresis as thresholdingTracker. First the strong pixels of each tile, leaving out the first row and
+        //column, where the tracker skips them without marking anything
+        RowTiles.runParallel(height, tileRows, new RowTiles.Task() {
+            @Override
+            public void process(int y0, int y1) {
+                int tile = y0 / tileRows;
+                int[] found = strong[tile] == null ? new int[256] : strong[tile];
+                int count = 0;
+                Arrays.fill(tracked, y0 * width, y1 * width, false);
+                for (int y = Math.max(1, y0); y < y1; y++) {
+                    float[] row = suppressed[y];
+                    for (int x = 1; x < width; x++) {
+                        if (row[x] >= high) {
+                            if (count == found.length) {
+                                found = Arrays.copyOf(found, 2 * count);
+                            }
+                            found[count++] = y * width + x;
+                        }
+                    }
+                }
+                strong[tile] = found;
+                strongCounts[tile] = count;
+            }
+        });
+
+        //The strong pixels that mark their neighbours, in raster order: those not marked by one before them. A pixel
+        //is only marked by one of its 8 neighbours, and those before it are the one to its left and the three above
+        for (int t = 0; t < nTiles; t++) {
+            int[] found = strong[t];
+            for (int s = 0; s < strongCounts[t]; s++) {
+                int i = found[s];
+                int x = i % width;
+                int y = i / width;
+                boolean marked = suppressed[y][x] >= low && (tracked[i - 1] || tracked[i - width - 1]
+                        || tracked[i - width] || (x + 1 < width && tracked[i - width + 1]));
+                tracked[i] = !marked;
+            }
+        }
+
+        //The edges: the tracked strong pixels and the pixels at least the low threshold next to one
+        RowTiles.runParallel(height, tileRows, new RowTiles.Task() {
+            @Override
+            public void process(int y0, int y1) {
+                for (int y = y0; y < y1; y++) {
+                    float[] row = suppressed[y];
+                    float[] out = image.pixels[y];
+                    for (int x = 0; x < width; x++) {
+                        int i = y * width + x;
+                        boolean edge = tracked[i];
+                        if (!edge && x >= 1 && y >= 1 && row[x] >= low) {
+                            edge = tracked(x - 1, y - 1, width, height) || tracked(x, y - 1, width, height)
+                                    || tracked(x + 1, y - 1, width, height) || tracked(x - 1, y, width, height)
+                                    || tracked(x + 1, y, width, height) || tracked(x - 1, y + 1, width, height)
+                                    || tracked(x, y + 1, width, height) || tracked(x + 1, y + 1, width, height);
+                        }
+                        out[x] = edge ? 1 : 0;
+                    }
+                }
+            }
+        });
+    }
+
+    private boolean tracked(int x, int y, int width, int height) {
+        return x < width && y < height && tracked[y * width + x];
+    }
+
+    //The high threshold: the upper edge of the histogram bin at which the cumulative count of the (unsuppressed,
+    //unnormalised) gradient magnitudes first passes 70% of the pixels. As HistogramAnalyser.getHistogram(mags, 64),
+    //which CannyEdgeDetector uses, the raw magnitude v goes in bin (int) (v * 64), magnitudes of 1 or more in the last
+    private float automaticHighThreshold(int width, int height) {
+        int[] histogram = new int[HISTOGRAM_BINS];
+        for (float[] row : magnitudes) {
+            for (float value : row) {
+                histogram[Math.max(0, Math.min(HISTOGRAM_BINS - 1, (int) (value * HISTOGRAM_BINS)))]++;
+            }
+        }
+
+        long cumulative = 0;
+        for (int i = 0; i < HISTOGRAM_BINS; i++) {
+            cumulative += histogram[i];
+            if (cumulative > HIGH_THRESHOLD_FRACTION * width * height) {
+                return (i + 1) / (float) HISTOGRAM_BINS;
+            }
+        }
+        return 1;
+    }
+
+    //The calling thread's buffers for tiles of the given size
+    private TileBuffers tileBuffers(int width, int rows) {
+        Map<Integer, TileBuffers> buffers = tileBuffers.get();
+        TileBuffers tile = buffers.get(rows);
+        if (tile == null || tile.input.getWidth() != width) {
+            if (tile != null) {
+                //the frame size has changed: drop the buffers for the old width
+                buffers.clear();
+            }
+            tile = new TileBuffers(width, rows, sigma);
+            buffers.put(rows, tile);
+        }
+        return tile;
+    }
+
+    //A tile with its halo, its gradient magnitudes before suppression, and the gradient operator
+    private static final class TileBuffers {
+        final FImage input;
+        final FImage magnitudes;
+        final FSobel sobel;
+
+        TileBuffers(int width, int rows, float sigma) {
+            input = new FImage(width, rows);
+            magnitudes = new FImage(width, rows);
+            sobel = new FSobel(sigma);
+        }
+    }
+}
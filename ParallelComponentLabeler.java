@@ -0,0 +1,344 @@
+import org.openimaj.image.FImage;
+import org.openimaj.image.MBFImage;
+import org.openimaj.image.pixel.ConnectedComponent.ConnectMode;
+import org.openimaj.image.pixel.Pixel;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+//Finds the connected components of pixels with equal values (like GreyscaleConnectedComponentLabeler),
+//but returns a compact int[] label map and per-component statistics instead of a ConnectedComponent per region
+//holding a set of Pixel objects.
+//Labelling is done in two passes over tiles of rows:
+//  1. each tile is labelled in parallel, joining every pixel to its equal neighbours inside the tile
+//  2. the rows on the boundaries between tiles are joined to the row above, also in parallel
+//Both passes share one lock-free union-find forest (roots are only ever linked to smaller roots with
+//compareAndSet, so concurrent unions always terminate). Every component's root is its first pixel in
+//raster order, so the component numbers are the same whatever the number of threads
+public class ParallelComponentLabeler {
+
+    private final ConnectMode mode;
+    private final int tileRows;
+
+    public ParallelComponentLabeler() {
+        this(ConnectMode.CONNECT_4, RowTiles.DEFAULT_TILE_ROWS);
+    }
+
+    public ParallelComponentLabeler(ConnectMode mode) {
+        this(mode, RowTiles.DEFAULT_TILE_ROWS);
+    }
+
+    public ParallelComponentLabeler(ConnectMode mode, int tileRows) {
+        this.mode = mode;
+        this.tileRows = tileRows;
+    }
+
+    //Labels the regions of equal grey level in an image (e.g. the flatten()-ed output of Chapter3's quantisation)
+    public Components findComponents(FImage image) {
+        //an image with no rows has no width either (getWidth() reads the first row)
+        if (image.pixels.length == 0) {
+            return findComponents(new int[0], 0, 0);
+        }
+        final float[][] pixels = image.pixels;
+        final int width = image.getWidth();
+        final int[] values = new int[width * image.getHeight()];
+
+        RowTiles.runParallel(image.getHeight(), tileRows, new RowTiles.Task() {
+            @Override
+            public void process(int y0, int y1) {
+                for (int y = y0; y < y1; y++) {
+                    for (int x = 0; x < width; x++) {
+                        values[y * width + x] = Float.floatToIntBits(pixels[y][x]);
+                    }
+                }
+            }
+        });
+        return findComponents(values, width, image.getHeight());
+    }
+
+    //Labels the regions of equal value in a row-major array, such as the centroid indices from CentroidLookupTable.assign()
+    public Components findComponents(final int[] values, final int width, final int height) {
+        //no pixels, no components (and no tiles to count them in)
+        if (width == 0 || height == 0) {
+            return new Components(new int[0], width, height, 0);
+        }
+        final AtomicIntegerArray parent = new AtomicIntegerArray(values.length);
+        final boolean diagonal = mode == ConnectMode.CONNECT_8;
+
+        //Pass 1: label inside each tile
+        RowTiles.runParallel(height, tileRows, new RowTiles.Task() {
+            @Override
+            public void process(int y0, int y1) {
+                for (int y = y0; y < y1; y++) {
+                    for (int x = 0; x < width; x++) {
+                        int i = y * width + x;
+                        parent.set(i, i);
+                        if (x > 0 && values[i - 1] == values[i]) {
+                            union(parent, i, i - 1);
+                        }
+                        if (y > y0) {
+                            joinRowAbove(parent, values, width, diagonal, x, y);
+                        }
+                    }
+                }
+            }
+        });
+
+        //Pass 2: join the first row of each tile to the last row of the tile above
+        final int nTiles = (height + tileRows - 1) / tileRows;
+        RowTiles.runParallel(nTiles, 1, new RowTiles.Task() {
+            @Override
+            public void process(int t0, int t1) {
+                for (int tile = Math.max(t0, 1); tile < t1; tile++) {
+                    int y = tile * tileRows;
+                    for (int x = 0; x < width; x++) {
+                        joinRowAbove(parent, values, width, diagonal, x, y);
+                    }
+                }
+            }
+        });
+
+        //Resolve every pixel to its root, and count the roots (= components) in each tile
+        final int[] labels = new int[values.length];
+        final int[] tileComponents = new int[nTiles];
+        RowTiles.runParallel(height, tileRows, new RowTiles.Task() {
+            @Override
+            public void process(int y0, int y1) {
+                int roots = 0;
+                for (int i = y0 * width; i < y1 * width; i++) {
+                    labels[i] = find(parent, i);
+                    if (labels[i] == i) {
+                        roots++;
+                    }
+                }
+                tileComponents[y0 / tileRows] = roots;
+            }
+        });
+
+        //Numbering the components in raster order: each tile starts after the components of the tiles above it
+        final int[] tileOffsets = new int[nTiles];
+        int nComponents = 0;
+        for (int t = 0; t < nTiles; t++) {
+            tileOffsets[t] = nComponents;
+            nComponents += tileComponents[t];
+        }
+
+        //The root pixels are given their component number first (stored negated, so they can be told apart
+        //from root indices), then every other pixel copies the number of its root
+        RowTiles.runParallel(height, tileRows, new RowTiles.Task() {
+            @Override
+            public void process(int y0, int y1) {
+                int next = tileOffsets[y0 / tileRows];
+                for (int i = y0 * width; i < y1 * width; i++) {
+                    if (labels[i] == i) {
+                        labels[i] = -(next++) - 1;
+                    }
+                }
+            }
+        });
+        RowTiles.runParallel(height, tileRows, new RowTiles.Task() {
+            @Override
+            public void process(int y0, int y1) {
+                for (int i = y0 * width; i < y1 * width; i++) {
+                    if (labels[i] >= 0) {
+                        labels[i] = -labels[labels[i]] - 1;
+                    }
+                }
+            }
+        });
+        RowTiles.runParallel(height, tileRows, new RowTiles.Task() {
+            @Override
+            public void process(int y0, int y1) {
+                for (int i = y0 * width; i < y1 * width; i++) {
+                    if (labels[i] < 0) {
+                        labels[i] = -labels[i] - 1;
+                    }
+                }
+            }
+        });
+
+        return new Components(labels, width, height, nComponents);
+    }
+
+    private static void joinRowAbove(AtomicIntegerArray parent, int[] values, int width, boolean diagonal, int x, int y) {
+        int i = y * width + x;
+        int above = i - width;
+        if (values[above] == values[i]) {
+            union(parent, i, above);
+        }
+        if (diagonal) {
+            if (x > 0 && values[above - 1] == values[i]) {
+                union(parent, i, above - 1);
+            }
+            if (x < width - 1 && values[above + 1] == values[i]) {
+                union(parent, i, above + 1);
+            }
+        }
+    }
+
+    //Root of the tree containing i, halving the path on the way up
+    private static int find(AtomicIntegerArray parent, int i) {
+        int p = parent.get(i);
+        while (p != i) {
+            int grandparent = parent.get(p);
+            if (grandparent != p) {
+                parent.compareAndSet(i, p, grandparent);
+            }
+            i = p;
+            p = parent.get(i);
+        }
+        return i;
+    }
+
+    //Joins the trees of a and b by pointing the larger root at the smaller one; if another thread
+    //relinks the root in the meantime the compareAndSet fails and the roots are looked up again
+    private static void union(AtomicIntegerArray parent, int a, int b) {
+        while (true) {
+            a = find(parent, a);
+            b = find(parent, b);
+            if (a == b) {
+                return;
+            }
+            if (a < b) {
+                int tmp = a;
+                a = b;
+                b = tmp;
+            }
+            if (parent.compareAndSet(a, a, b)) {
+                return;
+            }
+        }
+    }
+
+    //The result of labelling: the component number of every pixel (row-major) and, for every component,
+    //its area, centroid and bounding box, all held in primitive arrays
+    public static class Components {
+        private final int[] labels;
+        private final int width;
+        private final int height;
+        private final int count;
+
+        private final int[] area;
+        private final long[] sumX;
+        private final long[] sumY;
+        private final int[] minX;
+        private final int[] minY;
+        private final int[] maxX;
+        private final int[] maxY;
+
+        Components(int[] labels, int width, int height, int count) {
+            this.labels = labels;
+            this.width = width;
+            this.height = height;
+            this.count = count;
+
+            area = new int[count];
+            sumX = new long[count];
+            sumY = new long[count];
+            minX = new int[count];
+            minY = new int[count];
+            maxX = new int[count];
+            maxY = new int[count];
+            Arrays.fill(minX, Integer.MAX_VALUE);
+            Arrays.fill(minY, Integer.MAX_VALUE);
+            Arrays.fill(maxX, -1);
+            Arrays.fill(maxY, -1);
+
+            for (int y = 0, i = 0; y < height; y++) {
+                for (int x = 0; x < width; x++, i++) {
+                    int c = labels[i];
+                    area[c]++;
+                    sumX[c] += x;
+                    sumY[c] += y;
+                    if (x < minX[c]) minX[c] = x;
+                    if (x > maxX[c]) maxX[c] = x;
+                    if (y < minY[c]) minY[c] = y;
+                    if (y > maxY[c]) maxY[c] = y;
+                }
+            }
+        }
+
+        //Number of components
+        public int size() {
+            return count;
+        }
+
+        //Component number of every pixel, in row-major order
+        public int[] getLabels() {
+            return labels;
+        }
+
+        public int getLabel(int x, int y) {
+            return labels[y * width + x];
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        //Number of pixels in the component (as ConnectedComponent.calculateArea())
+        public int area(int component) {
+            return area[component];
+        }
+
+        public double centroidX(int component) {
+            return (double) sumX[component] / area[component];
+        }
+
+        public double centroidY(int component) {
+            return (double) sumY[component] / area[component];
+        }
+
+        //The pixel at the centroid of the component (as ConnectedComponent.calculateCentroidPixel())
+        public Pixel centroidPixel(int component) {
+            return new Pixel((int) Math.round(centroidX(component)), (int) Math.round(centroidY(component)));
+        }
+
+        public int minX(int component) {
+            return minX[component];
+        }
+
+        public int minY(int component) {
+            return minY[component];
+        }
+
+        public int maxX(int component) {
+            return maxX[component];
+        }
+
+        public int maxY(int component) {
+            return maxY[component];
+        }
+
+        //Paints every component in a random colour (as SegmentationUtilities.renderSegments())
+        public void render(MBFImage image) {
+            Random random = new Random();
+            final float[][] colours = new float[count][image.numBands()];
+            for (float[] colour : colours) {
+                for (int b = 0; b < colour.length; b++) {
+                    colour[b] = random.nextFloat();
+                }
+            }
+
+            final float[][][] bands = PixelKernels.bandPixels(image);
+            RowTiles.runParallel(height, new RowTiles.Task() {
+                @Override
+                public void process(int y0, int y1) {
+                    for (int y = y0; y < y1; y++) {
+                        for (int x = 0; x < width; x++) {
+                            float[] colour = colours[labels[y * width + x]];
+                            for (int b = 0; b < bands.length; b++) {
+                                bands[b][y][x] = colour[b];
+                            }
+                        }
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,728 @@
+import org.openimaj.feature.local.list.LocalFeatureList;
+import org.openimaj.feature.local.list.MemoryLocalFeatureList;
+import org.openimaj.image.FImage;
+import org.openimaj.image.ImageUtilities;
+import org.openimaj.image.feature.local.engine.Engine;
+import org.openimaj.image.feature.local.keypoints.Keypoint;
+import org.openimaj.util.function.Operation;
+import org.openimaj.util.parallel.Parallel;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+//Difference-of-Gaussian keypoints with SIFT descriptors (Lowe 2004), like DoGSIFTEngine.findFeatures, but:
+//  - the Gaussian and DoG images of every octave are kept in a Pyramid, taken from the engine's pool for each
+//    extraction and given back after it, whose buffers are only reallocated when an image needs more rows or columns
+//    than the largest one it has held, so extracting from one image after another allocates (almost) nothing
+//  - for a single image, each blur and DoG runs in parallel tiles of rows (each level depends on the one before,
+//    so the levels themselves cannot be), and the extrema of every (octave, scale) are then found, localised,
+//    oriented and described in parallel
+//  - findFeatures(List) handles many images at once, each on one thread with everything for it on that thread, so
+//    the pool never holds more pyramids than there have been extractions running at once (one per thread of
+//    Parallel's pool); findFeaturesFromURLs also decodes each image on its thread, so only as many images as
+//    threads are decoded at a time
+//The pooled pyramids belong to the engine, not to the threads, so they go with it when it is dropped, and release()
+//frees them at once (e.g. after a batch of large images); the next extraction then allocates a new one.
+//The steps and their parameters are those of Lowe's paper: the image is doubled, octaves of `scales` intervals
+//start at sigma 1.6, extrema of the DoG (26 neighbours) are interpolated to sub-pixel and sub-scale accuracy and
+//dropped if their contrast is below contrastThreshold / scales or their curvature ratio is above edgeThreshold,
+//orientations are the peaks (above 80% of the highest) of a 36-bin gradient histogram, and the descriptor is the
+//4x4x8 gradient histogram, clamped at 0.2 and stored as bytes (-128 to 127) in Keypoint.ivec.
+//It is written from the paper, not ported from DoGSIFTEngine, so it does not find the same keypoints: where
+//DoGSIFTEngine's options and code make other choices (the contrast threshold and how it is scaled, the border, the
+//sub-pixel interpolation, the smoothing of the orientation histogram, how the descriptor window is sampled and
+//weighted, and how the descriptor is turned into bytes), the locations, scales, orientations and descriptors differ.
+//Keypoints of the two engines should not be matched against each other or mixed in one index. SIFTBenchmark -check
+//gives how many keypoints each finds on the Chapter5 images, how many of them the other finds too, and how many
+//matches survive RANSAC with each; Chapter5 itself uses DoGSIFTEngine.
+//getThroughput() gives the images and keypoints per second over all the calls since the last resetThroughput()
+public class ParallelDoGSIFTEngine implements Engine<Keypoint, FImage> {
+
+    public static final int DEFAULT_SCALES = 3;
+    public static final float DEFAULT_SIGMA = 1.6f;
+    public static final float DEFAULT_CONTRAST_THRESHOLD = 0.04f;
+    public static final float DEFAULT_EDGE_THRESHOLD = 10f;
+
+    //The blur the camera is assumed to have given the image
+    private static final float INPUT_SIGMA = 0.5f;
+    //Octaves stop before either side gets smaller than this
+    private static final int MIN_OCTAVE_SIZE = 16;
+    //Extrema closer than this to the border are ignored
+    private static final int BORDER = 5;
+    private static final int MAX_INTERPOLATION_STEPS = 5;
+
+    private static final int ORIENTATION_BINS = 36;
+    private static final float ORIENTATION_SIGMA_FACTOR = 1.5f;
+    private static final float ORIENTATION_PEAK_RATIO = 0.8f;
+
+    private static final int DESCRIPTOR_WIDTH = 4;
+    private static final int DESCRIPTOR_BINS = 8;
+    //Width of a descriptor cell, in sigmas
+    private static final float DESCRIPTOR_CELL_SIGMAS = 3f;
+    private static final float DESCRIPTOR_CLAMP = 0.2f;
+    private static final float DESCRIPTOR_INT_FACTOR = 512f;
+
+    private final int scales;
+    private final float sigma;
+    private final float contrastThreshold;
+    private final float edgeThreshold;
+    //baseKernel blurs the doubled image to sigma; levelKernels[s] blurs level s - 1 of an octave to level s
+    private final float[] baseKernel;
+    private final float[][] levelKernels;
+
+    //The pyramids not in use by an extraction
+    private final ArrayDeque<Pyramid> pyramids = new ArrayDeque<Pyramid>();
+
+    private long images;
+    private long keypoints;
+    private long nanos;
+
+    public ParallelDoGSIFTEngine() {
+        this(DEFAULT_SCALES, DEFAULT_SIGMA, DEFAULT_CONTRAST_THRESHOLD, DEFAULT_EDGE_THRESHOLD);
+    }
+
+    public ParallelDoGSIFTEngine(int scales, float sigma, float contrastThreshold, float edgeThreshold) {
+        if (scales < 1) {
+            throw new IllegalArgumentException("scales must be at least 1");
+        }
+        this.scales = scales;
+        this.sigma = sigma;
+        this.contrastThreshold = contrastThreshold;
+        this.edgeThreshold = edgeThreshold;
+
+        float doubledInputSigma = 2 * INPUT_SIGMA;
+        baseKernel = GaussianBlur.halfKernel((float) Math.sqrt(Math.max(sigma * sigma
+                - doubledInputSigma * doubledInputSigma, 0.01f)));
+        levelKernels = new float[scales + 3][];
+        for (int s = 1; s < scales + 3; s++) {
+            double previous = sigma * Math.pow(2, (s - 1.0) / scales);
+            double total = sigma * Math.pow(2, (double) s / scales);
+            levelKernels[s] = GaussianBlur.halfKernel((float) Math.sqrt(total * total - previous * previous));
+        }
+    }
+
+    //The settings that change the keypoints found, e.g. for a KeypointCache
+    public String getSettings() {
+        return "scales=" + scales + " sigma=" + sigma + " contrastThreshold=" + contrastThreshold + " edgeThreshold="
+                + edgeThreshold;
+    }
+
+    //The keypoints of one image (grey levels from 0 to 1), using all the cores
+    @Override
+    public LocalFeatureList<Keypoint> findFeatures(FImage image) {
+        long start = System.nanoTime();
+        LocalFeatureList<Keypoint> features = extract(image, true);
+        record(1, features.size(), System.nanoTime() - start);
+        return features;
+    }
+
+    //The keypoints of each image, several images at a time
+    public List<LocalFeatureList<Keypoint>> findFeatures(final List<FImage> images) {
+        long start = System.nanoTime();
+        final List<LocalFeatureList<Keypoint>> results = new ArrayList<LocalFeatureList<Keypoint>>(
+                Collections.<LocalFeatureList<Keypoint>>nCopies(images.size(), null));
+        Parallel.forIndex(0, images.size(), 1, new Operation<Integer>() {
+            @Override
+            public void perform(Integer i) {
+                LocalFeatureList<Keypoint> features = extract(images.get(i), false);
+                synchronized (results) {
+                    results.set(i, features);
+                }
+            }
+        });
+        record(images.size(), count(results), System.nanoTime() - start);
+        return results;
+    }
+
+    //The keypoints of each image, decoding the images (as greyscale) on the threads that extract from them
+    public List<LocalFeatureList<Keypoint>> findFeaturesFromURLs(final List<URL> urls) throws IOException {
+        long start = System.nanoTime();
+        final List<LocalFeatureList<Keypoint>> results = new ArrayList<LocalFeatureList<Keypoint>>(
+                Collections.<LocalFeatureList<Keypoint>>nCopies(urls.size(), null));
+        final IOException[] failure = new IOException[1];
+        Parallel.forIndex(0, urls.size(), 1, new Operation<Integer>() {
+            @Override
+            public void perform(Integer i) {
+                try {
+                    LocalFeatureList<Keypoint> features = extract(ImageUtilities.readF(urls.get(i)), false);
+                    synchronized (results) {
+                        results.set(i, features);
+                    }
+                } catch (IOException e) {
+                    synchronized (failure) {
+                        if (failure[0] == null) {
+                            failure[0] = e;
+                        }
+                    }
+                }
+            }
+        });
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        record(urls.size(), count(results), System.nanoTime() - start);
+        return results;
+    }
+
+    //Drops the pooled pyramids, freeing their buffers; extractions running now give theirs back to the pool as usual
+    public void release() {
+        synchronized (pyramids) {
+            pyramids.clear();
+        }
+    }
+
+    //Number of pyramids in the pool, not counting those in use
+    public int getPooledPyramids() {
+        synchronized (pyramids) {
+            return pyramids.size();
+        }
+    }
+
+    public synchronized Throughput getThroughput() {
+        return new Throughput(images, keypoints, nanos);
+    }
+
+    public synchronized void resetThroughput() {
+        images = 0;
+        keypoints = 0;
+        nanos = 0;
+    }
+
+    private synchronized void record(int nImages, long nKeypoints, long time) {
+        images += nImages;
+        keypoints += nKeypoints;
+        nanos += time;
+    }
+
+    private static long count(List<LocalFeatureList<Keypoint>> results) {
+        long total = 0;
+        for (LocalFeatureList<Keypoint> features : results) {
+            total += features.size();
+        }
+        return total;
+    }
+
+    //Images and keypoints extracted, and the time spent (wall clock, summed over calls)
+    public static final class Throughput {
+        public final long images;
+        public final long keypoints;
+        public final long nanos;
+
+        Throughput(long images, long keypoints, long nanos) {
+            this.images = images;
+            this.keypoints = keypoints;
+            this.nanos = nanos;
+        }
+
+        public double imagesPerSecond() {
+            return nanos == 0 ? 0 : images * 1e9 / nanos;
+        }
+
+        public double keypointsPerSecond() {
+            return nanos == 0 ? 0 : keypoints * 1e9 / nanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d images, %d keypoints in %.1f ms: %.2f images/s, %.0f keypoints/s", images,
+                    keypoints, nanos / 1e6, imagesPerSecond(), keypointsPerSecond());
+        }
+    }
+
+    //The buffers of one thread: Gaussian levels gaussians[octave][level] (scales + 3 of them), DoG levels
+    //dogs[octave][level] (scales + 2) and a scratch image per octave for the blurs, each at least widths[octave]
+    //by heights[octave]
+    private static final class Pyramid {
+        float[][][][] gaussians = new float[0][][][];
+        float[][][][] dogs = new float[0][][][];
+        float[][][] scratch = new float[0][][];
+        int[] widths = new int[0];
+        int[] heights = new int[0];
+        int octaves;
+
+        void ensure(int width, int height, int levels) {
+            octaves = 0;
+            for (int w = width, h = height; Math.min(w, h) >= MIN_OCTAVE_SIZE; w /= 2, h /= 2) {
+                octaves++;
+            }
+            if (gaussians.length < octaves) {
+                gaussians = Arrays.copyOf(gaussians, octaves);
+                dogs = Arrays.copyOf(dogs, octaves);
+                scratch = Arrays.copyOf(scratch, octaves);
+            }
+            widths = new int[octaves];
+            heights = new int[octaves];
+            for (int o = 0, w = width, h = height; o < octaves; o++, w /= 2, h /= 2) {
+                widths[o] = w;
+                heights[o] = h;
+                if (scratch[o] == null || scratch[o].length < h || scratch[o][0].length < w) {
+                    //grow to at least what was there before, so images of alternating shapes settle quickly
+                    int rows = Math.max(h, scratch[o] == null ? 0 : scratch[o].length);
+                    int columns = Math.max(w, scratch[o] == null ? 0 : scratch[o][0].length);
+                    scratch[o] = new float[rows][columns];
+                    gaussians[o] = new float[levels][rows][columns];
+                    dogs[o] = new float[levels - 1][rows][columns];
+                }
+            }
+        }
+    }
+
+    private LocalFeatureList<Keypoint> extract(FImage image, boolean parallel) {
+        Pyramid pyramid;
+        synchronized (pyramids) {
+            pyramid = pyramids.pollLast();
+        }
+        if (pyramid == null) {
+            pyramid = new Pyramid();
+        }
+        try {
+            return extract(image, pyramid, parallel);
+        } finally {
+            synchronized (pyramids) {
+                pyramids.addLast(pyramid);
+            }
+        }
+    }
+
+    private LocalFeatureList<Keypoint> extract(FImage image, final Pyramid pyramid, final boolean parallel) {
+        final int levels = scales + 3;
+        pyramid.ensure(2 * image.getWidth(), 2 * image.getHeight(), levels);
+        if (pyramid.octaves == 0) {
+            return new MemoryLocalFeatureList<Keypoint>();
+        }
+
+        upsample(image.pixels, image.getWidth(), image.getHeight(), pyramid.gaussians[0][0]);
+        blur(pyramid.gaussians[0][0], pyramid.gaussians[0][0], pyramid.scratch[0], pyramid.widths[0],
+                pyramid.heights[0], baseKernel, parallel);
+        for (int o = 0; o < pyramid.octaves; o++) {
+            final int w = pyramid.widths[o];
+            final int h = pyramid.heights[o];
+            final float[][][] gaussian = pyramid.gaussians[o];
+            final float[][][] dog = pyramid.dogs[o];
+            if (o > 0) {
+                downsample(pyramid.gaussians[o - 1][scales], gaussian[0], w, h);
+            }
+            for (int s = 1; s < levels; s++) {
+                blur(gaussian[s - 1], gaussian[s], pyramid.scratch[o], w, h, levelKernels[s], parallel);
+            }
+            RowTiles.Task difference = new RowTiles.Task() {
+                @Override
+                public void process(int y0, int y1) {
+                    for (int s = 0; s < levels - 1; s++) {
+                        for (int y = y0; y < y1; y++) {
+                            float[] lower = gaussian[s][y];
+                            float[] upper = gaussian[s + 1][y];
+                            float[] out = dog[s][y];
+                            for (int x = 0; x < w; x++) {
+                                out[x] = upper[x] - lower[x];
+                            }
+                        }
+                    }
+                }
+            };
+            if (parallel) {
+                RowTiles.runParallel(h, difference);
+            } else {
+                RowTiles.run(h, difference);
+            }
+        }
+
+        //the (octave, scale) pairs searched for extrema, each giving its own list so the order is always the same
+        final int tasks = pyramid.octaves * scales;
+        final List<List<Keypoint>> found = new ArrayList<List<Keypoint>>(
+                Collections.<List<Keypoint>>nCopies(tasks, null));
+        Operation<Integer> detect = new Operation<Integer>() {
+            @Override
+            public void perform(Integer task) {
+                List<Keypoint> keys = detect(pyramid, task / scales, 1 + task % scales);
+                synchronized (found) {
+                    found.set(task, keys);
+                }
+            }
+        };
+        if (parallel) {
+            Parallel.forIndex(0, tasks, 1, detect);
+        } else {
+            for (int task = 0; task < tasks; task++) {
+                detect.perform(task);
+            }
+        }
+
+        MemoryLocalFeatureList<Keypoint> features = new MemoryLocalFeatureList<Keypoint>();
+        for (List<Keypoint> keys : found) {
+            features.addAll(keys);
+        }
+        return features;
+    }
+
+    //Bilinear doubling of the image into out
+    private static void upsample(float[][] in, int width, int height, float[][] out) {
+        for (int y = 0; y < 2 * height; y++) {
+            float sy = y * 0.5f;
+            int y0 = (int) sy;
+            int y1 = Math.min(y0 + 1, height - 1);
+            float fy = sy - y0;
+            for (int x = 0; x < 2 * width; x++) {
+                float sx = x * 0.5f;
+                int x0 = (int) sx;
+                int x1 = Math.min(x0 + 1, width - 1);
+                float fx = sx - x0;
+                float top = in[y0][x0] + fx * (in[y0][x1] - in[y0][x0]);
+                float bottom = in[y1][x0] + fx * (in[y1][x1] - in[y1][x0]);
+                out[y][x] = top + fy * (bottom - top);
+            }
+        }
+    }
+
+    //Every other pixel of in into out (w by h)
+    private static void downsample(float[][] in, float[][] out, int w, int h) {
+        for (int y = 0; y < h; y++) {
+            float[] row = in[2 * y];
+            float[] outRow = out[y];
+            for (int x = 0; x < w; x++) {
+                outRow[x] = row[2 * x];
+            }
+        }
+    }
+
+    //Separable blur of the w by h top-left corner of in into out (which may be in) with a half kernel, through
+    //scratch; the border is extended with the nearest pixel as in GaussianBlur
+    private static void blur(final float[][] in, final float[][] out, final float[][] scratch, final int w, final int h,
+                             final float[] kernel, boolean parallel) {
+        final int radius = kernel.length - 1;
+        RowTiles.Task rows = new RowTiles.Task() {
+            @Override
+            public void process(int y0, int y1) {
+                for (int y = y0; y < y1; y++) {
+                    float[] row = in[y];
+                    float[] result = scratch[y];
+                    for (int x = 0; x < w; x++) {
+                        float sum = kernel[0] * row[x];
+                        if (x >= radius && x < w - radius) {
+                            for (int k = 1; k <= radius; k++) {
+                                sum += kernel[k] * (row[x - k] + row[x + k]);
+                            }
+                        } else {
+                            for (int k = 1; k <= radius; k++) {
+                                sum += kernel[k] * (row[Math.max(x - k, 0)] + row[Math.min(x + k, w - 1)]);
+                            }
+                        }
+                        result[x] = sum;
+                    }
+                }
+            }
+        };
+        RowTiles.Task columns = new RowTiles.Task() {
+            @Override
+            public void process(int y0, int y1) {
+                for (int y = y0; y < y1; y++) {
+                    float[] result = out[y];
+                    float[] centre = scratch[y];
+                    for (int x = 0; x < w; x++) {
+                        result[x] = kernel[0] * centre[x];
+                    }
+                    for (int k = 1; k <= radius; k++) {
+                        float weight = kernel[k];
+                        float[] above = scratch[Math.max(y - k, 0)];
+                        float[] below = scratch[Math.min(y + k, h - 1)];
+                        for (int x = 0; x < w; x++) {
+                            result[x] += weight * (above[x] + below[x]);
+                        }
+                    }
+                }
+            }
+        };
+        if (parallel) {
+            RowTiles.runParallel(h, rows);
+            RowTiles.runParallel(h, columns);
+        } else {
+            RowTiles.run(h, rows);
+            RowTiles.run(h, columns);
+        }
+    }
+
+    //The keypoints from the extrema of DoG level s of the octave
+    private List<Keypoint> detect(Pyramid pyramid, int octave, int s) {
+        List<Keypoint> keys = new ArrayList<Keypoint>();
+        int w = pyramid.widths[octave];
+        int h = pyramid.heights[octave];
+        float[][][] dog = pyramid.dogs[octave];
+        float prefilter = 0.5f * contrastThreshold / scales;
+        float[] orientationHistogram = new float[ORIENTATION_BINS];
+        float[] descriptorHistogram = new float[(DESCRIPTOR_WIDTH + 2) * (DESCRIPTOR_WIDTH + 2) * (DESCRIPTOR_BINS + 2)];
+        float[] descriptor = new float[DESCRIPTOR_WIDTH * DESCRIPTOR_WIDTH * DESCRIPTOR_BINS];
+        float[] location = new float[4];
+
+        for (int y = BORDER; y < h - BORDER; y++) {
+            float[] row = dog[s][y];
+            for (int x = BORDER; x < w - BORDER; x++) {
+                float value = row[x];
+                if (Math.abs(value) <= prefilter || !isExtremum(dog, s, x, y, value)) {
+                    continue;
+                }
+                if (!localise(dog, s, x, y, w, h, location)) {
+                    continue;
+                }
+                //location: x, y and scale level (sub-pixel), and the integer level the point ended up at
+                int level = (int) location[3];
+                float octaveSigma = (float) (sigma * Math.pow(2, location[2] / scales));
+                float[][] gaussian = pyramid.gaussians[octave][level];
+                int px = Math.round(location[0]);
+                int py = Math.round(location[1]);
+                //the image was doubled, so octave 0 is at half the image's pixel size
+                float toImage = (float) Math.pow(2, octave) * 0.5f;
+
+                int samples = orientationHistogram(gaussian, px, py, w, h, octaveSigma, orientationHistogram);
+                float max = 0;
+                for (int b = 0; b < ORIENTATION_BINS; b++) {
+                    max = Math.max(max, orientationHistogram[b]);
+                }
+                for (int b = 0; b < ORIENTATION_BINS && samples > 0; b++) {
+                    float left = orientationHistogram[(b + ORIENTATION_BINS - 1) % ORIENTATION_BINS];
+                    float right = orientationHistogram[(b + 1) % ORIENTATION_BINS];
+                    float centre = orientationHistogram[b];
+                    if (centre > left && centre > right && centre >= ORIENTATION_PEAK_RATIO * max) {
+                        float bin = b + 0.5f * (left - right) / (left - 2 * centre + right);
+                        double angle = 2 * Math.PI * bin / ORIENTATION_BINS;
+                        if (angle > Math.PI) {
+                            angle -= 2 * Math.PI;
+                        }
+                        describe(gaussian, location[0], location[1], w, h, (float) angle, octaveSigma,
+                                descriptorHistogram, descriptor);
+                        keys.add(new Keypoint(location[0] * toImage, location[1] * toImage, (float) angle,
+                                octaveSigma * toImage, toBytes(descriptor)));
+                    }
+                }
+            }
+        }
+        return keys;
+    }
+
+    private static boolean isExtremum(float[][][] dog, int s, int x, int y, float value) {
+        for (int ds = -1; ds <= 1; ds++) {
+            float[][] level = dog[s + ds];
+            for (int dy = -1; dy <= 1; dy++) {
+                float[] row = level[y + dy];
+                for (int dx = -1; dx <= 1; dx++) {
+                    float neighbour = row[x + dx];
+                    if (value > 0 ? neighbour > value : neighbour < value) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    //Fits a quadratic to the DoG around the extremum and moves to its peak (at most MAX_INTERPOLATION_STEPS times);
+    //false if it leaves the octave, does not settle, has too little contrast or lies on an edge. Otherwise location
+    //is {x, y, level, integer level} of the peak
+    private boolean localise(float[][][] dog, int s, int x, int y, int w, int h, float[] location) {
+        double[] offset = new double[3];
+        double dx = 0, dy = 0, ds = 0, dxx = 0, dyy = 0, dxy = 0;
+        int step = 0;
+        for (; step < MAX_INTERPOLATION_STEPS; step++) {
+            float[][] below = dog[s - 1], here = dog[s], above = dog[s + 1];
+            float value = here[y][x];
+            dx = 0.5 * (here[y][x + 1] - here[y][x - 1]);
+            dy = 0.5 * (here[y + 1][x] - here[y - 1][x]);
+            ds = 0.5 * (above[y][x] - below[y][x]);
+            dxx = here[y][x + 1] + here[y][x - 1] - 2 * value;
+            dyy = here[y + 1][x] + here[y - 1][x] - 2 * value;
+            double dss = above[y][x] + below[y][x] - 2 * value;
+            dxy = 0.25 * (here[y + 1][x + 1] - here[y + 1][x - 1] - here[y - 1][x + 1] + here[y - 1][x - 1]);
+            double dxs = 0.25 * (above[y][x + 1] - above[y][x - 1] - below[y][x + 1] + below[y][x - 1]);
+            double dys = 0.25 * (above[y + 1][x] - above[y - 1][x] - below[y + 1][x] + below[y - 1][x]);
+
+            if (!solve3(dxx, dxy, dxs, dyy, dys, dss, -dx, -dy, -ds, offset)) {
+                return false;
+            }
+            if (Math.abs(offset[0]) < 0.5 && Math.abs(offset[1]) < 0.5 && Math.abs(offset[2]) < 0.5) {
+                break;
+            }
+            if (Math.abs(offset[0]) > w || Math.abs(offset[1]) > h || Math.abs(offset[2]) > scales) {
+                return false;
+            }
+            x += (int) Math.round(offset[0]);
+            y += (int) Math.round(offset[1]);
+            s += (int) Math.round(offset[2]);
+            if (s < 1 || s > scales || x < BORDER || x >= w - BORDER || y < BORDER || y >= h - BORDER) {
+                return false;
+            }
+        }
+        if (step == MAX_INTERPOLATION_STEPS) {
+            return false;
+        }
+
+        double contrast = dog[s][y][x] + 0.5 * (dx * offset[0] + dy * offset[1] + ds * offset[2]);
+        if (Math.abs(contrast) * scales < contrastThreshold) {
+            return false;
+        }
+        double trace = dxx + dyy;
+        double determinant = dxx * dyy - dxy * dxy;
+        if (determinant <= 0 || trace * trace * edgeThreshold >= (edgeThreshold + 1) * (edgeThreshold + 1) * determinant) {
+            return false;
+        }
+        location[0] = (float) (x + offset[0]);
+        location[1] = (float) (y + offset[1]);
+        location[2] = (float) (s + offset[2]);
+        location[3] = s;
+        return true;
+    }
+
+    //Solves the symmetric 3x3 system [a b c; b d e; c e f] x = (g, h, i) by Cramer's rule
+    private static boolean solve3(double a, double b, double c, double d, double e, double f, double g, double h,
+                                  double i, double[] x) {
+        double determinant = a * (d * f - e * e) - b * (b * f - c * e) + c * (b * e - c * d);
+        if (Math.abs(determinant) < 1e-12) {
+            return false;
+        }
+        x[0] = (g * (d * f - e * e) - b * (h * f - e * i) + c * (h * e - d * i)) / determinant;
+        x[1] = (a * (h * f - e * i) - g * (b * f - c * e) + c * (b * i - c * h)) / determinant;
+        x[2] = (a * (d * i - h * e) - b * (b * i - h * c) + g * (b * e - c * d)) / determinant;
+        return true;
+    }
+
+    //The smoothed histogram of gradient orientations around (x, y), weighted by magnitude and a Gaussian of
+    //1.5 sigma; returns the number of samples that went into it
+    private static int orientationHistogram(float[][] image, int x, int y, int w, int h, float octaveSigma,
+                                            float[] histogram) {
+        float weightSigma = ORIENTATION_SIGMA_FACTOR * octaveSigma;
+        int radius = Math.round(3 * weightSigma);
+        float weightScale = -1f / (2 * weightSigma * weightSigma);
+        float[] raw = new float[ORIENTATION_BINS];
+        int samples = 0;
+        for (int dy = -radius; dy <= radius; dy++) {
+            int py = y + dy;
+            if (py <= 0 || py >= h - 1) {
+                continue;
+            }
+            for (int dx = -radius; dx <= radius; dx++) {
+                int px = x + dx;
+                if (px <= 0 || px >= w - 1) {
+                    continue;
+                }
+                float gx = image[py][px + 1] - image[py][px - 1];
+                float gy = image[py + 1][px] - image[py - 1][px];
+                float magnitude = (float) Math.sqrt(gx * gx + gy * gy);
+                float weight = (float) Math.exp((dx * dx + dy * dy) * weightScale);
+                int bin = (int) Math.round(ORIENTATION_BINS * Math.atan2(gy, gx) / (2 * Math.PI));
+                raw[(bin + ORIENTATION_BINS) % ORIENTATION_BINS] += weight * magnitude;
+                samples++;
+            }
+        }
+        for (int b = 0; b < ORIENTATION_BINS; b++) {
+            histogram[b] = (raw[(b + ORIENTATION_BINS - 2) % ORIENTATION_BINS]
+                    + raw[(b + 2) % ORIENTATION_BINS]) * (1f / 16)
+                    + (raw[(b + ORIENTATION_BINS - 1) % ORIENTATION_BINS]
+                    + raw[(b + 1) % ORIENTATION_BINS]) * (4f / 16)
+                    + raw[b] * (6f / 16);
+        }
+        return samples;
+    }
+
+    //The SIFT descriptor at (x, y) for the orientation: gradients in a square of 4x4 cells of 3 sigma, rotated to
+    //the orientation, weighted by a Gaussian of half the square's width and spread over the 8 orientation bins of the
+    //nearest cells by trilinear interpolation; then normalised, clamped and normalised again
+    private static void describe(float[][] image, float x, float y, int w, int h, float angle, float octaveSigma,
+                                 float[] histogram, float[] descriptor) {
+        int d = DESCRIPTOR_WIDTH;
+        int n = DESCRIPTOR_BINS;
+        float cellWidth = DESCRIPTOR_CELL_SIGMAS * octaveSigma;
+        int radius = Math.round(cellWidth * (float) Math.sqrt(2) * (d + 1) * 0.5f);
+        radius = Math.min(radius, (int) Math.sqrt((double) w * w + (double) h * h));
+        float cos = (float) Math.cos(angle) / cellWidth;
+        float sin = (float) Math.sin(angle) / cellWidth;
+        float binsPerRadian = n / (float) (2 * Math.PI);
+        float weightScale = -1f / (d * d * 0.5f);
+        int cx = Math.round(x);
+        int cy = Math.round(y);
+        Arrays.fill(histogram, 0);
+
+        for (int i = -radius; i <= radius; i++) {
+            for (int j = -radius; j <= radius; j++) {
+                //(j, i) in the keypoint's frame, in cells
+                float column = j * cos + i * sin;
+                float row = -j * sin + i * cos;
+                float rowBin = row + d / 2f - 0.5f;
+                float columnBin = column + d / 2f - 0.5f;
+                int r = cy + i;
+                int c = cx + j;
+                if (rowBin <= -1 || rowBin >= d || columnBin <= -1 || columnBin >= d
+                        || r <= 0 || r >= h - 1 || c <= 0 || c >= w - 1) {
+                    continue;
+                }
+                float gx = image[r][c + 1] - image[r][c - 1];
+                float gy = image[r + 1][c] - image[r - 1][c];
+                double orientation = Math.atan2(gy, gx) - angle;
+                while (orientation < 0) {
+                    orientation += 2 * Math.PI;
+                }
+                while (orientation >= 2 * Math.PI) {
+                    orientation -= 2 * Math.PI;
+                }
+                float orientationBin = (float) orientation * binsPerRadian;
+                float magnitude = (float) Math.sqrt(gx * gx + gy * gy)
+                        * (float) Math.exp((column * column + row * row) * weightScale);
+
+                int r0 = (int) Math.floor(rowBin);
+                int c0 = (int) Math.floor(columnBin);
+                int o0 = (int) Math.floor(orientationBin);
+                float fr = rowBin - r0;
+                float fc = columnBin - c0;
+                float fo = orientationBin - o0;
+                if (o0 >= n) {
+                    o0 -= n;
+                }
+                for (int a = 0; a <= 1; a++) {
+                    float vr = a == 0 ? magnitude * (1 - fr) : magnitude * fr;
+                    for (int b = 0; b <= 1; b++) {
+                        float vc = b == 0 ? vr * (1 - fc) : vr * fc;
+                        int index = ((r0 + 1 + a) * (d + 2) + c0 + 1 + b) * (n + 2) + o0;
+                        histogram[index] += vc * (1 - fo);
+                        histogram[index + 1] += vc * fo;
+                    }
+                }
+            }
+        }
+
+        //fold the wrapped orientation bins back and drop the padding cells
+        for (int i = 0; i < d; i++) {
+            for (int j = 0; j < d; j++) {
+                int index = ((i + 1) * (d + 2) + j + 1) * (n + 2);
+                histogram[index] += histogram[index + n];
+                histogram[index + 1] += histogram[index + n + 1];
+                System.arraycopy(histogram, index, descriptor, (i * d + j) * n, n);
+            }
+        }
+
+        float norm = 0;
+        for (float v : descriptor) {
+            norm += v * v;
+        }
+        float clamp = DESCRIPTOR_CLAMP * (float) Math.sqrt(norm);
+        norm = 0;
+        for (int k = 0; k < descriptor.length; k++) {
+            descriptor[k] = Math.min(descriptor[k], clamp);
+            norm += descriptor[k] * descriptor[k];
+        }
+        float scale = DESCRIPTOR_INT_FACTOR / Math.max((float) Math.sqrt(norm), 1e-7f);
+        for (int k = 0; k < descriptor.length; k++) {
+            descriptor[k] *= scale;
+        }
+    }
+
+    //As Keypoint stores them: each value, at most 255, less 128
+    private static byte[] toBytes(float[] descriptor) {
+        byte[] bytes = new byte[descriptor.length];
+        for (int k = 0; k < descriptor.length; k++) {
+            bytes[k] = (byte) (Math.min(255, (int) descriptor[k]) - 128);
+        }
+        return bytes;
+    }
+}
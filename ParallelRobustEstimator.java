@@ -0,0 +1,715 @@
+import org.openimaj.image.feature.local.keypoints.Keypoint;
+import org.openimaj.math.geometry.point.Point2d;
+import org.openimaj.math.model.EstimatableModel;
+import org.openimaj.math.model.fit.RobustModelFitting;
+import org.openimaj.util.function.Operation;
+import org.openimaj.util.pair.IndependentPair;
+import org.openimaj.util.parallel.Parallel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+//RANSAC / LMedS for the 2D geometry ConsistentLocalFeatureMatcher2d fits (affine, homography, fundamental), that
+//can be given to it in place of RobustHomographyEstimator and the others. Faster because:
+//  - the match coordinates are packed in one float[] (x1, y1, x2, y2 for each match) and every hypothesis is solved
+//    and scored directly on it, with no Point2d or pair objects and no Jama matrices
+//  - hypotheses are made and scored in parallel batches; between batches the best so far is kept and the number of
+//    iterations still needed is worked out again from its inlier fraction (adaptive stopping), and RANSAC stops
+//    scoring a hypothesis as soon as it cannot beat the best one
+//  - sampling is PROSAC (Chum & Matas): matches are sorted best first (by descriptor distance when they are
+//    Keypoints, otherwise kept in the order given) and the first samples are drawn from only the best few, widening
+//    to all matches as iterations go on, so a good model tends to turn up in the first batch.
+//RANSAC counts matches with residual < threshold as inliers; LMedS keeps the hypothesis with the lowest median
+//residual and takes as inliers the matches within 2.5 robust standard deviations of it.
+//Residuals are the squared distance from the predicted to the actual point in the second image (as
+//SingleImageTransferResidual2d) for AFFINE and HOMOGRAPHY, and the Sampson distance for FUNDAMENTAL.
+//The model given is estimated from the inliers at the end, and is what getModel() returns.
+//Each hypothesis draws its sample from its own random sequence, and the batches are of a fixed size whatever the
+//number of cores, so the result does not depend on the number of threads
+public class ParallelRobustEstimator<M extends EstimatableModel<Point2d, Point2d>>
+        implements RobustModelFitting<Point2d, Point2d, M> {
+
+    public enum Geometry {
+        AFFINE(3), HOMOGRAPHY(4), FUNDAMENTAL(8);
+
+        final int sampleSize;
+
+        Geometry(int sampleSize) {
+            this.sampleSize = sampleSize;
+        }
+    }
+
+    public enum Method {
+        RANSAC, LMEDS
+    }
+
+    //Hypotheses scored by one task, and between two checks of the stopping condition. The batch is the same on any
+    //machine, so the hypotheses tried, and the result, do not depend on the number of cores; 16 tasks keep 8 cores busy
+    private static final int TASK_HYPOTHESES = 16;
+    private static final int BATCH_HYPOTHESES = 16 * TASK_HYPOTHESES;
+    private static final double LMEDS_INLIER_SIGMAS = 2.5;
+
+    private final Geometry geometry;
+    private final M model;
+    private final Method method;
+    private final double threshold;
+    private final double outlierProportion;
+    private final int maxIterations;
+    private final double confidence;
+    private double stopInlierFraction = 1;
+    private long seed = 42;
+
+    private List<IndependentPair<Point2d, Point2d>> inliers = new ArrayList<IndependentPair<Point2d, Point2d>>();
+    private List<IndependentPair<Point2d, Point2d>> outliers = new ArrayList<IndependentPair<Point2d, Point2d>>();
+    private double[] bestMatrix;
+    private int iterations;
+
+    private ParallelRobustEstimator(Geometry geometry, M model, Method method, double threshold,
+                                    double outlierProportion, int maxIterations, double confidence) {
+        if (confidence <= 0 || confidence >= 1) {
+            throw new IllegalArgumentException("confidence must be between 0 and 1");
+        }
+        this.geometry = geometry;
+        this.model = model;
+        this.method = method;
+        this.threshold = threshold;
+        this.outlierProportion = outlierProportion;
+        this.maxIterations = maxIterations;
+        this.confidence = confidence;
+    }
+
+    //RANSAC with residuals below threshold counting as inliers; stops after maxIterations or once another
+    //iteration would be unlikely (1 - confidence) to find more inliers
+    public static <M extends EstimatableModel<Point2d, Point2d>> ParallelRobustEstimator<M> ransac(
+            Geometry geometry, M model, double threshold, int maxIterations, double confidence) {
+        return new ParallelRobustEstimator<M>(geometry, model, Method.RANSAC, threshold, 0, maxIterations,
+                confidence);
+    }
+
+    //LMedS, running as many iterations as needed to draw an outlier-free sample with the given confidence when
+    //outlierProportion of the matches are outliers (and at most maxIterations)
+    public static <M extends EstimatableModel<Point2d, Point2d>> ParallelRobustEstimator<M> lmeds(
+            Geometry geometry, M model, double outlierProportion, int maxIterations, double confidence) {
+        return new ParallelRobustEstimator<M>(geometry, model, Method.LMEDS, 0, outlierProportion, maxIterations,
+                confidence);
+    }
+
+    //RANSAC also stops as soon as a hypothesis has this fraction of the matches as inliers
+    //(as RANSAC.PercentageInliersStoppingCondition)
+    public void setStopInlierFraction(double stopInlierFraction) {
+        this.stopInlierFraction = stopInlierFraction;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    @Override
+    public boolean fitData(List<? extends IndependentPair<Point2d, Point2d>> data) {
+        int n = data.size();
+        inliers = new ArrayList<IndependentPair<Point2d, Point2d>>();
+        outliers = new ArrayList<IndependentPair<Point2d, Point2d>>();
+
+        //best matches first: sorting (quality << 32 | index) keeps the given order among equal qualities
+        long[] keys = new long[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = ((long) quality(data.get(i)) << 32) | i;
+        }
+        Arrays.sort(keys);
+        float[] matches = new float[4 * n];
+        for (int s = 0; s < n; s++) {
+            IndependentPair<Point2d, Point2d> pair = data.get((int) keys[s]);
+            matches[4 * s] = pair.getFirstObject().getX();
+            matches[4 * s + 1] = pair.getFirstObject().getY();
+            matches[4 * s + 2] = pair.getSecondObject().getX();
+            matches[4 * s + 3] = pair.getSecondObject().getY();
+        }
+
+        boolean[] sortedMask = fit(matches, n);
+        boolean[] mask = new boolean[n];
+        for (int s = 0; s < n; s++) {
+            mask[(int) keys[s]] = sortedMask != null && sortedMask[s];
+        }
+        for (int i = 0; i < n; i++) {
+            (mask[i] ? inliers : outliers).add(data.get(i));
+        }
+        return sortedMask != null && inliers.size() >= geometry.sampleSize && model.estimate(inliers);
+    }
+
+    //Fits the geometry to n matches packed as (x1, y1, x2, y2), best matches first. Returns which of them are
+    //inliers, or null if no model could be fitted (too few matches, or only degenerate samples).
+    //The fitted matrix (row-major, mapping first image points to the second, or the fundamental matrix) is then
+    //available from getMatrix()
+    public boolean[] fit(final float[] matches, final int n) {
+        final int m = geometry.sampleSize;
+        bestMatrix = null;
+        iterations = 0;
+        if (n < m) {
+            return null;
+        }
+        final double[] normalisation = normalisation(matches, n);
+        final double[][] denormalisation = denormalisation(normalisation);
+        final int[] growAt = prosacSchedule(m, n, maxIterations);
+        int batch = BATCH_HYPOTHESES;
+        final int[] poolSizes = new int[batch];
+        final double[] matrices = new double[batch * 9];
+        final int[] counts = new int[batch];
+        final double[] costs = new double[batch];
+        final ThreadLocal<Worker> workers = new ThreadLocal<Worker>() {
+            @Override
+            protected Worker initialValue() {
+                return new Worker(n);
+            }
+        };
+
+        int pool = m;
+        int bestCount = 0;
+        double bestCost = Double.POSITIVE_INFINITY;
+        double[] best = null;
+        int needed = method == Method.LMEDS ? neededIterations(1 - outlierProportion, m) : maxIterations;
+        needed = Math.min(needed, maxIterations);
+
+        while (iterations < needed) {
+            final int first = iterations;
+            final int count = Math.min(batch, needed - iterations);
+            for (int h = 0; h < count; h++) {
+                while (pool < n && growAt[pool + 1] <= first + h + 1) {
+                    pool++;
+                }
+                poolSizes[h] = pool;
+            }
+            final int countToBeat = bestCount;
+            final double costToBeat = bestCost;
+            int tasks = (count + TASK_HYPOTHESES - 1) / TASK_HYPOTHESES;
+            Parallel.forIndex(0, tasks, 1, new Operation<Integer>() {
+                @Override
+                public void perform(Integer task) {
+                    Worker worker = workers.get();
+                    for (int h = task * TASK_HYPOTHESES; h < Math.min(count, (task + 1) * TASK_HYPOTHESES); h++) {
+                        if (!hypothesis(worker, matches, n, normalisation, denormalisation, poolSizes[h], first + h,
+                                matrices, 9 * h)) {
+                            counts[h] = -1;
+                            costs[h] = Double.POSITIVE_INFINITY;
+                        } else if (method == Method.RANSAC) {
+                            score(matches, n, matrices, 9 * h, countToBeat, counts, costs, h);
+                        } else {
+                            costs[h] = median(worker, matches, n, matrices, 9 * h, costToBeat);
+                            counts[h] = 0;
+                        }
+                    }
+                }
+            });
+            iterations += count;
+
+            //in order of iteration, so that which of equally good hypotheses wins does not depend on the threads
+            for (int h = 0; h < count; h++) {
+                boolean better = method == Method.RANSAC
+                        ? counts[h] > bestCount || (counts[h] == bestCount && counts[h] > 0 && costs[h] < bestCost)
+                        : costs[h] < bestCost;
+                if (better) {
+                    bestCount = counts[h];
+                    bestCost = costs[h];
+                    best = Arrays.copyOfRange(matrices, 9 * h, 9 * h + 9);
+                }
+            }
+            if (method == Method.RANSAC && best != null) {
+                if (bestCount >= stopInlierFraction * n) {
+                    break;
+                }
+                needed = Math.min(maxIterations, neededIterations((double) bestCount / n, m));
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+
+        bestMatrix = best;
+        double cutoff = threshold;
+        if (method == Method.LMEDS) {
+            double sigma = 1.4826 * (1 + 5.0 / Math.max(1, n - m));
+            cutoff = LMEDS_INLIER_SIGMAS * LMEDS_INLIER_SIGMAS * sigma * sigma * bestCost;
+        }
+        boolean[] mask = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            double r = residual(best, matches, i);
+            mask[i] = method == Method.RANSAC ? r < cutoff : r <= cutoff;
+        }
+        return mask;
+    }
+
+    //The matrix of the best hypothesis of the last fit, row-major, or null
+    public double[] getMatrix() {
+        return bestMatrix == null ? null : bestMatrix.clone();
+    }
+
+    //The number of hypotheses the last fit tried
+    public int getIterations() {
+        return iterations;
+    }
+
+    @Override
+    public int numItemsToEstimate() {
+        return geometry.sampleSize;
+    }
+
+    @Override
+    public M getModel() {
+        return model;
+    }
+
+    @Override
+    public List<? extends IndependentPair<Point2d, Point2d>> getInliers() {
+        return inliers;
+    }
+
+    @Override
+    public List<? extends IndependentPair<Point2d, Point2d>> getOutliers() {
+        return outliers;
+    }
+
+    //Lower is better: the squared distance between the descriptors of keypoint matches, otherwise 0
+    private static int quality(IndependentPair<Point2d, Point2d> pair) {
+        if (pair.getFirstObject() instanceof Keypoint && pair.getSecondObject() instanceof Keypoint) {
+            byte[] a = ((Keypoint) pair.getFirstObject()).ivec;
+            byte[] b = ((Keypoint) pair.getSecondObject()).ivec;
+            if (a != null && b != null && a.length == b.length) {
+                int sum = 0;
+                for (int d = 0; d < a.length; d++) {
+                    int difference = a[d] - b[d];
+                    sum += difference * difference;
+                }
+                return sum;
+            }
+        }
+        return 0;
+    }
+
+    //Per-thread buffers
+    private static final class Worker {
+        final int[] sample = new int[8];
+        final double[] system = new double[8 * 9];
+        final double[] solution = new double[9];
+        final double[] product = new double[9];
+        //for FUNDAMENTAL: A'A and its eigenvectors, then F'F and its eigenvectors
+        final double[] normal = new double[81];
+        final double[] vectors = new double[81];
+        final double[] values = new double[9];
+        final float[] residuals;
+
+        Worker(int n) {
+            residuals = new float[n];
+        }
+    }
+
+    //Draws the sample of the given iteration and solves for its model, writing the (denormalised) matrix to
+    //matrices[offset...]; false if the sample is degenerate
+    private boolean hypothesis(Worker worker, float[] matches, int n, double[] normalisation,
+                               double[][] denormalisation, int pool, int iteration, double[] matrices, int offset) {
+        int m = geometry.sampleSize;
+        int[] sample = worker.sample;
+        //splitmix64 seeded by the iteration, so each hypothesis has its own sequence
+        long state = seed + (iteration + 1) * 0x9E3779B97F4A7C15L;
+        int start = 0;
+        if (pool < n) {
+            //PROSAC: the newest match in the pool, and the rest from the better ones
+            sample[0] = pool - 1;
+            start = 1;
+        }
+        int range = pool < n ? pool - 1 : n;
+        for (int s = start; s < m; s++) {
+            int pick;
+            boolean repeated;
+            do {
+                state += 0x9E3779B97F4A7C15L;
+                long z = state;
+                z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+                z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+                z ^= z >>> 31;
+                pick = (int) ((z >>> 1) % range);
+                repeated = false;
+                for (int r = 0; r < s; r++) {
+                    repeated |= sample[r] == pick;
+                }
+            } while (repeated);
+            sample[s] = pick;
+        }
+
+        double s1 = normalisation[0], cx1 = normalisation[1], cy1 = normalisation[2];
+        double s2 = normalisation[3], cx2 = normalisation[4], cy2 = normalisation[5];
+        double[] a = worker.system;
+        double[] h = worker.solution;
+        int unknowns = geometry == Geometry.AFFINE ? 6 : 8;
+        int row = 0;
+        for (int s = 0; s < m; s++) {
+            int i = 4 * sample[s];
+            double x = (matches[i] - cx1) * s1, y = (matches[i + 1] - cy1) * s1;
+            double u = (matches[i + 2] - cx2) * s2, v = (matches[i + 3] - cy2) * s2;
+            int r = row * (unknowns + 1);
+            switch (geometry) {
+                case AFFINE:
+                    setRow(a, r, x, y, 1, 0, 0, 0, u);
+                    setRow(a, r + 7, 0, 0, 0, x, y, 1, v);
+                    row += 2;
+                    break;
+                case HOMOGRAPHY:
+                    setRow(a, r, x, y, 1, 0, 0, 0, -u * x, -u * y, u);
+                    setRow(a, r + 9, 0, 0, 0, x, y, 1, -v * x, -v * y, v);
+                    row += 2;
+                    break;
+                default:
+                    //x2' F x1 = 0, homogeneous in the 9 entries of F
+                    setRow(a, r, u * x, u * y, u, v * x, v * y, v, x, y, 1);
+                    row++;
+            }
+        }
+        if (geometry == Geometry.FUNDAMENTAL) {
+            if (!fundamental(worker, h)) {
+                return false;
+            }
+        } else {
+            if (!solve(a, unknowns, h)) {
+                return false;
+            }
+            if (geometry == Geometry.AFFINE) {
+                h[6] = 0;
+                h[7] = 0;
+            }
+            h[8] = 1;
+        }
+
+        multiply(h, denormalisation[1], worker.product, 0);
+        multiply(denormalisation[0], worker.product, matrices, offset);
+        return true;
+    }
+
+    //The matrices {left, right} that undo the normalisation of a solution: T2^-1 H T1 for a transform,
+    //T2' F T1 for a fundamental matrix
+    private double[][] denormalisation(double[] normalisation) {
+        double s1 = normalisation[0], cx1 = normalisation[1], cy1 = normalisation[2];
+        double s2 = normalisation[3], cx2 = normalisation[4], cy2 = normalisation[5];
+        double[] t1 = {s1, 0, -s1 * cx1, 0, s1, -s1 * cy1, 0, 0, 1};
+        double[] left = geometry == Geometry.FUNDAMENTAL
+                ? new double[]{s2, 0, 0, 0, s2, 0, -s2 * cx2, -s2 * cy2, 1}
+                : new double[]{1 / s2, 0, cx2, 0, 1 / s2, cy2, 0, 0, 1};
+        return new double[][]{left, t1};
+    }
+
+    //RANSAC score: the number of inliers, and the sum of their residuals to break ties; gives up (count -1) as soon
+    //as the hypothesis cannot reach countToBeat
+    private void score(float[] matches, int n, double[] matrices, int offset, int countToBeat, int[] counts,
+                       double[] costs, int h) {
+        double[] p = Arrays.copyOfRange(matrices, offset, offset + 9);
+        int count = 0;
+        double cost = 0;
+        for (int i = 0; i < n; i++) {
+            double r = residual(p, matches, i);
+            if (r < threshold) {
+                count++;
+                cost += r;
+            } else if (count + n - 1 - i < countToBeat) {
+                counts[h] = -1;
+                costs[h] = Double.POSITIVE_INFINITY;
+                return;
+            }
+        }
+        counts[h] = count;
+        costs[h] = cost;
+    }
+
+    //LMedS score: the median residual; gives up (infinity) as soon as more than half of the residuals are above
+    //costToBeat
+    private double median(Worker worker, float[] matches, int n, double[] matrices, int offset, double costToBeat) {
+        double[] p = Arrays.copyOfRange(matrices, offset, offset + 9);
+        float[] residuals = worker.residuals;
+        int k = n / 2;
+        int above = 0;
+        for (int i = 0; i < n; i++) {
+            residuals[i] = (float) residual(p, matches, i);
+            if (residuals[i] > costToBeat && ++above > n - 1 - k) {
+                return Double.POSITIVE_INFINITY;
+            }
+        }
+        return select(residuals, n, k);
+    }
+
+    private double residual(double[] p, float[] matches, int i) {
+        double x1 = matches[4 * i], y1 = matches[4 * i + 1];
+        double x2 = matches[4 * i + 2], y2 = matches[4 * i + 3];
+        double a = p[0] * x1 + p[1] * y1 + p[2];
+        double b = p[3] * x1 + p[4] * y1 + p[5];
+        double c = p[6] * x1 + p[7] * y1 + p[8];
+        if (geometry != Geometry.FUNDAMENTAL) {
+            if (c == 0) {
+                return Double.POSITIVE_INFINITY;
+            }
+            double dx = a / c - x2;
+            double dy = b / c - y2;
+            return dx * dx + dy * dy;
+        }
+        //Sampson distance: (x2' F x1)^2 / ((F x1)_1^2 + (F x1)_2^2 + (F' x2)_1^2 + (F' x2)_2^2)
+        double d = p[0] * x2 + p[3] * y2 + p[6];
+        double e = p[1] * x2 + p[4] * y2 + p[7];
+        double error = x2 * a + y2 * b + c;
+        double denominator = a * a + b * b + d * d + e * e;
+        return denominator == 0 ? Double.POSITIVE_INFINITY : error * error / denominator;
+    }
+
+    //Iterations needed to draw, with the given confidence, at least one sample of m inliers when a fraction
+    //inlierFraction of the matches are inliers
+    private int neededIterations(double inlierFraction, int m) {
+        double allInliers = Math.pow(inlierFraction, m);
+        if (allInliers >= 1) {
+            return 1;
+        }
+        if (allInliers <= 0) {
+            return Integer.MAX_VALUE;
+        }
+        double needed = Math.ceil(Math.log(1 - confidence) / Math.log(1 - allInliers));
+        return needed >= Integer.MAX_VALUE ? Integer.MAX_VALUE : Math.max(1, (int) needed);
+    }
+
+    //PROSAC growth function: growAt[p] is the iteration (from 1) at which samples start to include the p-th best
+    //match, for p from m + 1 to n
+    private static int[] prosacSchedule(int m, int n, int maxIterations) {
+        int[] growAt = new int[n + 1];
+        double t = Math.max(1, maxIterations);
+        for (int i = 0; i < m; i++) {
+            t *= (double) (m - i) / (n - i);
+        }
+        long iteration = 1;
+        for (int p = m; p < n; p++) {
+            double next = t * (p + 1) / (p + 1 - m);
+            iteration += (long) Math.ceil(next - t);
+            t = next;
+            growAt[p + 1] = (int) Math.min(iteration, Integer.MAX_VALUE);
+        }
+        return growAt;
+    }
+
+    //Hartley normalisation of each image's points: {scale1, cx1, cy1, scale2, cx2, cy2} moving the centroid to the
+    //origin and the mean distance from it to sqrt(2)
+    private static double[] normalisation(float[] matches, int n) {
+        double[] result = new double[6];
+        for (int image = 0; image < 2; image++) {
+            double cx = 0, cy = 0;
+            for (int i = 0; i < n; i++) {
+                cx += matches[4 * i + 2 * image];
+                cy += matches[4 * i + 2 * image + 1];
+            }
+            cx /= n;
+            cy /= n;
+            double distance = 0;
+            for (int i = 0; i < n; i++) {
+                double dx = matches[4 * i + 2 * image] - cx;
+                double dy = matches[4 * i + 2 * image + 1] - cy;
+                distance += Math.sqrt(dx * dx + dy * dy);
+            }
+            distance /= n;
+            result[3 * image] = distance == 0 ? 1 : Math.sqrt(2) / distance;
+            result[3 * image + 1] = cx;
+            result[3 * image + 2] = cy;
+        }
+        return result;
+    }
+
+    private static void setRow(double[] a, int offset, double... values) {
+        System.arraycopy(values, 0, a, offset, values.length);
+    }
+
+    //Solves the k x k system in the augmented k x (k + 1) matrix a (destroying it) by Gaussian elimination with
+    //partial pivoting; false if it is (nearly) singular
+    private static boolean solve(double[] a, int k, double[] x) {
+        int width = k + 1;
+        for (int col = 0; col < k; col++) {
+            int pivot = col;
+            for (int r = col + 1; r < k; r++) {
+                if (Math.abs(a[r * width + col]) > Math.abs(a[pivot * width + col])) {
+                    pivot = r;
+                }
+            }
+            if (Math.abs(a[pivot * width + col]) < 1e-10) {
+                return false;
+            }
+            if (pivot != col) {
+                for (int c = col; c < width; c++) {
+                    double swap = a[col * width + c];
+                    a[col * width + c] = a[pivot * width + c];
+                    a[pivot * width + c] = swap;
+                }
+            }
+            for (int r = col + 1; r < k; r++) {
+                double factor = a[r * width + col] / a[col * width + col];
+                for (int c = col; c < width; c++) {
+                    a[r * width + c] -= factor * a[col * width + c];
+                }
+            }
+        }
+        for (int r = k - 1; r >= 0; r--) {
+            double sum = a[r * width + k];
+            for (int c = r + 1; c < k; c++) {
+                sum -= a[r * width + c] * x[c];
+            }
+            x[r] = sum / a[r * width + r];
+        }
+        return true;
+    }
+
+    //The fundamental matrix f of the 8 rows of 9 in worker.system (in normalised coordinates): the null vector of the
+    //system, i.e. its right singular vector with the smallest singular value (the eigenvector of A'A with the smallest
+    //eigenvalue), with no entry fixed, so an F with F[2][2] near 0 is found as well as any other. It is then made
+    //rank 2, as a fundamental matrix must be, by removing its smallest singular value: with v the eigenvector of F'F
+    //with the smallest eigenvalue (F's right singular vector for it), F v v' is that singular value's part of F.
+    //False if the sample does not determine F (a second eigenvalue of A'A is also about 0)
+    private static boolean fundamental(Worker worker, double[] f) {
+        double[] a = worker.system;
+        double[] normal = worker.normal;
+        for (int i = 0; i < 9; i++) {
+            for (int j = i; j < 9; j++) {
+                double sum = 0;
+                for (int r = 0; r < 8; r++) {
+                    sum += a[9 * r + i] * a[9 * r + j];
+                }
+                normal[9 * i + j] = sum;
+                normal[9 * j + i] = sum;
+            }
+        }
+        double[] vectors = worker.vectors;
+        double[] values = worker.values;
+        symmetricEigen(normal, 9, values, vectors);
+        int smallest = 0;
+        double largest = 0;
+        for (int i = 0; i < 9; i++) {
+            if (values[i] < values[smallest]) {
+                smallest = i;
+            }
+            largest = Math.max(largest, values[i]);
+        }
+        for (int i = 0; i < 9; i++) {
+            if (i != smallest && values[i] <= 1e-12 * largest) {
+                return false;
+            }
+        }
+        for (int i = 0; i < 9; i++) {
+            f[i] = vectors[9 * i + smallest];
+        }
+
+        //rank 2: F - (F v) v'
+        for (int i = 0; i < 3; i++) {
+            for (int j = i; j < 3; j++) {
+                double sum = f[i] * f[j] + f[3 + i] * f[3 + j] + f[6 + i] * f[6 + j];
+                normal[3 * i + j] = sum;
+                normal[3 * j + i] = sum;
+            }
+        }
+        symmetricEigen(normal, 3, values, vectors);
+        smallest = 0;
+        for (int i = 1; i < 3; i++) {
+            if (values[i] < values[smallest]) {
+                smallest = i;
+            }
+        }
+        double v0 = vectors[smallest], v1 = vectors[3 + smallest], v2 = vectors[6 + smallest];
+        for (int r = 0; r < 3; r++) {
+            double fv = f[3 * r] * v0 + f[3 * r + 1] * v1 + f[3 * r + 2] * v2;
+            f[3 * r] -= fv * v0;
+            f[3 * r + 1] -= fv * v1;
+            f[3 * r + 2] -= fv * v2;
+        }
+        return true;
+    }
+
+    //Eigenvalues and eigenvectors (the columns of vectors, row-major n x n) of the symmetric n x n matrix m
+    //(destroying it), by cyclic Jacobi rotations
+    private static void symmetricEigen(double[] m, int n, double[] values, double[] vectors) {
+        Arrays.fill(vectors, 0, n * n, 0);
+        double total = 0;
+        for (int i = 0; i < n; i++) {
+            vectors[n * i + i] = 1;
+            for (int j = 0; j < n; j++) {
+                total += m[n * i + j] * m[n * i + j];
+            }
+        }
+        for (int sweep = 0; sweep < 50; sweep++) {
+            double off = 0;
+            for (int p = 0; p < n; p++) {
+                for (int q = p + 1; q < n; q++) {
+                    off += m[n * p + q] * m[n * p + q];
+                }
+            }
+            if (off <= 1e-30 * total) {
+                break;
+            }
+            for (int p = 0; p < n; p++) {
+                for (int q = p + 1; q < n; q++) {
+                    double apq = m[n * p + q];
+                    if (apq == 0) {
+                        continue;
+                    }
+                    //the rotation that zeroes m[p][q] (Numerical Recipes' jacobi)
+                    double theta = (m[n * q + q] - m[n * p + p]) / (2 * apq);
+                    double t = (theta >= 0 ? 1 : -1) / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+                    double c = 1 / Math.sqrt(t * t + 1);
+                    double s = t * c;
+                    for (int k = 0; k < n; k++) {
+                        double kp = m[n * k + p], kq = m[n * k + q];
+                        m[n * k + p] = c * kp - s * kq;
+                        m[n * k + q] = s * kp + c * kq;
+                    }
+                    for (int k = 0; k < n; k++) {
+                        double pk = m[n * p + k], qk = m[n * q + k];
+                        m[n * p + k] = c * pk - s * qk;
+                        m[n * q + k] = s * pk + c * qk;
+                    }
+                    for (int k = 0; k < n; k++) {
+                        double kp = vectors[n * k + p], kq = vectors[n * k + q];
+                        vectors[n * k + p] = c * kp - s * kq;
+                        vectors[n * k + q] = s * kp + c * kq;
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            values[i] = m[n * i + i];
+        }
+    }
+
+    //out[offset...] = a b for row-major 3x3 matrices
+    private static void multiply(double[] a, double[] b, double[] out, int offset) {
+        for (int r = 0; r < 3; r++) {
+            for (int c = 0; c < 3; c++) {
+                out[offset + 3 * r + c] = a[3 * r] * b[c] + a[3 * r + 1] * b[3 + c] + a[3 * r + 2] * b[6 + c];
+            }
+        }
+    }
+
+    //The k-th smallest of the first n values (reordering them)
+    private static float select(float[] values, int n, int k) {
+        int low = 0, high = n - 1;
+        while (low < high) {
+            float pivot = values[(low + high) >>> 1];
+            int i = low, j = high;
+            while (i <= j) {
+                while (values[i] < pivot) {
+                    i++;
+                }
+                while (values[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    float swap = values[i];
+                    values[i++] = values[j];
+                    values[j--] = swap;
+                }
+            }
+            if (k <= j) {
+                high = j;
+            } else if (k >= i) {
+                low = i;
+            } else {
+                return values[k];
+            }
+        }
+        return values[k];
+    }
+}
@@ -0,0 +1,8 @@
+//A primitive alternative to PixelProcessor<Float[]>:
+//the pixel's band values are copied into a reusable float[] which the kernel overwrites with the output values,
+//so no arrays or boxed Floats are created per pixel
+//Implementations must not keep state between calls, since the same kernel is shared by all threads
+public interface PixelKernel {
+
+    void processPixel(float[] pixel);
+}
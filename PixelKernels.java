@@ -0,0 +1,96 @@
+import org.openimaj.image.MBFImage;
+
+//Runs a PixelKernel over every pixel of an MBFImage, reading and writing the float[][] band arrays in place
+public final class PixelKernels {
+
+    private PixelKernels() {
+    }
+
+    //Applies the kernel to the whole image on the calling thread
+    public static void apply(MBFImage image, PixelKernel kernel) {
+        RowTiles.run(image.getHeight(), rowTask(image, kernel));
+    }
+
+    //Applies the kernel to the whole image, processing tiles of rows in parallel
+    public static void applyParallel(MBFImage image, PixelKernel kernel) {
+        RowTiles.runParallel(image.getHeight(), rowTask(image, kernel));
+    }
+
+    //Applies the kernel to the whole image, processing tiles of tileRows rows in parallel
+    public static void applyParallel(MBFImage image, PixelKernel kernel, int tileRows) {
+        RowTiles.runParallel(image.getHeight(), tileRows, rowTask(image, kernel));
+    }
+
+    //Applies the kernel to rows y0 (inclusive) to y1 (exclusive) of the given bands
+    //The scratch array holds one value per band and is the only buffer used
+    public static void applyRows(float[][][] bands, PixelKernel kernel, int y0, int y1, float[] scratch) {
+        int nBands = bands.length;
+        for (int y = y0; y < y1; y++) {
+            int width = bands[0][y].length;
+            for (int x = 0; x < width; x++) {
+                for (int b = 0; b < nBands; b++) {
+                    scratch[b] = bands[b][y][x];
+                }
+                kernel.processPixel(scratch);
+                for (int b = 0; b < nBands; b++) {
+                    bands[b][y][x] = scratch[b];
+                }
+            }
+        }
+    }
+
+    //Collects the pixel arrays of each band so the inner loops never go through getBand()
+    static float[][][] bandPixels(MBFImage image) {
+        float[][][] bands = new float[image.numBands()][][];
+        for (int b = 0; b < bands.length; b++) {
+            bands[b] = image.getBand(b).pixels;
+        }
+        return bands;
+    }
+
+    private static RowTiles.Task rowTask(MBFImage image, final PixelKernel kernel) {
+        final float[][][] bands = bandPixels(image);
+        return new RowTiles.Task() {
+            @Override
+            public void process(int y0, int y1) {
+                //one scratch pixel per tile, not per pixel
+                applyRows(bands, kernel, y0, y1, new float[bands.length]);
+            }
+        };
+    }
+
+    //Replaces each pixel with its closest centroid (squared Euclidean distance), which gives the same
+    //class as the exact HardAssigner returned by FloatCentroidsResult.defaultHardAssigner()
+    public static class NearestCentroidKernel implements PixelKernel {
+        private final float[][] centroids;
+
+        public NearestCentroidKernel(float[][] centroids) {
+            this.centroids = centroids;
+        }
+
+        //Index of the centroid closest to the pixel
+        public int assign(float[] pixel) {
+            int best = 0;
+            float bestDistance = Float.MAX_VALUE;
+            for (int c = 0; c < centroids.length; c++) {
+                float[] centroid = centroids[c];
+                float distance = 0;
+                for (int b = 0; b < centroid.length; b++) {
+                    float diff = pixel[b] - centroid[b];
+                    distance += diff * diff;
+                }
+                if (distance < bestDistance) {
+                    bestDistance = distance;
+                    best = c;
+                }
+            }
+            return best;
+        }
+
+        @Override
+        public void processPixel(float[] pixel) {
+            float[] centroid = centroids[assign(pixel)];
+            System.arraycopy(centroid, 0, pixel, 0, centroid.length);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+import org.openimaj.data.dataset.VFSListDataset;
+import org.openimaj.image.FImage;
+import org.openimaj.image.ImageUtilities;
+import org.openimaj.time.Timer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+//Iterates over VFSListDatasets of images, as Chapter6 makes them, plainly and through PrefetchingIterator with a few
+//window sizes and numbers of workers, blurring every image (a stand-in for the work done with it), and reports images
+//per second and how long the consumer waited for images. The datasets are the paths given as arguments (directories
+//or zip:/path/to/file.zip), or else a directory of 200 synthetic 640x480 JPEGs and a zip of the same files, made in
+//the temporary directory. Every dataset is read once first, so the files come from the OS cache and the time measured
+//is decoding rather than the disk
+public class PrefetchBenchmark {
+
+    private static final int IMAGES = 200;
+
+    public static void main(String[] args) throws IOException {
+        List<String> sources = new ArrayList<String>(Arrays.asList(args));
+        if (sources.isEmpty()) {
+            File directory = syntheticImages();
+            sources.add(directory.getAbsolutePath());
+            sources.add("zip:" + zip(directory).getAbsolutePath());
+        }
+        int cores = Runtime.getRuntime().availableProcessors();
+        //lookahead, workers
+        int[][] settings = {{1, 1}, {4, 2}, {16, cores}, {32, 2 * cores}};
+        GaussianBlur blur = new GaussianBlur(2f);
+
+        System.out.println("source\tlookahead\tthreads\timages per second\tms waiting");
+        for (String source : sources) {
+            VFSListDataset<FImage> images = new VFSListDataset<FImage>(source, ImageUtilities.FIMAGE_READER);
+            for (FImage image : images) {
+                image.getWidth();
+            }
+
+            Timer timer = Timer.timer();
+            for (FImage image : images) {
+                blur.processImage(image);
+            }
+            print(source, "-", "-", images.size(), timer.duration(), "-");
+
+            for (int[] setting : settings) {
+                int lookahead = setting[0];
+                int threads = setting[1];
+                timer = Timer.timer();
+                PrefetchingIterator<FImage> iterator = new PrefetchingIterator<FImage>(images, lookahead, threads);
+                while (iterator.hasNext()) {
+                    blur.processImage(iterator.next());
+                }
+                print(source, String.valueOf(lookahead), String.valueOf(threads), images.size(), timer.duration(),
+                        String.valueOf(iterator.getWaitNanos() / 1000000));
+            }
+        }
+    }
+
+    private static void print(String source, String lookahead, String threads, int images, long ms, String waiting) {
+        System.out.println(source + "\t" + lookahead + "\t" + threads + "\t" + images * 1000.0 / Math.max(1, ms) + "\t"
+                + waiting);
+    }
+
+    private static File syntheticImages() throws IOException {
+        File directory = new File(System.getProperty("java.io.tmpdir"), "prefetch-benchmark");
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        Random random = new Random(42);
+        for (int i = 0; i < IMAGES; i++) {
+            File file = new File(directory, String.format("image%03d.jpg", i));
+            if (!file.exists()) {
+                ImageUtilities.write(FHSegmentationBenchmark.syntheticImage(640, 480, random).flatten(), "jpg", file);
+            }
+        }
+        return directory;
+    }
+
+    private static File zip(File directory) throws IOException {
+        File zip = new File(directory.getParentFile(), directory.getName() + ".zip");
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip));
+        try {
+            byte[] buffer = new byte[1 << 16];
+            File[] files = directory.listFiles();
+            Arrays.sort(files);
+            for (File file : files) {
+                out.putNextEntry(new ZipEntry(file.getName()));
+                InputStream in = new FileInputStream(file);
+                try {
+                    int n;
+                    while ((n = in.read(buffer)) > 0) {
+                        out.write(buffer, 0, n);
+                    }
+                } finally {
+                    in.close();
+                }
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+        return zip;
+    }
+}
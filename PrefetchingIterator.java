@@ -0,0 +1,155 @@
+import org.openimaj.data.dataset.ListDataset;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+//Iterates over a ListDataset (e.g. a VFSListDataset of images in a directory or a zip: archive, as in Chapter6) in
+//order, while a pool of worker threads reads and decodes the instances coming next, so the consumer is not left
+//waiting on the disk or the decoder, and the disk is not left idle while the consumer works:
+//  - getInstance is called for at most lookahead instances ahead of the consumer; each is handed to a worker as soon
+//    as the consumer takes the instance lookahead places before it, and waited for only when the consumer reaches it
+//  - so no more than lookahead decoded instances are held at any time (plus the one the consumer has), however much
+//    faster the workers are than the consumer: a full window stops the reading until the consumer catches up
+//The workers are daemon threads belonging to the iterator; they are stopped when the last instance has been taken, or
+//by close() when iteration ends early, so a loop that may break or throw should close the iterator in a finally:
+//  PrefetchingIterator<FImage> images = new PrefetchingIterator<FImage>(dataset);
+//  try { while (images.hasNext()) { ... images.next() ... } } finally { images.close(); }
+//An iterator that is dropped without being closed still lets its workers die once they have been idle for KEEP_ALIVE_MS.
+//An exception thrown by getInstance (an unreadable file) is thrown by next() when the consumer reaches that instance.
+//Not thread safe (one consumer).
+//PrefetchBenchmark compares its throughput with plain iteration
+public class PrefetchingIterator<T> implements Iterator<T>, Closeable {
+
+    public static final int DEFAULT_LOOKAHEAD = 16;
+    //How long a worker waits idle for more work before it ends
+    public static final long KEEP_ALIVE_MS = 1000;
+
+    private final ListDataset<T> dataset;
+    private final ThreadPoolExecutor workers;
+    //window[i % lookahead]: instance i, for the next lookahead instances
+    private final Future<T>[] window;
+    private final int size;
+    private int next;
+    private int submitted;
+    private long waitNanos;
+
+    //Prefetches DEFAULT_LOOKAHEAD instances with one worker per core
+    public PrefetchingIterator(ListDataset<T> dataset) {
+        this(dataset, DEFAULT_LOOKAHEAD, Runtime.getRuntime().availableProcessors());
+    }
+
+    //a generic array cannot be created, so the window is made raw and cast
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public PrefetchingIterator(ListDataset<T> dataset, int lookahead, int threads) {
+        if (lookahead <= 0 || threads <= 0) {
+            throw new IllegalArgumentException("lookahead and threads must be positive");
+        }
+        this.dataset = dataset;
+        this.size = dataset.size();
+        window = new Future[lookahead];
+        //more workers than the window would have nothing to do
+        int nThreads = Math.min(threads, lookahead);
+        workers = new ThreadPoolExecutor(nThreads, nThreads, KEEP_ALIVE_MS, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "prefetch");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        workers.allowCoreThreadTimeOut(true);
+        while (submitted < Math.min(size, lookahead)) {
+            submit();
+        }
+        if (size == 0) {
+            workers.shutdown();
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return next < size;
+    }
+
+    @Override
+    public T next() {
+        if (next >= size) {
+            throw new NoSuchElementException();
+        }
+        int index = next;
+        Future<T> future = window[index % window.length];
+        window[index % window.length] = null;
+        T instance;
+        long start = System.nanoTime();
+        try {
+            instance = future.get();
+        } catch (InterruptedException e) {
+            close();
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for instance " + index, e);
+        } catch (ExecutionException e) {
+            close();
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException("Cannot read instance " + index, cause);
+        } finally {
+            waitNanos += System.nanoTime() - start;
+        }
+        next++;
+        //the slot is free again: start on the instance lookahead places on
+        if (submitted < size) {
+            submit();
+        } else if (next == size) {
+            workers.shutdown();
+        }
+        return instance;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    //How long next() has waited for instances that were not ready yet; if this is a large part of the time spent
+    //iterating, more workers (or a longer lookahead, for instances that vary in cost) should help
+    public long getWaitNanos() {
+        return waitNanos;
+    }
+
+    //Stops the workers and drops the instances read ahead
+    @Override
+    public void close() {
+        for (int i = 0; i < window.length; i++) {
+            if (window[i] != null) {
+                window[i].cancel(true);
+                window[i] = null;
+            }
+        }
+        next = submitted = size;
+        workers.shutdownNow();
+    }
+
+    private void submit() {
+        final int index = submitted++;
+        window[index % window.length] = workers.submit(new Callable<T>() {
+            @Override
+            public T call() {
+                return dataset.getInstance(index);
+            }
+        });
+    }
+}
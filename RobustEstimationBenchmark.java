@@ -0,0 +1,88 @@
+import org.openimaj.math.geometry.point.Point2d;
+import org.openimaj.math.geometry.point.Point2dImpl;
+import org.openimaj.math.geometry.transforms.HomographyModel;
+import org.openimaj.math.geometry.transforms.HomographyRefinement;
+import org.openimaj.math.geometry.transforms.estimation.RobustHomographyEstimator;
+import org.openimaj.math.model.fit.RANSAC;
+import org.openimaj.math.model.fit.RobustModelFitting;
+import org.openimaj.time.Timer;
+import org.openimaj.util.pair.Pair;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+//Fits a homography to synthetic matches (2000 unless another number is given as the first argument; half of them
+//outliers, the rest with half a pixel of noise) with RobustHomographyEstimator as Chapter5 sets it up, and with
+//ParallelRobustEstimator (RANSAC and LMedS), and reports the time, number of hypotheses tried and how many of the
+//true inliers each finds
+public class RobustEstimationBenchmark {
+
+    private static final int RUNS = 10;
+    private static final double[] HOMOGRAPHY = {1.1, 0.05, 20, -0.03, 0.95, 10, 0.0002, -0.0001, 1};
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        Random random = new Random(42);
+        List<Pair<Point2d>> matches = new ArrayList<Pair<Point2d>>();
+        Set<Pair<Point2d>> trueInliers = new HashSet<Pair<Point2d>>();
+        for (int i = 0; i < n; i++) {
+            float x = random.nextFloat() * 640;
+            float y = random.nextFloat() * 480;
+            float u = random.nextFloat() * 640;
+            float v = random.nextFloat() * 480;
+            boolean inlier = i % 2 == 0;
+            if (inlier) {
+                double w = HOMOGRAPHY[6] * x + HOMOGRAPHY[7] * y + HOMOGRAPHY[8];
+                u = (float) ((HOMOGRAPHY[0] * x + HOMOGRAPHY[1] * y + HOMOGRAPHY[2]) / w + random.nextGaussian() * 0.5);
+                v = (float) ((HOMOGRAPHY[3] * x + HOMOGRAPHY[4] * y + HOMOGRAPHY[5]) / w + random.nextGaussian() * 0.5);
+            }
+            Pair<Point2d> match = new Pair<Point2d>(new Point2dImpl(x, y), new Point2dImpl(u, v));
+            matches.add(match);
+            if (inlier) {
+                trueInliers.add(match);
+            }
+        }
+
+        System.out.println("estimator\tms per fit\thypotheses\ttrue inliers found\tfalse inliers");
+        run("RobustHomographyEstimator", new RobustHomographyEstimator(0.5, 1500,
+                new RANSAC.PercentageInliersStoppingCondition(0.5), HomographyRefinement.NONE), null, matches,
+                trueInliers);
+
+        ParallelRobustEstimator<HomographyModel> ransac = ParallelRobustEstimator.ransac(
+                ParallelRobustEstimator.Geometry.HOMOGRAPHY, new HomographyModel(), 0.5, 1500, 0.99);
+        ransac.setStopInlierFraction(0.5);
+        run("ParallelRobustEstimator RANSAC", ransac, ransac, matches, trueInliers);
+
+        ParallelRobustEstimator<HomographyModel> lmeds = ParallelRobustEstimator.lmeds(
+                ParallelRobustEstimator.Geometry.HOMOGRAPHY, new HomographyModel(), 0.5, 1500, 0.99);
+        run("ParallelRobustEstimator LMedS", lmeds, lmeds, matches, trueInliers);
+    }
+
+    private static void run(String name, RobustModelFitting<Point2d, Point2d, ?> fitter,
+                            ParallelRobustEstimator<?> parallel, List<Pair<Point2d>> matches,
+                            Set<Pair<Point2d>> trueInliers) {
+        //once to warm up
+        fitter.fitData(matches);
+        Timer timer = Timer.timer();
+        for (int run = 0; run < RUNS; run++) {
+            fitter.fitData(matches);
+        }
+        double time = (double) timer.duration() / RUNS;
+
+        int found = 0;
+        int wrong = 0;
+        for (Object inlier : fitter.getInliers()) {
+            if (trueInliers.contains(inlier)) {
+                found++;
+            } else {
+                wrong++;
+            }
+        }
+        String hypotheses = parallel == null ? "-" : String.valueOf(parallel.getIterations());
+        System.out.println(name + "\t" + time + "\t" + hypotheses + "\t" + found + "/" + trueInliers.size() + "\t"
+                + wrong);
+    }
+}
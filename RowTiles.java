@@ -0,0 +1,49 @@
+import org.openimaj.util.function.Operation;
+import org.openimaj.util.parallel.Parallel;
+
+//Splits the rows of an image into horizontal tiles (bands of consecutive rows) and hands each tile to a task,
+//either on the calling thread or across all cores using the Parallel class (as in Chapter14)
+public final class RowTiles {
+
+    //Number of rows per tile: large enough to amortise the scheduling cost, small enough to balance the load
+    public static final int DEFAULT_TILE_ROWS = 64;
+
+    //The work done on one tile: rows y0 (inclusive) to y1 (exclusive)
+    public interface Task {
+        void process(int y0, int y1);
+    }
+
+    private RowTiles() {
+    }
+
+    //Runs the task over all rows on the calling thread
+    public static void run(int height, Task task) {
+        task.process(0, height);
+    }
+
+    //Runs the task over all rows with the default tile height, one tile per parallel operation
+    public static void runParallel(int height, Task task) {
+        runParallel(height, DEFAULT_TILE_ROWS, task);
+    }
+
+    //Runs the task over all rows, tileRows rows at a time, spreading the tiles across the available threads
+    public static void runParallel(final int height, final int tileRows, final Task task) {
+        if (tileRows <= 0) {
+            throw new IllegalArgumentException("tileRows must be positive");
+        }
+
+        int nTiles = (height + tileRows - 1) / tileRows;
+        if (nTiles <= 1) {
+            run(height, task);
+            return;
+        }
+
+        Parallel.forIndex(0, nTiles, 1, new Operation<Integer>() {
+            @Override
+            public void perform(Integer tile) {
+                int y0 = tile * tileRows;
+                task.process(y0, Math.min(height, y0 + tileRows));
+            }
+        });
+    }
+}
@@ -0,0 +1,134 @@
+import org.openimaj.feature.local.list.LocalFeatureList;
+import org.openimaj.feature.local.matcher.consistent.ConsistentLocalFeatureMatcher2d;
+import org.openimaj.image.FImage;
+import org.openimaj.image.ImageUtilities;
+import org.openimaj.image.feature.local.engine.DoGSIFTEngine;
+import org.openimaj.image.feature.local.keypoints.Keypoint;
+import org.openimaj.math.geometry.transforms.HomographyRefinement;
+import org.openimaj.math.geometry.transforms.estimation.RobustHomographyEstimator;
+import org.openimaj.math.model.fit.RANSAC;
+import org.openimaj.time.Timer;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+//Extracts DoG-SIFT keypoints from synthetic 640x480 images (16 unless another number is given as the first argument)
+//with DoGSIFTEngine, with ParallelDoGSIFTEngine one image at a time, and with ParallelDoGSIFTEngine's batch
+//findFeatures, and reports the images and keypoints per second of each.
+//With -check, instead compares the keypoints of DoGSIFTEngine and ParallelDoGSIFTEngine on the tutorial images of
+//Chapter5: how many there are, the fraction of each engine's keypoints that the other has within 1.5 pixels and 25%
+//of the scale, and how many query-target matches each gives after fitting a homography with RANSAC (as
+//VisualWordIndex verifies its results). The engines are not expected to agree exactly; this shows how far apart they are
+public class SIFTBenchmark {
+
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+    private static final String QUERY = "http://static.openimaj.org/media/tutorial/query.jpg";
+    private static final String TARGET = "http://static.openimaj.org/media/tutorial/target.jpg";
+    //Keypoints of the two engines are taken as the same within this distance, in pixels, and ratio of scales
+    private static final float SAME_DISTANCE = 1.5f;
+    private static final float SAME_SCALE = 0.25f;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 1 && args[0].equals("-check")) {
+            check();
+            return;
+        }
+
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        Random random = new Random(42);
+        List<FImage> images = new ArrayList<FImage>();
+        for (int i = 0; i < n; i++) {
+            images.add(FHSegmentationBenchmark.syntheticImage(WIDTH, HEIGHT, random).flatten());
+        }
+
+        System.out.println("engine\timages/s\tkeypoints/s");
+
+        DoGSIFTEngine engine = new DoGSIFTEngine();
+        engine.findFeatures(images.get(0));
+        long keypoints = 0;
+        Timer timer = Timer.timer();
+        for (FImage image : images) {
+            keypoints += engine.findFeatures(image).size();
+        }
+        long time = timer.duration();
+        System.out.println("DoGSIFTEngine\t" + (n * 1000.0 / time) + "\t" + (keypoints * 1000.0 / time));
+
+        ParallelDoGSIFTEngine parallel = new ParallelDoGSIFTEngine();
+        //the first image sizes a pooled pyramid
+        parallel.findFeatures(images.get(0));
+        parallel.resetThroughput();
+        for (FImage image : images) {
+            parallel.findFeatures(image);
+        }
+        ParallelDoGSIFTEngine.Throughput single = parallel.getThroughput();
+        System.out.println("ParallelDoGSIFTEngine, one image at a time\t" + single.imagesPerSecond() + "\t"
+                + single.keypointsPerSecond());
+
+        parallel.findFeatures(images);
+        parallel.resetThroughput();
+        List<LocalFeatureList<Keypoint>> batch = parallel.findFeatures(images);
+        ParallelDoGSIFTEngine.Throughput batched = parallel.getThroughput();
+        System.out.println("ParallelDoGSIFTEngine, batch\t" + batched.imagesPerSecond() + "\t"
+                + batched.keypointsPerSecond());
+        System.out.println("Keypoints per image (batch): " + (double) batched.keypoints / batch.size());
+    }
+
+    private static void check() throws IOException {
+        FImage query = ImageUtilities.readMBF(new URL(QUERY)).flatten();
+        FImage target = ImageUtilities.readMBF(new URL(TARGET)).flatten();
+        DoGSIFTEngine engine = new DoGSIFTEngine();
+        ParallelDoGSIFTEngine parallel = new ParallelDoGSIFTEngine();
+        LocalFeatureList<Keypoint> queryKeypoints = engine.findFeatures(query);
+        LocalFeatureList<Keypoint> targetKeypoints = engine.findFeatures(target);
+        LocalFeatureList<Keypoint> parallelQueryKeypoints = parallel.findFeatures(query);
+        LocalFeatureList<Keypoint> parallelTargetKeypoints = parallel.findFeatures(target);
+
+        System.out.println("image\tDoGSIFTEngine keypoints\tParallelDoGSIFTEngine keypoints"
+                + "\tDoGSIFTEngine's found by ParallelDoGSIFTEngine\tParallelDoGSIFTEngine's found by DoGSIFTEngine");
+        System.out.println("query\t" + queryKeypoints.size() + "\t" + parallelQueryKeypoints.size() + "\t"
+                + overlap(queryKeypoints, parallelQueryKeypoints) + "\t"
+                + overlap(parallelQueryKeypoints, queryKeypoints));
+        System.out.println("target\t" + targetKeypoints.size() + "\t" + parallelTargetKeypoints.size() + "\t"
+                + overlap(targetKeypoints, parallelTargetKeypoints) + "\t"
+                + overlap(parallelTargetKeypoints, targetKeypoints));
+
+        System.out.println("engine\tmatches after RANSAC");
+        System.out.println("DoGSIFTEngine\t" + consistentMatches(queryKeypoints, targetKeypoints));
+        System.out.println("ParallelDoGSIFTEngine\t"
+                + consistentMatches(parallelQueryKeypoints, parallelTargetKeypoints));
+    }
+
+    //The fraction of the keypoints that have one in others within SAME_DISTANCE pixels and SAME_SCALE of their scale
+    private static double overlap(List<Keypoint> keypoints, List<Keypoint> others) {
+        if (keypoints.isEmpty()) {
+            return 0;
+        }
+        int found = 0;
+        for (Keypoint keypoint : keypoints) {
+            for (Keypoint other : others) {
+                float dx = keypoint.x - other.x;
+                float dy = keypoint.y - other.y;
+                if (dx * dx + dy * dy <= SAME_DISTANCE * SAME_DISTANCE
+                        && Math.abs(other.scale - keypoint.scale) <= SAME_SCALE * keypoint.scale) {
+                    found++;
+                    break;
+                }
+            }
+        }
+        return (double) found / keypoints.size();
+    }
+
+    //The number of query-target matches consistent with a homography fitted by RANSAC
+    private static int consistentMatches(List<Keypoint> query, List<Keypoint> target) {
+        RobustHomographyEstimator estimator = new RobustHomographyEstimator(0.5, 1500,
+                new RANSAC.PercentageInliersStoppingCondition(0.5), HomographyRefinement.NONE);
+        ConsistentLocalFeatureMatcher2d<Keypoint> matcher = new ConsistentLocalFeatureMatcher2d<Keypoint>(
+                new ForestKeypointMatcher<Keypoint>(), estimator);
+        matcher.setModelFeatures(query);
+        return matcher.findMatches(target) ? matcher.getMatches().size() : 0;
+    }
+}
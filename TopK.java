@@ -0,0 +1,131 @@
+//The k lowest-scoring ids offered to it, kept in a fixed-size max-heap of primitive arrays (no boxing, nothing
+//allocated after construction). Among equal scores the lower id wins, so the result does not depend on the order
+//ids were offered in. Not thread safe
+public class TopK {
+
+    private final double[] scores;
+    private final long[] ids;
+    private int size;
+
+    public TopK(int k) {
+        if (k <= 0) {
+            throw new IllegalArgumentException("k must be positive");
+        }
+        scores = new double[k];
+        ids = new long[k];
+    }
+
+    public int capacity() {
+        return scores.length;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    //The score an id has to beat to get in (infinity until k ids are held)
+    public double worstScore() {
+        return size < scores.length ? Double.POSITIVE_INFINITY : scores[0];
+    }
+
+    //Keeps the id if it is among the k best so far; returns whether it was kept
+    public boolean offer(double score, long id) {
+        if (size < scores.length) {
+            //sift up from the end
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >> 1;
+                if (!worse(score, id, scores[parent], ids[parent])) {
+                    break;
+                }
+                scores[i] = scores[parent];
+                ids[i] = ids[parent];
+                i = parent;
+            }
+            scores[i] = score;
+            ids[i] = id;
+            return true;
+        }
+        if (!worse(scores[0], ids[0], score, id)) {
+            return false;
+        }
+        siftDown(scores, ids, size, score, id);
+        return true;
+    }
+
+    //Offers every id held by other
+    public void addAll(TopK other) {
+        for (int i = 0; i < other.size; i++) {
+            offer(other.scores[i], other.ids[i]);
+        }
+    }
+
+    //Orders the held entries worst first, in place (a valid heap still, so offer can go on), so that score(size() - 1)
+    //and id(size() - 1) are the best and score(0) and id(0) the worst
+    public void sortWorstFirst() {
+        sorted(scores, ids);
+        for (int i = 0, j = size - 1; i < j; i++, j--) {
+            double score = scores[i];
+            scores[i] = scores[j];
+            scores[j] = score;
+            long id = ids[i];
+            ids[i] = ids[j];
+            ids[j] = id;
+        }
+    }
+
+    //The score and id of an entry: in heap order, unless sortWorstFirst has been called since the last offer
+    public double score(int i) {
+        return scores[i];
+    }
+
+    public long id(int i) {
+        return ids[i];
+    }
+
+    //Copies the held scores and ids into the arrays, best first, and returns how many there are
+    public int sorted(double[] scoresOut, long[] idsOut) {
+        int n = size;
+        System.arraycopy(scores, 0, scoresOut, 0, n);
+        System.arraycopy(ids, 0, idsOut, 0, n);
+        //heap sort: the worst is repeatedly moved to the end of the shrinking heap
+        for (int end = n - 1; end > 0; end--) {
+            double score = scoresOut[end];
+            long id = idsOut[end];
+            scoresOut[end] = scoresOut[0];
+            idsOut[end] = idsOut[0];
+            siftDown(scoresOut, idsOut, end, score, id);
+        }
+        return n;
+    }
+
+    //Puts (score, id) at the root of the heap of the first n entries and moves it down to its place
+    private static void siftDown(double[] scores, long[] ids, int n, double score, long id) {
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= n) {
+                break;
+            }
+            if (child + 1 < n && worse(scores[child + 1], ids[child + 1], scores[child], ids[child])) {
+                child++;
+            }
+            if (!worse(scores[child], ids[child], score, id)) {
+                break;
+            }
+            scores[i] = scores[child];
+            ids[i] = ids[child];
+            i = child;
+        }
+        scores[i] = score;
+        ids[i] = id;
+    }
+
+    private static boolean worse(double scoreA, long idA, double scoreB, long idB) {
+        return scoreA > scoreB || (scoreA == scoreB && idA > idB);
+    }
+}
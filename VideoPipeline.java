@@ -0,0 +1,332 @@
+import org.openimaj.image.Image;
+import org.openimaj.util.function.Function;
+import org.openimaj.util.function.Operation;
+import org.openimaj.video.Video;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+//Runs the frames of a Video (a XuggleVideo, or VideoPipelineBenchmark.syntheticVideo) through a chain of processing
+//stages and into a sink, with decoding, each stage and the sink on threads of their own, instead of one frame at a
+//time on one thread as in Chapter7's for (MBFImage frame : video) loop. While the sink shows frame n, the stages work
+//on frames n+1, n+2... and the decoder reads the next one, so a frame takes as long as the slowest stage, not all of
+//them together:
+//  VideoPipeline<MBFImage> pipeline = new VideoPipeline<MBFImage>(video, 4, VideoPipeline.Backpressure.BLOCK);
+//  pipeline.addStage("canny", cannyFunction).addStage("compass", compassFunction);
+//  pipeline.run(sink);
+//Consecutive threads are connected by bounded FIFO ring buffers (ArrayBlockingQueue) of capacity frames, so frames
+//reach the sink in the order they were decoded. When a buffer is full, BLOCK makes the thread filling it wait (every
+//frame is processed, at the speed of the slowest stage), and DROP_OLDEST throws away the oldest frame waiting in it
+//instead (for live sources, where a late frame is worth less than the newest one), counted by getDropped.
+//The decoder is given a copy of each frame, since a video may reuse its frame for the next one. A stage may change
+//the frame it is given and return it, or return another image; one that returns null drops the frame.
+//The time each thread spends on each frame, and the time from decoding to the end of the sink, are recorded in
+//LatencyHistograms. If a stage or the sink throws, the pipeline is stopped and run throws the exception
+public class VideoPipeline<T extends Image<?, T>> {
+
+    public enum Backpressure {
+        BLOCK, DROP_OLDEST
+    }
+
+    public static final int DEFAULT_CAPACITY = 8;
+    public static final String DECODE = "decode";
+    public static final String SINK = "sink";
+
+    private final Video<T> video;
+    private final int capacity;
+    private final Backpressure backpressure;
+    //decode, the processing stages in order, sink
+    private final List<Stage<T>> stages = new ArrayList<Stage<T>>();
+    private final LatencyHistogram endToEnd = new LatencyHistogram();
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    private final List<Thread> threads = new ArrayList<Thread>();
+    private volatile boolean stopped;
+    private boolean started;
+
+    public VideoPipeline(Video<T> video) {
+        this(video, DEFAULT_CAPACITY, Backpressure.BLOCK);
+    }
+
+    public VideoPipeline(Video<T> video, int capacity, Backpressure backpressure) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.video = video;
+        this.capacity = capacity;
+        this.backpressure = backpressure;
+        stages.add(new Stage<T>(DECODE, null));
+        stages.add(new Stage<T>(SINK, null));
+    }
+
+    //Adds a stage after the ones already added; returns this pipeline
+    public synchronized VideoPipeline<T> addStage(String name, Function<T, T> stage) {
+        if (started) {
+            throw new IllegalStateException("Stages cannot be added once the pipeline has been run");
+        }
+        for (Stage<T> existing : stages) {
+            if (existing.name.equals(name)) {
+                throw new IllegalArgumentException("There is already a stage called " + name);
+            }
+        }
+        stages.add(stages.size() - 1, new Stage<T>(name, stage));
+        return this;
+    }
+
+    //Decodes every frame of the video and passes it through the stages to the sink, returning when the sink has had
+    //the last frame (or stop() has been called and the frames already decoded have reached the sink). A pipeline can
+    //only be run once
+    public void run(final Operation<T> sink) throws InterruptedException {
+        synchronized (this) {
+            if (started) {
+                throw new IllegalStateException("A VideoPipeline can only be run once");
+            }
+            started = true;
+            for (int i = 1; i < stages.size(); i++) {
+                stages.get(i).input = new ArrayBlockingQueue<Frame<T>>(capacity);
+            }
+        }
+
+        threads.add(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                decode();
+            }
+        }, "video-pipeline-" + DECODE));
+        for (int i = 1; i < stages.size(); i++) {
+            final Stage<T> stage = stages.get(i);
+            final Stage<T> next = i + 1 < stages.size() ? stages.get(i + 1) : null;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    process(stage, next, sink);
+                }
+            }, "video-pipeline-" + stage.name));
+        }
+
+        for (Thread thread : threads) {
+            thread.setDaemon(true);
+            thread.start();
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            abort(e);
+            throw e;
+        }
+        Throwable cause = failure.get();
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        if (cause != null) {
+            throw new RuntimeException(cause);
+        }
+    }
+
+    //Stops decoding; the frames already decoded still go through to the sink. Can be called from any thread,
+    //including a stage or the sink
+    public void stop() {
+        stopped = true;
+    }
+
+    //decode, the names of the stages in the order they were added, sink
+    public synchronized List<String> getStageNames() {
+        List<String> names = new ArrayList<String>();
+        for (Stage<T> stage : stages) {
+            names.add(stage.name);
+        }
+        return Collections.unmodifiableList(names);
+    }
+
+    //The time taken by the named stage (or decode, or sink) on each frame
+    public LatencyHistogram getLatency(String stage) {
+        return stage(stage).latency;
+    }
+
+    //Frames thrown away by DROP_OLDEST while waiting for the named stage (or the sink)
+    public long getDropped(String stage) {
+        return stage(stage).dropped.get();
+    }
+
+    //The time from the start of decoding each frame to the end of the sink
+    public LatencyHistogram getEndToEndLatency() {
+        return endToEnd;
+    }
+
+    private synchronized Stage<T> stage(String name) {
+        for (Stage<T> stage : stages) {
+            if (stage.name.equals(name)) {
+                return stage;
+            }
+        }
+        throw new IllegalArgumentException("There is no stage called " + name);
+    }
+
+    private void decode() {
+        Stage<T> decode = stages.get(0);
+        Stage<T> next = stages.get(1);
+        try {
+            while (!stopped && video.hasNextFrame()) {
+                long start = System.nanoTime();
+                T image = video.getNextFrame();
+                if (image == null) {
+                    break;
+                }
+                Frame<T> frame = new Frame<T>(start, image.clone());
+                decode.latency.record(System.nanoTime() - start);
+                pass(frame, next);
+            }
+            pass(new Frame<T>(0, null), next);
+        } catch (Throwable e) {
+            abort(e);
+        }
+    }
+
+    private void process(Stage<T> stage, Stage<T> next, Operation<T> sink) {
+        try {
+            while (true) {
+                Frame<T> frame = stage.input.take();
+                if (frame.image == null) {
+                    if (next != null) {
+                        pass(frame, next);
+                    }
+                    return;
+                }
+                long start = System.nanoTime();
+                if (next == null) {
+                    sink.perform(frame.image);
+                    long end = System.nanoTime();
+                    stage.latency.record(end - start);
+                    endToEnd.record(end - frame.decoded);
+                } else {
+                    frame.image = stage.function.apply(frame.image);
+                    stage.latency.record(System.nanoTime() - start);
+                    if (frame.image != null) {
+                        pass(frame, next);
+                    }
+                }
+            }
+        } catch (Throwable e) {
+            abort(e);
+        }
+    }
+
+    //Puts the frame in the next stage's buffer, waiting for room or dropping the oldest frame in it. The end marker
+    //always waits, so it is never dropped (and nothing comes after it to drop it)
+    private void pass(Frame<T> frame, Stage<T> next) throws InterruptedException {
+        if (backpressure == Backpressure.BLOCK || frame.image == null) {
+            next.input.put(frame);
+            return;
+        }
+        while (!next.input.offer(frame)) {
+            if (next.input.poll() != null) {
+                next.dropped.incrementAndGet();
+            }
+        }
+    }
+
+    //Keeps the first failure and interrupts every thread; the InterruptedExceptions that causes are not failures
+    private void abort(Throwable cause) {
+        stopped = true;
+        if (!(cause instanceof InterruptedException)) {
+            failure.compareAndSet(null, cause);
+        }
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+    }
+
+    //A frame on its way through the pipeline; the end marker has no image
+    private static final class Frame<T> {
+        //System.nanoTime() when its decoding started
+        private final long decoded;
+        private T image;
+
+        Frame(long decoded, T image) {
+            this.decoded = decoded;
+            this.image = image;
+        }
+    }
+
+    private static final class Stage<T> {
+        private final String name;
+        private final Function<T, T> function;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final AtomicLong dropped = new AtomicLong();
+        //null for decode
+        private BlockingQueue<Frame<T>> input;
+
+        Stage(String name, Function<T, T> function) {
+            this.name = name;
+            this.function = function;
+        }
+    }
+
+    //Counts of latencies in buckets of powers of two microseconds: bucket 0 is under 1us, bucket b is from
+    //2^(b-1)us up to 2^b us. Percentiles are given as the upper end of their bucket (so to within a factor of two)
+    public static final class LatencyHistogram {
+
+        private static final int BUCKETS = 40;
+
+        private final long[] buckets = new long[BUCKETS];
+        private long count;
+        private long totalNanos;
+        private long maxNanos;
+
+        synchronized void record(long nanos) {
+            long micros = Math.max(0, nanos) / 1000;
+            buckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros))]++;
+            count++;
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+        }
+
+        public synchronized long getCount() {
+            return count;
+        }
+
+        public synchronized double getMeanMillis() {
+            return count == 0 ? 0 : totalNanos / 1e6 / count;
+        }
+
+        public synchronized double getMaxMillis() {
+            return maxNanos / 1e6;
+        }
+
+        //The latency that a fraction p (0 to 1) of the frames took at most, in ms
+        public synchronized double getPercentileMillis(double p) {
+            if (p < 0 || p > 1) {
+                throw new IllegalArgumentException("p must be between 0 and 1");
+            }
+            long rank = Math.max(1, (long) Math.ceil(p * count));
+            long seen = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                seen += buckets[b];
+                if (seen >= rank) {
+                    return Math.min((1L << b) / 1000.0, getMaxMillis());
+                }
+            }
+            return getMaxMillis();
+        }
+
+        //The counts, bucket b counting the latencies below 2^b microseconds (and not below 2^(b-1))
+        public synchronized long[] getBuckets() {
+            return buckets.clone();
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format("%d frames, mean %.2f ms, p50 <= %.2f ms, p99 <= %.2f ms, max %.2f ms", count,
+                    getMeanMillis(), getPercentileMillis(0.5), getPercentileMillis(0.99), getMaxMillis());
+        }
+    }
+}
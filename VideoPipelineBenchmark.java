@@ -0,0 +1,157 @@
+import org.openimaj.image.FImage;
+import org.openimaj.image.MBFImage;
+import org.openimaj.time.Timer;
+import org.openimaj.util.function.Function;
+import org.openimaj.util.function.Operation;
+import org.openimaj.video.ArrayBackedVideo;
+import org.openimaj.video.Video;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+//Processes a synthetic video (see syntheticVideo) as Chapter7 does with its frames, blurring, subtracting a running
+//average background and finding Canny edges, then handing each frame to a sink standing in for the display: one frame
+//at a time on one thread, and through VideoPipeline with a few buffer capacities and both kinds of backpressure.
+//Reports frames per second and how many frames reached the sink, then each pipeline's latency histograms per stage
+public class VideoPipelineBenchmark {
+
+    private static final int FRAMES = 120;
+
+    public static void main(String[] args) throws InterruptedException {
+        Video<MBFImage> video = syntheticVideo(320, 240, FRAMES, 25, new Random(42));
+        final float[] shown = new float[1];
+        Operation<MBFImage> sink = new Operation<MBFImage>() {
+            @Override
+            public void perform(MBFImage frame) {
+                shown[0] += frame.getBand(0).pixels[frame.getHeight() / 2][frame.getWidth() / 2];
+            }
+        };
+
+        System.out.println("processing\tcapacity\tframes per second\tframes shown\tframes dropped");
+        Timer timer = Timer.timer();
+        Map<String, Function<MBFImage, MBFImage>> stages = stages();
+        int count = 0;
+        for (MBFImage frame : video) {
+            MBFImage image = frame.clone();
+            for (Function<MBFImage, MBFImage> stage : stages.values()) {
+                image = stage.apply(image);
+            }
+            sink.perform(image);
+            count++;
+        }
+        System.out.println("sequential\t-\t" + count * 1000.0 / Math.max(1, timer.duration()) + "\t" + count + "\t0");
+
+        Object[][] settings = {{1, VideoPipeline.Backpressure.BLOCK}, {8, VideoPipeline.Backpressure.BLOCK},
+                {2, VideoPipeline.Backpressure.DROP_OLDEST}};
+        StringBuilder latencies = new StringBuilder();
+        for (Object[] setting : settings) {
+            video.reset();
+            VideoPipeline<MBFImage> pipeline = new VideoPipeline<MBFImage>(video, (Integer) setting[0],
+                    (VideoPipeline.Backpressure) setting[1]);
+            for (Map.Entry<String, Function<MBFImage, MBFImage>> stage : stages().entrySet()) {
+                pipeline.addStage(stage.getKey(), stage.getValue());
+            }
+            timer = Timer.timer();
+            pipeline.run(sink);
+            long duration = timer.duration();
+
+            long reached = pipeline.getLatency(VideoPipeline.SINK).getCount();
+            long dropped = 0;
+            latencies.append(setting[1]).append(", capacity ").append(setting[0]).append('\n');
+            for (String name : pipeline.getStageNames()) {
+                dropped += pipeline.getDropped(name);
+                latencies.append('\t').append(name).append(":\t").append(pipeline.getLatency(name)).append('\n');
+            }
+            latencies.append("\tdecode to sink:\t").append(pipeline.getEndToEndLatency()).append('\n');
+            System.out.println("pipeline, " + setting[1] + "\t" + setting[0] + "\t" + reached * 1000.0
+                    / Math.max(1, duration) + "\t" + reached + "\t" + dropped);
+        }
+        System.out.println();
+        System.out.print(latencies);
+    }
+
+    //New instances of the stages, in order: they keep state from one frame to the next
+    private static Map<String, Function<MBFImage, MBFImage>> stages() {
+        Map<String, Function<MBFImage, MBFImage>> stages = new LinkedHashMap<String, Function<MBFImage, MBFImage>>();
+        final GaussianBlur blur = new GaussianBlur(2f);
+        stages.put("blur", new Function<MBFImage, MBFImage>() {
+            @Override
+            public MBFImage apply(MBFImage frame) {
+                return frame.processInplace(blur);
+            }
+        });
+        stages.put("background", new BackgroundSubtraction(0.05f));
+        final ParallelCannyEdgeDetector canny = new ParallelCannyEdgeDetector();
+        stages.put("canny", new Function<MBFImage, MBFImage>() {
+            @Override
+            public MBFImage apply(MBFImage frame) {
+                return frame.processInplace(canny);
+            }
+        });
+        return stages;
+    }
+
+    //A video held in memory, of frames frames of random rectangles (as FHSegmentationBenchmark.syntheticImage) with
+    //a few squares moving across them, so it can stand in for a XuggleVideo without codecs or a network.
+    //The video hands out the frames it holds, so changing one changes the video
+    static ArrayBackedVideo<MBFImage> syntheticVideo(int width, int height, int frames, double fps, Random random) {
+        MBFImage background = FHSegmentationBenchmark.syntheticImage(width, height, random);
+        int nSquares = 4;
+        int side = Math.max(1, Math.min(width, height) / 8);
+        int[][] squares = new int[nSquares][];
+        for (int s = 0; s < nSquares; s++) {
+            //x, y, dx, dy
+            squares[s] = new int[]{random.nextInt(width), random.nextInt(height), 1 + random.nextInt(4),
+                    1 + random.nextInt(4)};
+        }
+
+        MBFImage[] video = new MBFImage[frames];
+        for (int f = 0; f < frames; f++) {
+            MBFImage frame = background.clone();
+            for (int[] square : squares) {
+                int x0 = Math.abs((square[0] + f * square[2]) % (2 * width) - width);
+                int y0 = Math.abs((square[1] + f * square[3]) % (2 * height) - height);
+                for (int b = 0; b < frame.numBands(); b++) {
+                    float[][] pixels = frame.getBand(b).pixels;
+                    for (int y = y0; y < Math.min(height, y0 + side); y++) {
+                        Arrays.fill(pixels[y], x0, Math.min(width, x0 + side), 1f);
+                    }
+                }
+            }
+            video[f] = frame;
+        }
+        return new ArrayBackedVideo<MBFImage>(video, fps);
+    }
+
+    //Replaces each pixel by its distance from a running average of the frames so far
+    private static class BackgroundSubtraction implements Function<MBFImage, MBFImage> {
+
+        private final float rate;
+        private MBFImage background;
+
+        BackgroundSubtraction(float rate) {
+            this.rate = rate;
+        }
+
+        @Override
+        public MBFImage apply(MBFImage frame) {
+            if (background == null) {
+                background = frame.clone();
+            }
+            for (int b = 0; b < frame.numBands(); b++) {
+                FImage band = frame.getBand(b);
+                float[][] average = background.getBand(b).pixels;
+                for (int y = 0; y < band.getHeight(); y++) {
+                    float[] row = band.pixels[y];
+                    for (int x = 0; x < row.length; x++) {
+                        average[y][x] += rate * (row[x] - average[y][x]);
+                        row[x] = Math.abs(row[x] - average[y][x]);
+                    }
+                }
+            }
+            return frame;
+        }
+    }
+}
@@ -0,0 +1,478 @@
+import Jama.Matrix;
+import org.openimaj.feature.local.matcher.consistent.ConsistentLocalFeatureMatcher2d;
+import org.openimaj.image.feature.local.keypoints.Keypoint;
+import org.openimaj.math.geometry.transforms.HomographyRefinement;
+import org.openimaj.math.geometry.transforms.estimation.RobustHomographyEstimator;
+import org.openimaj.math.model.fit.RANSAC;
+import org.openimaj.util.function.Operation;
+import org.openimaj.util.pair.Pair;
+import org.openimaj.util.parallel.Parallel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+//Finds which images of a gallery contain a query image, as Chapter5 does for one target, but without matching the
+//query against every image (Sivic & Zisserman, "Video Google"; Philbin et al., "Object retrieval with large
+//vocabularies and fast spatial matching"):
+//  - every keypoint is quantised to its nearest visual word (a centroid of a vocabulary learned by k-means over
+//    sample descriptors, searched with a ByteKDForest), so an image becomes a bag of words
+//  - an inverted file keeps, for each word, the images it occurs in and how often; the ids are delta-coded and
+//    written with the counts as variable-length bytes, so a posting usually takes two bytes
+//  - a query only reads the postings of its own words and scores those images by tf-idf cosine similarity; the best
+//    candidates (DEFAULT_CANDIDATES unless asked otherwise) are then checked as in Chapter5, matching their keypoints
+//    with a ConsistentLocalFeatureMatcher2d and a RobustHomographyEstimator, and ranked by the number of inliers
+//Only the candidates' keypoints are ever matched, so the cost of a query grows with the length of the postings it
+//reads rather than with the number of images. Images can be added at any time (they get consecutive ids from 0);
+//queries may run on many threads at once, adding takes a lock that waits for them.
+//VisualWordIndexBenchmark measures query time and accuracy for growing galleries
+public class VisualWordIndex<T extends Keypoint> {
+
+    public static final int DEFAULT_CANDIDATES = 20;
+    //Vocabulary words compared when quantising a keypoint
+    public static final int DEFAULT_CHECKS = 64;
+
+    //The RobustHomographyEstimator settings used in Chapter5
+    private static final double VERIFY_THRESHOLD = 0.5;
+    private static final int VERIFY_ITERATIONS = 1500;
+    private static final double VERIFY_INLIER_FRACTION = 0.5;
+
+    private static final int CHUNK = 256;
+
+    private final ByteKDForest vocabulary;
+    private final int maxChecks;
+
+    //postings[word]: (id - previous id, count) pairs, each a variable-length int, in the first postingBytes[word] bytes
+    private final byte[][] postings;
+    private final int[] postingBytes;
+    private final int[] lastImage;
+    private final int[] documentFrequency;
+    private long totalPostingBytes;
+
+    private final List<List<T>> images = new ArrayList<List<T>>();
+    //Length of each image's tf-idf vector; the idf weights change with every image added, so they are worked out
+    //again by the first query after an add
+    private float[] norms = new float[0];
+    private boolean normsStale;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    //Each thread's working arrays for quantising and scoring
+    private final ThreadLocal<Scratch> scratches = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    private static final class Scratch {
+        final TopK nearest = new TopK(1);
+        final double[] distance = new double[1];
+        final long[] word = new long[1];
+        float[] scores = new float[0];
+        int[] touched = new int[0];
+    }
+
+    //An image found by a query
+    public static class Result<T extends Keypoint> {
+        public final int id;
+        //tf-idf cosine similarity with the query, from 0 to 1
+        public final double score;
+        //Matches consistent with the homography (0 if none could be fitted)
+        public final int inliers;
+        //Maps the image's coordinates to the query's (as the model in Chapter5), or null if it was not verified or
+        //no homography could be fitted
+        public final Matrix transform;
+        //(image keypoint, query keypoint) pairs
+        public final List<Pair<T>> matches;
+
+        Result(int id, double score, int inliers, Matrix transform, List<Pair<T>> matches) {
+            this.id = id;
+            this.score = score;
+            this.inliers = inliers;
+            this.transform = transform;
+            this.matches = matches;
+        }
+
+        @Override
+        public String toString() {
+            return id + "\t" + score + "\t" + inliers;
+        }
+    }
+
+    public VisualWordIndex(byte[][] vocabulary) {
+        this(vocabulary, DEFAULT_CHECKS);
+    }
+
+    public VisualWordIndex(byte[][] vocabulary, int maxChecks) {
+        if (vocabulary.length == 0) {
+            throw new IllegalArgumentException("The vocabulary is empty");
+        }
+        this.vocabulary = new ByteKDForest(vocabulary);
+        this.maxChecks = maxChecks;
+        postings = new byte[vocabulary.length][];
+        postingBytes = new int[vocabulary.length];
+        lastImage = new int[vocabulary.length];
+        Arrays.fill(lastImage, -1);
+        documentFrequency = new int[vocabulary.length];
+    }
+
+    //A vocabulary of the given number of words: k-means over the sample keypoints' descriptors, assigning each
+    //descriptor to its (approximately) nearest centroid with a ByteKDForest, for at most the given number of iterations
+    public static byte[][] learnVocabulary(List<? extends Keypoint> sample, int words, int iterations, long seed) {
+        final int n = sample.size();
+        if (words <= 0 || words > n) {
+            throw new IllegalArgumentException("Cannot learn " + words + " words from " + n + " descriptors");
+        }
+        final byte[][] descriptors = new byte[n][];
+        for (int i = 0; i < n; i++) {
+            descriptors[i] = sample.get(i).ivec;
+        }
+        int dims = descriptors[0].length;
+        Random random = new Random(seed);
+
+        //start from distinct random descriptors
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        byte[][] centroids = new byte[words][];
+        for (int w = 0; w < words; w++) {
+            int j = w + random.nextInt(n - w);
+            int swap = order[w];
+            order[w] = order[j];
+            order[j] = swap;
+            centroids[w] = descriptors[order[w]].clone();
+        }
+
+        final int[] assignment = new int[n];
+        Arrays.fill(assignment, -1);
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            final ByteKDForest forest = new ByteKDForest(centroids, ByteKDForest.DEFAULT_TREES,
+                    ByteKDForest.DEFAULT_LEAF_SIZE, seed + iteration);
+            final int[] changed = new int[1];
+            Parallel.forIndex(0, (n + CHUNK - 1) / CHUNK, 1, new Operation<Integer>() {
+                @Override
+                public void perform(Integer chunk) {
+                    TopK nearest = new TopK(1);
+                    double[] distance = new double[1];
+                    long[] word = new long[1];
+                    int moved = 0;
+                    for (int i = chunk * CHUNK; i < Math.min(n, (chunk + 1) * CHUNK); i++) {
+                        forest.search(descriptors[i], nearest, DEFAULT_CHECKS);
+                        nearest.sorted(distance, word);
+                        if (assignment[i] != (int) word[0]) {
+                            assignment[i] = (int) word[0];
+                            moved++;
+                        }
+                    }
+                    synchronized (changed) {
+                        changed[0] += moved;
+                    }
+                }
+            });
+            if (changed[0] == 0) {
+                break;
+            }
+
+            long[] sums = new long[words * dims];
+            int[] counts = new int[words];
+            for (int i = 0; i < n; i++) {
+                int offset = assignment[i] * dims;
+                for (int d = 0; d < dims; d++) {
+                    sums[offset + d] += descriptors[i][d];
+                }
+                counts[assignment[i]]++;
+            }
+            for (int w = 0; w < words; w++) {
+                if (counts[w] == 0) {
+                    //an empty cluster starts again from a random descriptor
+                    centroids[w] = descriptors[random.nextInt(n)].clone();
+                    continue;
+                }
+                for (int d = 0; d < dims; d++) {
+                    centroids[w][d] = (byte) Math.round((double) sums[w * dims + d] / counts[w]);
+                }
+            }
+        }
+        return centroids;
+    }
+
+    //Adds an image's keypoints to the index and returns its id
+    public int add(List<T> keypoints) {
+        int[] words = quantise(keypoints);
+        lock.writeLock().lock();
+        try {
+            int id = images.size();
+            images.add(new ArrayList<T>(keypoints));
+            for (int start = 0; start < words.length; ) {
+                int end = start + 1;
+                while (end < words.length && words[end] == words[start]) {
+                    end++;
+                }
+                int word = words[start];
+                append(word, id - lastImage[word]);
+                append(word, end - start);
+                lastImage[word] = id;
+                documentFrequency[word]++;
+                start = end;
+            }
+            normsStale = true;
+            return id;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return images.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int getVocabularySize() {
+        return postings.length;
+    }
+
+    //The size of the inverted file, in bytes
+    public long getPostingBytes() {
+        lock.readLock().lock();
+        try {
+            return totalPostingBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    //The images most likely to contain the query, best first, with DEFAULT_CANDIDATES of them verified
+    public List<Result<T>> query(List<T> query) {
+        return query(query, DEFAULT_CANDIDATES);
+    }
+
+    //The n images with the highest tf-idf scores, verified and ordered by number of inliers (then by score)
+    public List<Result<T>> query(List<T> query, int n) {
+        List<Result<T>> candidates = candidates(query, n);
+        List<List<T>> keypoints = new ArrayList<List<T>>();
+        lock.readLock().lock();
+        try {
+            for (Result<T> candidate : candidates) {
+                keypoints.add(images.get(candidate.id));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        //one candidate at a time: ForestKeypointMatcher already matches on all the cores
+        List<Result<T>> results = new ArrayList<Result<T>>();
+        for (int c = 0; c < candidates.size(); c++) {
+            results.add(verify(candidates.get(c), query, keypoints.get(c)));
+        }
+        Collections.sort(results, new Comparator<Result<T>>() {
+            @Override
+            public int compare(Result<T> a, Result<T> b) {
+                if (a.inliers != b.inliers) {
+                    return a.inliers > b.inliers ? -1 : 1;
+                }
+                return Double.compare(b.score, a.score);
+            }
+        });
+        return results;
+    }
+
+    //The n images with the highest tf-idf scores, best first, without geometric verification
+    public List<Result<T>> candidates(List<T> query, int n) {
+        if (n <= 0) {
+            throw new IllegalArgumentException("n must be positive");
+        }
+        int[] words = quantise(query);
+        lock.readLock().lock();
+        try {
+            if (normsStale) {
+                lock.readLock().unlock();
+                lock.writeLock().lock();
+                try {
+                    if (normsStale) {
+                        computeNorms();
+                    }
+                } finally {
+                    lock.readLock().lock();
+                    lock.writeLock().unlock();
+                }
+            }
+            return rank(words, n);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    //The nearest word of every keypoint, sorted
+    private int[] quantise(final List<T> keypoints) {
+        final int[] words = new int[keypoints.size()];
+        Parallel.forIndex(0, (words.length + CHUNK - 1) / CHUNK, 1, new Operation<Integer>() {
+            @Override
+            public void perform(Integer chunk) {
+                Scratch scratch = scratches.get();
+                for (int i = chunk * CHUNK; i < Math.min(words.length, (chunk + 1) * CHUNK); i++) {
+                    vocabulary.search(keypoints.get(i).ivec, scratch.nearest, maxChecks);
+                    scratch.nearest.sorted(scratch.distance, scratch.word);
+                    words[i] = (int) scratch.word[0];
+                }
+            }
+        });
+        Arrays.sort(words);
+        return words;
+    }
+
+    //Scores the images sharing words with the query; words holds the query's words, sorted
+    private List<Result<T>> rank(int[] words, int n) {
+        int nImages = images.size();
+        Scratch scratch = scratches.get();
+        if (scratch.scores.length < nImages) {
+            scratch.scores = new float[Math.max(nImages, 2 * scratch.scores.length)];
+            scratch.touched = new int[scratch.scores.length];
+        }
+        float[] scores = scratch.scores;
+        int[] touched = scratch.touched;
+        int nTouched = 0;
+
+        double queryNorm = 0;
+        for (int start = 0; start < words.length; ) {
+            int end = start + 1;
+            while (end < words.length && words[end] == words[start]) {
+                end++;
+            }
+            int word = words[start];
+            int count = end - start;
+            start = end;
+            if (documentFrequency[word] == 0 || documentFrequency[word] == nImages) {
+                //in no image, or in all of them (idf 0): says nothing
+                continue;
+            }
+            float idf = (float) Math.log((double) nImages / documentFrequency[word]);
+            queryNorm += (count * idf) * (count * idf);
+            float weight = count * idf * idf;
+
+            byte[] bytes = postings[word];
+            int id = -1;
+            for (int p = 0; p < postingBytes[word]; ) {
+                int delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = bytes[p++];
+                    delta |= (b & 0x7f) << shift;
+                    shift += 7;
+                } while (b < 0);
+                int tf = 0;
+                shift = 0;
+                do {
+                    b = bytes[p++];
+                    tf |= (b & 0x7f) << shift;
+                    shift += 7;
+                } while (b < 0);
+                id += delta;
+                if (scores[id] == 0) {
+                    touched[nTouched++] = id;
+                }
+                scores[id] += weight * tf;
+            }
+        }
+
+        TopK best = new TopK(n);
+        queryNorm = Math.sqrt(queryNorm);
+        for (int t = 0; t < nTouched; t++) {
+            int id = touched[t];
+            //TopK keeps the lowest scores
+            best.offer(-scores[id] / (norms[id] * queryNorm), id);
+            scores[id] = 0;
+        }
+        double[] bestScores = new double[best.size()];
+        long[] bestIds = new long[best.size()];
+        int found = best.sorted(bestScores, bestIds);
+        List<Result<T>> candidates = new ArrayList<Result<T>>(found);
+        for (int i = 0; i < found; i++) {
+            candidates.add(new Result<T>((int) bestIds[i], -bestScores[i], 0, null,
+                    Collections.<Pair<T>>emptyList()));
+        }
+        return candidates;
+    }
+
+    //Matches the candidate's keypoints against the query's and fits a homography to the matches, as in Chapter5
+    private Result<T> verify(Result<T> candidate, List<T> query, List<T> keypoints) {
+        RobustHomographyEstimator estimator = new RobustHomographyEstimator(VERIFY_THRESHOLD, VERIFY_ITERATIONS,
+                new RANSAC.PercentageInliersStoppingCondition(VERIFY_INLIER_FRACTION), HomographyRefinement.NONE);
+        ConsistentLocalFeatureMatcher2d<T> matcher = new ConsistentLocalFeatureMatcher2d<T>(
+                new ForestKeypointMatcher<T>(), estimator);
+        matcher.setModelFeatures(query);
+        if (!matcher.findMatches(keypoints)) {
+            return new Result<T>(candidate.id, candidate.score, 0, null, Collections.<Pair<T>>emptyList());
+        }
+        List<Pair<T>> matches = matcher.getMatches();
+        return new Result<T>(candidate.id, candidate.score, matches.size(), estimator.getModel().getTransform(),
+                matches);
+    }
+
+    //Works out the length of every image's tf-idf vector
+    private void computeNorms() {
+        int nImages = images.size();
+        double[] sums = new double[nImages];
+        for (int word = 0; word < postings.length; word++) {
+            if (documentFrequency[word] == 0) {
+                continue;
+            }
+            double idf = Math.log((double) nImages / documentFrequency[word]);
+            byte[] bytes = postings[word];
+            int id = -1;
+            for (int p = 0; p < postingBytes[word]; ) {
+                int delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = bytes[p++];
+                    delta |= (b & 0x7f) << shift;
+                    shift += 7;
+                } while (b < 0);
+                int tf = 0;
+                shift = 0;
+                do {
+                    b = bytes[p++];
+                    tf |= (b & 0x7f) << shift;
+                    shift += 7;
+                } while (b < 0);
+                id += delta;
+                sums[id] += (tf * idf) * (tf * idf);
+            }
+        }
+        norms = new float[nImages];
+        for (int id = 0; id < nImages; id++) {
+            norms[id] = (float) Math.sqrt(sums[id]);
+        }
+        normsStale = false;
+    }
+
+    //Writes the value to the word's postings, 7 bits a byte, lowest first, the top bit set on all but the last
+    private void append(int word, int value) {
+        byte[] bytes = postings[word];
+        if (bytes == null) {
+            bytes = postings[word] = new byte[8];
+        } else if (postingBytes[word] + 5 > bytes.length) {
+            bytes = postings[word] = Arrays.copyOf(bytes, 2 * bytes.length);
+        }
+        int before = postingBytes[word];
+        int p = before;
+        while ((value & ~0x7f) != 0) {
+            bytes[p++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        bytes[p++] = (byte) value;
+        postingBytes[word] = p;
+        totalPostingBytes += p - before;
+    }
+}
@@ -0,0 +1,118 @@
+import org.openimaj.image.feature.local.keypoints.Keypoint;
+import org.openimaj.time.Timer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+//Queries a VisualWordIndex with galleries of synthetic images of growing size (250 images, doubling up to 2000 unless
+//another largest size is given as the first argument). Each image has 200 keypoints, copies (with a little noise) of
+//descriptors drawn from a pool of 50000; a query is one of the images, scaled and shifted, with a third of its
+//keypoints missing, noisier descriptors and 60 keypoints of clutter. For each size it reports the time to find the
+//tf-idf candidates, the time of a whole query (candidates and verification), how often the right image came first,
+//and an estimate of matching the query against every image instead (the time per verified candidate times the number
+//of images)
+public class VisualWordIndexBenchmark {
+
+    private static final int KEYPOINTS = 200;
+    private static final int POOL = 50000;
+    private static final int DIMS = 128;
+    private static final int WORDS = 4096;
+    private static final int QUERIES = 20;
+
+    public static void main(String[] args) {
+        int largest = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        Random random = new Random(42);
+        byte[][] pool = new byte[POOL][DIMS];
+        for (byte[] descriptor : pool) {
+            for (int d = 0; d < DIMS; d++) {
+                //SIFT descriptors are mostly small values
+                descriptor[d] = (byte) (-128 + (int) (64 * random.nextFloat() * random.nextFloat()));
+            }
+        }
+
+        List<List<Keypoint>> gallery = new ArrayList<List<Keypoint>>();
+        for (int i = 0; i < largest; i++) {
+            List<Keypoint> keypoints = new ArrayList<Keypoint>();
+            for (int k = 0; k < KEYPOINTS; k++) {
+                keypoints.add(new Keypoint(random.nextFloat() * 640, random.nextFloat() * 480, 0, 2,
+                        noisy(pool[random.nextInt(POOL)], 2, random)));
+            }
+            gallery.add(keypoints);
+        }
+
+        List<Keypoint> sample = new ArrayList<Keypoint>();
+        for (int i = 0; i < 20 * WORDS; i++) {
+            sample.add(gallery.get(random.nextInt(largest)).get(random.nextInt(KEYPOINTS)));
+        }
+        Timer timer = Timer.timer();
+        VisualWordIndex<Keypoint> index = new VisualWordIndex<Keypoint>(
+                VisualWordIndex.learnVocabulary(sample, WORDS, 10, 1));
+        System.out.println("vocabulary of " + WORDS + " words learned in " + timer.duration() + "ms");
+
+        System.out.println("images\tms per add\tposting bytes\tms per candidates\tms per query\tright image first"
+                + "\test. ms to match all");
+        for (int size = Math.min(250, largest); size <= largest; size = size == largest ? largest + 1
+                : Math.min(2 * size, largest)) {
+            timer = Timer.timer();
+            int added = index.size();
+            while (index.size() < size) {
+                index.add(gallery.get(index.size()));
+            }
+            double addTime = (double) timer.duration() / Math.max(1, size - added);
+
+            List<List<Keypoint>> queries = new ArrayList<List<Keypoint>>();
+            int[] answers = new int[QUERIES];
+            for (int q = 0; q < QUERIES; q++) {
+                answers[q] = random.nextInt(size);
+                queries.add(query(gallery.get(answers[q]), pool, random));
+            }
+            //once to warm up (and to bring the tf-idf weights up to date)
+            index.query(queries.get(0));
+
+            timer = Timer.timer();
+            for (List<Keypoint> query : queries) {
+                index.candidates(query, VisualWordIndex.DEFAULT_CANDIDATES);
+            }
+            double candidateTime = (double) timer.duration() / QUERIES;
+
+            int right = 0;
+            timer = Timer.timer();
+            for (int q = 0; q < QUERIES; q++) {
+                List<VisualWordIndex.Result<Keypoint>> results = index.query(queries.get(q));
+                if (!results.isEmpty() && results.get(0).id == answers[q]) {
+                    right++;
+                }
+            }
+            double queryTime = (double) timer.duration() / QUERIES;
+            double allTime = (queryTime - candidateTime) / VisualWordIndex.DEFAULT_CANDIDATES * size;
+
+            System.out.println(size + "\t" + addTime + "\t" + index.getPostingBytes() + "\t" + candidateTime + "\t"
+                    + queryTime + "\t" + right + "/" + QUERIES + "\t" + allTime);
+        }
+    }
+
+    //The image's keypoints moved as if it were photographed again, with some missing and some clutter added
+    private static List<Keypoint> query(List<Keypoint> image, byte[][] pool, Random random) {
+        List<Keypoint> query = new ArrayList<Keypoint>();
+        for (Keypoint keypoint : image) {
+            if (random.nextInt(3) > 0) {
+                query.add(new Keypoint(0.8f * keypoint.x + 40, 0.8f * keypoint.y + 25, keypoint.ori,
+                        0.8f * keypoint.scale, noisy(keypoint.ivec, 3, random)));
+            }
+        }
+        for (int k = 0; k < 60; k++) {
+            query.add(new Keypoint(random.nextFloat() * 640, random.nextFloat() * 480, 0, 2,
+                    noisy(pool[random.nextInt(pool.length)], 2, random)));
+        }
+        return query;
+    }
+
+    private static byte[] noisy(byte[] descriptor, int noise, Random random) {
+        byte[] copy = new byte[descriptor.length];
+        for (int d = 0; d < copy.length; d++) {
+            copy[d] = (byte) Math.max(-128, Math.min(127, descriptor[d] + random.nextInt(2 * noise + 1) - noise));
+        }
+        return copy;
+    }
+}
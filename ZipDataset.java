@@ -0,0 +1,131 @@
+import org.openimaj.data.dataset.GroupedDataset;
+import org.openimaj.data.dataset.ListDataset;
+import org.openimaj.data.dataset.MapBackedDataset;
+import org.openimaj.io.InputStreamObjectReader;
+
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+//A ListDataset of the entries of a local zip file, read through a ZipIndex, in place of a VFSListDataset over a zip:
+//source: get(i) and getRandomInstance() read just that entry, from any number of threads at once.
+//grouped() gives a GroupedDataset with one group per top-level directory of the archive (files at the top level are
+//left out), as VFSGroupDataset does, e.g. for the faces of Chapter13:
+//  ZipDataset.grouped(ZipIndex.open(new File("att_faces.zip")), ImageUtilities.FIMAGE_READER)
+//Entries are in name order. An entry that cannot be read or decoded throws a RuntimeException, as in VFSListDataset
+public class ZipDataset<T> extends AbstractList<T> implements ListDataset<T> {
+
+    private final ZipIndex index;
+    private final InputStreamObjectReader<T> reader;
+    //The index's entries in this dataset
+    private final int[] entries;
+    private final Random random = new Random();
+
+    //Every entry in the archive
+    public ZipDataset(ZipIndex index, InputStreamObjectReader<T> reader) {
+        this(index, reader, sortedByName(index, allEntries(index)));
+    }
+
+    private ZipDataset(ZipIndex index, InputStreamObjectReader<T> reader, int[] entries) {
+        this.index = index;
+        this.reader = reader;
+        this.entries = entries;
+    }
+
+    //One ZipDataset per top-level directory, in name order
+    public static <T> GroupedDataset<String, ListDataset<T>, T> grouped(ZipIndex index,
+                                                                       InputStreamObjectReader<T> reader) {
+        Map<String, List<Integer>> directories = new TreeMap<String, List<Integer>>();
+        for (int entry = 0; entry < index.size(); entry++) {
+            String name = index.getName(entry);
+            int slash = name.indexOf('/');
+            if (slash < 0) {
+                continue;
+            }
+            String directory = name.substring(0, slash);
+            List<Integer> members = directories.get(directory);
+            if (members == null) {
+                members = new ArrayList<Integer>();
+                directories.put(directory, members);
+            }
+            members.add(entry);
+        }
+
+        Map<String, ListDataset<T>> groups = new LinkedHashMap<String, ListDataset<T>>();
+        for (Map.Entry<String, List<Integer>> directory : directories.entrySet()) {
+            int[] members = new int[directory.getValue().size()];
+            for (int i = 0; i < members.length; i++) {
+                members[i] = directory.getValue().get(i);
+            }
+            groups.put(directory.getKey(), new ZipDataset<T>(index, reader, sortedByName(index, members)));
+        }
+        return new MapBackedDataset<String, ListDataset<T>, T>(groups);
+    }
+
+    @Override
+    public int size() {
+        return entries.length;
+    }
+
+    @Override
+    public int numInstances() {
+        return entries.length;
+    }
+
+    @Override
+    public T get(int i) {
+        return getInstance(i);
+    }
+
+    @Override
+    public T getInstance(int i) {
+        try {
+            return reader.read(index.openStream(entries[i]));
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot read " + getID(i) + " from " + index.getArchive(), e);
+        }
+    }
+
+    @Override
+    public T getRandomInstance() {
+        return getInstance(random.nextInt(entries.length));
+    }
+
+    //The path of instance i in the archive
+    public String getID(int i) {
+        return index.getName(entries[i]);
+    }
+
+    private static int[] allEntries(ZipIndex index) {
+        int[] entries = new int[index.size()];
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = i;
+        }
+        return entries;
+    }
+
+    private static int[] sortedByName(final ZipIndex index, int[] entries) {
+        Integer[] boxed = new Integer[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            boxed[i] = entries[i];
+        }
+        Arrays.sort(boxed, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return index.getName(a).compareTo(index.getName(b));
+            }
+        });
+        int[] sorted = new int[entries.length];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = boxed[i];
+        }
+        return sorted;
+    }
+}
@@ -0,0 +1,452 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+//The entries of a local zip file, read by position: opening it reads the zip's central directory (or the index of it
+//kept beside the archive) once, and then any entry is read with one positional read of its compressed bytes, straight
+//from where the index says they are, without going through the other entries as a VFS zip: source does.
+//  - the index gives each entry's name, where its data starts (after its local header), its compressed and
+//    uncompressed sizes, compression method and CRC; it is saved as <archive>.idx the first time, and used again as
+//    long as the archive's length and modification time have not changed (if the directory cannot be written to, the
+//    index is just rebuilt on every open)
+//  - reads use FileChannel's positional reads, which do not move a shared file position, so any number of threads
+//    can read at once with no lock. A reader interrupted while reading (e.g. by PrefetchingIterator.close()) closes
+//    the channel for every thread: that reader's read fails, and the next read on any other thread opens the archive
+//    again and carries on; deflated entries are inflated by Inflaters taken from a pool (a lock-free queue)
+//    and given back afterwards, so inflaters are only created when more threads are reading than ever before
+//  - every entry read is checked against its CRC
+//Stored and deflated entries are supported, as are zip64 archives; encrypted entries are not.
+//ZipDataset makes ListDatasets and GroupedDatasets of the entries; ZipIndexBenchmark compares it with VFS
+public class ZipIndex implements Closeable {
+
+    private static final int MAGIC = 0x5844495a;
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".idx";
+
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int END_BYTES = 22;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int CENTRAL_SIGNATURE = 0x02014b50;
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_BYTES = 30;
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+
+    private final File archive;
+    //Replaced when an interrupted reader has closed them (see reopen)
+    private volatile RandomAccessFile file;
+    private volatile FileChannel channel;
+    private volatile boolean closed;
+
+    //The entries (not directories), in the order they are in the archive
+    private final String[] names;
+    private final long[] dataOffsets;
+    private final long[] compressedSizes;
+    private final long[] sizes;
+    private final int[] methods;
+    private final int[] crcs;
+    private final Map<String, Integer> byName = new HashMap<String, Integer>();
+
+    private final ConcurrentLinkedQueue<Inflater> inflaters = new ConcurrentLinkedQueue<Inflater>();
+
+    //Each thread's buffer for compressed bytes
+    private final ThreadLocal<byte[]> compressedBuffers = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[8192];
+        }
+    };
+
+    private ZipIndex(File archive, RandomAccessFile file, String[] names, long[] dataOffsets, long[] compressedSizes,
+                     long[] sizes, int[] methods, int[] crcs) {
+        this.archive = archive;
+        this.file = file;
+        this.channel = file.getChannel();
+        this.names = names;
+        this.dataOffsets = dataOffsets;
+        this.compressedSizes = compressedSizes;
+        this.sizes = sizes;
+        this.methods = methods;
+        this.crcs = crcs;
+        for (int i = 0; i < names.length; i++) {
+            byName.put(names[i], i);
+        }
+    }
+
+    //Opens the archive with the index saved beside it, building (and saving) the index if there is none or the
+    //archive has changed since
+    public static ZipIndex open(File archive) throws IOException {
+        File cache = new File(archive.getPath() + SUFFIX);
+        RandomAccessFile file = new RandomAccessFile(archive, "r");
+        boolean opened = false;
+        try {
+            ZipIndex index = null;
+            if (cache.isFile()) {
+                try {
+                    index = load(archive, file, cache);
+                } catch (IOException e) {
+                    //unreadable: built again below
+                }
+            }
+            if (index == null) {
+                index = build(archive, file);
+                try {
+                    index.save(cache);
+                } catch (IOException e) {
+                    //read-only directory: the index is only kept in memory
+                }
+            }
+            opened = true;
+            return index;
+        } finally {
+            if (!opened) {
+                file.close();
+            }
+        }
+    }
+
+    //Number of entries
+    public int size() {
+        return names.length;
+    }
+
+    public File getArchive() {
+        return archive;
+    }
+
+    //The path of entry i in the archive, e.g. s1/1.pgm
+    public String getName(int i) {
+        return names[i];
+    }
+
+    //The entry of that name, or -1 if there is none
+    public int indexOf(String name) {
+        Integer i = byName.get(name);
+        return i == null ? -1 : i;
+    }
+
+    //The uncompressed size of entry i
+    public long getSize(int i) {
+        return sizes[i];
+    }
+
+    //The contents of entry i. Can be called from many threads at once
+    public byte[] read(int i) throws IOException {
+        if (sizes[i] > Integer.MAX_VALUE - 8 || compressedSizes[i] > Integer.MAX_VALUE - 8) {
+            throw new IOException("Entry too large to read into memory: " + names[i]);
+        }
+        int compressedSize = (int) compressedSizes[i];
+        byte[] out = new byte[(int) sizes[i]];
+        if (methods[i] == STORED) {
+            readFully(ByteBuffer.wrap(out), dataOffsets[i]);
+        } else if (methods[i] == DEFLATED) {
+            //one spare byte: the inflater may need a dummy byte after the data, as the zip format has no zlib trailer
+            byte[] compressed = compressedBuffers.get();
+            if (compressed.length < compressedSize + 1) {
+                compressed = new byte[Math.max(compressedSize + 1, 2 * compressed.length)];
+                compressedBuffers.set(compressed);
+            }
+            readFully(ByteBuffer.wrap(compressed, 0, compressedSize), dataOffsets[i]);
+            compressed[compressedSize] = 0;
+            Inflater inflater = inflaters.poll();
+            if (inflater == null) {
+                inflater = new Inflater(true);
+            }
+            try {
+                inflater.setInput(compressed, 0, compressedSize + 1);
+                int n = 0;
+                while (n < out.length) {
+                    int inflated = inflater.inflate(out, n, out.length - n);
+                    if (inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    n += inflated;
+                }
+                if (n != out.length) {
+                    throw new IOException("Entry is truncated: " + names[i]);
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Entry is corrupt: " + names[i], e);
+            } finally {
+                inflater.reset();
+                inflaters.offer(inflater);
+            }
+        } else {
+            throw new IOException("Unsupported compression method " + methods[i] + ": " + names[i]);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(out, 0, out.length);
+        if ((int) crc.getValue() != crcs[i]) {
+            throw new IOException("Entry fails its CRC check: " + names[i]);
+        }
+        return out;
+    }
+
+    //The contents of entry i as a stream, e.g. for an InputStreamObjectReader
+    public InputStream openStream(int i) throws IOException {
+        return new ByteArrayInputStream(read(i));
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        Inflater inflater;
+        while ((inflater = inflaters.poll()) != null) {
+            inflater.end();
+        }
+        file.close();
+    }
+
+    //Reads the central directory
+    private static ZipIndex build(File archive, RandomAccessFile file) throws IOException {
+        FileChannel channel = file.getChannel();
+        long length = channel.size();
+
+        //the end of central directory record is followed by a comment of up to 64KB
+        int tail = (int) Math.min(length, END_BYTES + 0xffff);
+        ByteBuffer end = read(channel, length - tail, tail);
+        int endAt = -1;
+        for (int p = tail - END_BYTES; p >= 0; p--) {
+            if (end.getInt(p) == END_SIGNATURE) {
+                endAt = p;
+                break;
+            }
+        }
+        if (endAt < 0) {
+            throw new IOException("Not a zip file: " + archive);
+        }
+        long entries = end.getShort(endAt + 10) & 0xffff;
+        long directorySize = end.getInt(endAt + 12) & 0xffffffffL;
+        long directoryStart = end.getInt(endAt + 16) & 0xffffffffL;
+        long endPosition = length - tail + endAt;
+        if (endPosition >= 20) {
+            ByteBuffer locator = read(channel, endPosition - 20, 20);
+            if (locator.getInt(0) == ZIP64_LOCATOR_SIGNATURE) {
+                ByteBuffer end64 = read(channel, locator.getLong(8), 56);
+                if (end64.getInt(0) != ZIP64_END_SIGNATURE) {
+                    throw new IOException("Corrupt zip64 end of central directory: " + archive);
+                }
+                entries = end64.getLong(32);
+                directorySize = end64.getLong(40);
+                directoryStart = end64.getLong(48);
+            }
+        }
+        if (directorySize > Integer.MAX_VALUE || entries > Integer.MAX_VALUE) {
+            throw new IOException("Central directory too large: " + archive);
+        }
+
+        ByteBuffer directory = read(channel, directoryStart, (int) directorySize);
+        int n = (int) entries;
+        String[] names = new String[n];
+        long[] dataOffsets = new long[n];
+        long[] compressedSizes = new long[n];
+        long[] sizes = new long[n];
+        int[] methods = new int[n];
+        int[] crcs = new int[n];
+        int count = 0;
+        int p = 0;
+        ByteBuffer local = ByteBuffer.allocate(LOCAL_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        for (int e = 0; e < n; e++) {
+            if (directory.getInt(p) != CENTRAL_SIGNATURE) {
+                throw new IOException("Corrupt central directory: " + archive);
+            }
+            int flags = directory.getShort(p + 8) & 0xffff;
+            int method = directory.getShort(p + 10) & 0xffff;
+            int crc = directory.getInt(p + 16);
+            long compressedSize = directory.getInt(p + 20) & 0xffffffffL;
+            long size = directory.getInt(p + 24) & 0xffffffffL;
+            int nameLength = directory.getShort(p + 28) & 0xffff;
+            int extraLength = directory.getShort(p + 30) & 0xffff;
+            int commentLength = directory.getShort(p + 32) & 0xffff;
+            long localOffset = directory.getInt(p + 42) & 0xffffffffL;
+            byte[] nameBytes = new byte[nameLength];
+            directory.position(p + 46);
+            directory.get(nameBytes);
+            //flag bit 11: the name is UTF-8 (otherwise CP437, which is the same for ASCII)
+            String name = new String(nameBytes, (flags & 0x800) != 0 ? StandardCharsets.UTF_8
+                    : StandardCharsets.ISO_8859_1);
+
+            //zip64 sizes and offset, in that order, for those fields that are 0xffffffff
+            for (int x = p + 46 + nameLength; x + 4 <= p + 46 + nameLength + extraLength; ) {
+                int id = directory.getShort(x) & 0xffff;
+                int fieldLength = directory.getShort(x + 2) & 0xffff;
+                if (id == 1) {
+                    int f = x + 4;
+                    if (size == 0xffffffffL) {
+                        size = directory.getLong(f);
+                        f += 8;
+                    }
+                    if (compressedSize == 0xffffffffL) {
+                        compressedSize = directory.getLong(f);
+                        f += 8;
+                    }
+                    if (localOffset == 0xffffffffL) {
+                        localOffset = directory.getLong(f);
+                    }
+                }
+                x += 4 + fieldLength;
+            }
+            p += 46 + nameLength + extraLength + commentLength;
+
+            if (name.endsWith("/")) {
+                continue;
+            }
+            if ((flags & 1) != 0) {
+                throw new IOException("Encrypted entries are not supported: " + name);
+            }
+            //the local header's name and extra field can differ in length from the central directory's
+            local.clear();
+            readFully(channel, local, localOffset);
+            if (local.getInt(0) != LOCAL_SIGNATURE) {
+                throw new IOException("Corrupt local header for " + name + ": " + archive);
+            }
+            names[count] = name;
+            dataOffsets[count] = localOffset + LOCAL_HEADER_BYTES + (local.getShort(26) & 0xffff)
+                    + (local.getShort(28) & 0xffff);
+            compressedSizes[count] = compressedSize;
+            sizes[count] = size;
+            methods[count] = method;
+            crcs[count] = crc;
+            count++;
+        }
+        return new ZipIndex(archive, file, Arrays.copyOf(names, count), Arrays.copyOf(dataOffsets, count),
+                Arrays.copyOf(compressedSizes, count), Arrays.copyOf(sizes, count), Arrays.copyOf(methods, count),
+                Arrays.copyOf(crcs, count));
+    }
+
+    //Writes the index beside the archive, under a temporary name first so another process never reads half of it
+    private void save(File cache) throws IOException {
+        File temporary = File.createTempFile(cache.getName(), ".tmp", cache.getAbsoluteFile().getParentFile());
+        boolean moved = false;
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(archive.length());
+                out.writeLong(archive.lastModified());
+                out.writeInt(names.length);
+                for (int i = 0; i < names.length; i++) {
+                    out.writeUTF(names[i]);
+                    out.writeLong(dataOffsets[i]);
+                    out.writeLong(compressedSizes[i]);
+                    out.writeLong(sizes[i]);
+                    out.writeShort(methods[i]);
+                    out.writeInt(crcs[i]);
+                }
+            } finally {
+                out.close();
+            }
+            Files.move(temporary.toPath(), cache.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            moved = true;
+        } finally {
+            if (!moved) {
+                temporary.delete();
+            }
+        }
+    }
+
+    //Reads a saved index, or returns null if the archive has changed since it was saved
+    private static ZipIndex load(File archive, RandomAccessFile file, File cache) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cache)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a zip index: " + cache);
+            }
+            if (in.readLong() != archive.length() || in.readLong() != archive.lastModified()) {
+                return null;
+            }
+            int n = in.readInt();
+            String[] names = new String[n];
+            long[] dataOffsets = new long[n];
+            long[] compressedSizes = new long[n];
+            long[] sizes = new long[n];
+            int[] methods = new int[n];
+            int[] crcs = new int[n];
+            for (int i = 0; i < n; i++) {
+                names[i] = in.readUTF();
+                dataOffsets[i] = in.readLong();
+                compressedSizes[i] = in.readLong();
+                sizes[i] = in.readLong();
+                methods[i] = in.readUnsignedShort();
+                crcs[i] = in.readInt();
+            }
+            return new ZipIndex(archive, file, names, dataOffsets, compressedSizes, sizes, methods, crcs);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        int start = buffer.position();
+        while (true) {
+            FileChannel current = channel;
+            try {
+                readFully(current, buffer, position);
+                return;
+            } catch (ClosedChannelException e) {
+                //this thread was interrupted (and closed the channel itself): it gives up, and leaves the channel to
+                //be opened again by the next read
+                if (e instanceof ClosedByInterruptException || Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+                reopen(current);
+                buffer.position(start);
+            }
+        }
+    }
+
+    //Opens the archive again after an interrupted reader has closed the channel, unless another thread has already
+    private synchronized void reopen(FileChannel closedChannel) throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+        if (channel == closedChannel) {
+            file.close();
+            file = new RandomAccessFile(archive, "r");
+            channel = file.getChannel();
+        }
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, buffer, position);
+        return buffer;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long start = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, start + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of zip file");
+            }
+        }
+    }
+}
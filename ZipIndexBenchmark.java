@@ -0,0 +1,120 @@
+import org.openimaj.data.dataset.GroupedDataset;
+import org.openimaj.data.dataset.ListDataset;
+import org.openimaj.data.dataset.VFSGroupDataset;
+import org.openimaj.data.dataset.VFSListDataset;
+import org.openimaj.image.FImage;
+import org.openimaj.image.ImageUtilities;
+import org.openimaj.time.Timer;
+import org.openimaj.util.function.Operation;
+import org.openimaj.util.parallel.Parallel;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+//Reads a zip of images as Chapter13 does (grouped by top-level directory) through VFS and through ZipIndex /
+//ZipDataset, and reports the time to open the dataset (for ZipIndex both without and with the index saved beside the
+//archive), to read the first image of every group, to read 500 images at random, and the number of random reads per
+//second when reading on all the cores. The zip is the path given as the first argument, or else 40 directories of 10
+//synthetic 92x112 JPEGs (the size of the AT&T faces) made in the temporary directory
+public class ZipIndexBenchmark {
+
+    private static final int READS = 500;
+
+    public static void main(String[] args) throws IOException {
+        File archive = args.length > 0 ? new File(args[0]) : syntheticArchive();
+        File saved = new File(archive.getPath() + ".idx");
+        saved.delete();
+
+        System.out.println("dataset\tms to open\tms for each group's first image\tms per random read"
+                + "\tparallel random reads per second");
+
+        Timer timer = Timer.timer();
+        VFSGroupDataset<FImage> vfsGroups = new VFSGroupDataset<FImage>("zip:" + archive.getAbsolutePath(),
+                ImageUtilities.FIMAGE_READER);
+        long open = timer.duration();
+        run("VFS", open, vfsGroups, new VFSListDataset<FImage>("zip:" + archive.getAbsolutePath(),
+                ImageUtilities.FIMAGE_READER));
+
+        for (String name : new String[]{"ZipIndex (building the index)", "ZipIndex (saved index)"}) {
+            timer = Timer.timer();
+            ZipIndex index = ZipIndex.open(archive);
+            GroupedDataset<String, ListDataset<FImage>, FImage> groups = ZipDataset.grouped(index,
+                    ImageUtilities.FIMAGE_READER);
+            open = timer.duration();
+            try {
+                run(name, open, groups, new ZipDataset<FImage>(index, ImageUtilities.FIMAGE_READER));
+            } finally {
+                index.close();
+            }
+        }
+    }
+
+    private static void run(String name, long open,
+                            GroupedDataset<String, ? extends ListDataset<FImage>, FImage> groups,
+                            final ListDataset<FImage> all) {
+        Timer timer = Timer.timer();
+        for (String group : groups.getGroups()) {
+            groups.get(group).getInstance(0);
+        }
+        long firstOfGroups = timer.duration();
+
+        final int[] order = new int[READS];
+        Random random = new Random(42);
+        for (int i = 0; i < READS; i++) {
+            order[i] = random.nextInt(all.size());
+        }
+        timer = Timer.timer();
+        for (int i : order) {
+            all.getInstance(i);
+        }
+        double perRead = (double) timer.duration() / READS;
+
+        timer = Timer.timer();
+        Parallel.forIndex(0, READS, 1, new Operation<Integer>() {
+            @Override
+            public void perform(Integer i) {
+                all.getInstance(order[i]);
+            }
+        });
+        double perSecond = READS * 1000.0 / Math.max(1, timer.duration());
+
+        System.out.println(name + "\t" + open + "\t" + firstOfGroups + "\t" + perRead + "\t" + perSecond);
+    }
+
+    private static File syntheticArchive() throws IOException {
+        File archive = new File(System.getProperty("java.io.tmpdir"), "zip-index-benchmark.zip");
+        File image = File.createTempFile("face", ".jpg");
+        Random random = new Random(42);
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(archive));
+        try {
+            byte[] buffer = new byte[1 << 16];
+            for (int group = 1; group <= 40; group++) {
+                for (int i = 1; i <= 10; i++) {
+                    ImageUtilities.write(FHSegmentationBenchmark.syntheticImage(92, 112, random).flatten(), "jpg",
+                            image);
+                    out.putNextEntry(new ZipEntry("s" + group + "/" + i + ".jpg"));
+                    InputStream in = new FileInputStream(image);
+                    try {
+                        int n;
+                        while ((n = in.read(buffer)) > 0) {
+                            out.write(buffer, 0, n);
+                        }
+                    } finally {
+                        in.close();
+                    }
+                    out.closeEntry();
+                }
+            }
+        } finally {
+            out.close();
+            image.delete();
+        }
+        return archive;
+    }
+}